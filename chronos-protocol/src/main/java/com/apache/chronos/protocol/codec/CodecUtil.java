@@ -294,4 +294,27 @@ public final class CodecUtil {
     }
     return list;
   }
+
+  public static void writeVarIntArray(ByteBuf buf, int[] array) {
+    if (array == null) {
+      writeVarInt(buf, 0);
+    } else {
+      writeVarInt(buf, array.length);
+      for (int value : array) {
+        writeVarInt(buf, value);
+      }
+    }
+  }
+
+  public static int[] readVarIntArray(ByteBuf buf) {
+    int size = readVarInt(buf);
+    if (size < 1) {
+      return null;
+    }
+    int[] array = new int[size];
+    for (int i = 0; i < size; i++) {
+      array[i] = readVarInt(buf);
+    }
+    return array;
+  }
 }
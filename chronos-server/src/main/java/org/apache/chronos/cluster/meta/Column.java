@@ -13,6 +13,7 @@ public class Column implements IMetaData, Serializable {
   private String code;
   private ValueType valueType;
   private List<String> tags;
+  private int[] tagIds;
   private Map<String, String> attrs;
   private final Recycler.Handle<Column> handle;
 
@@ -23,6 +24,7 @@ public class Column implements IMetaData, Serializable {
   public void recycle() {
     id = -1;
     tags = null;
+    tagIds = null;
     createdAt = -1;
     updatedAt = -1;
     code = null;
@@ -56,8 +58,22 @@ public class Column implements IMetaData, Serializable {
     return tags;
   }
 
+  /**
+   * 设置标签，标签 ID 随之失效，写入前按新的标签重新解析
+   */
   public void setTags(List<String> tags) {
     this.tags = tags;
+    this.tagIds = null;
+  }
+
+  @Override
+  public int[] getTagIds() {
+    return tagIds;
+  }
+
+  @Override
+  public void setTagIds(int[] tagIds) {
+    this.tagIds = tagIds;
   }
 
   @Override
@@ -11,4 +11,14 @@ public interface IMetaData {
   long getUpdatedAt();
 
   List<String> getTags();
+
+  /**
+   * ID of the tags in the tag dictionary, in the order of {@link #getTags()}
+   */
+  int[] getTagIds();
+
+  /**
+   * Set the resolved ID of the tags, see {@link org.apache.chronos.cluster.metastore.TagDictionary#resolveTagIds(IMetaData)}
+   */
+  void setTagIds(int[] tagIds);
 }
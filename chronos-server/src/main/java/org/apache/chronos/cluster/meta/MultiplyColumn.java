@@ -11,6 +11,7 @@ public class MultiplyColumn implements IMetaData {
   private long updatedAt;
 
   private List<String> tags;
+  private int[] tagIds;
   private List<String> codes;
   private List<ValueType> types;
   private Map<String, String> attrs;
@@ -23,6 +24,7 @@ public class MultiplyColumn implements IMetaData {
   public void recycle() {
     id = -1;
     tags = null;
+    tagIds = null;
     createdAt = -1;
     updatedAt = -1;
     codes = null;
@@ -56,8 +58,22 @@ public class MultiplyColumn implements IMetaData {
     return tags;
   }
 
+  /**
+   * 设置标签，标签 ID 随之失效，写入前按新的标签重新解析
+   */
   public void setTags(List<String> tags) {
     this.tags = tags;
+    this.tagIds = null;
+  }
+
+  @Override
+  public int[] getTagIds() {
+    return tagIds;
+  }
+
+  @Override
+  public void setTagIds(int[] tagIds) {
+    this.tagIds = tagIds;
   }
 
   @Override
@@ -25,7 +25,18 @@ public class Offset {
     this.handle = handle;
   }
 
+  /**
+   * An offset not pooled by the recycler, owned by the caller and reused as a holder, see
+   * {@link org.apache.chronos.cluster.metastore.IOffsetIndexStore#getOffset(int, Offset)}.
+   */
+  public Offset() {
+    this(null);
+  }
+
   public void recycle() {
+    if (handle == null) {
+      return;
+    }
     status = -1;
     blockId = -1;
     offset = -1;
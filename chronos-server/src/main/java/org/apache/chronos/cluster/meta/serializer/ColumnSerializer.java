@@ -1,16 +1,23 @@
 package org.apache.chronos.cluster.meta.serializer;
 
 import com.apache.chronos.protocol.codec.CodecUtil;
-import com.google.common.collect.Lists;
 import io.netty.buffer.ByteBuf;
-import java.util.List;
-import java.util.Map;
 import org.apache.chronos.cluster.meta.Column;
 import org.apache.chronos.cluster.meta.ValueType;
+import org.apache.chronos.cluster.metastore.TagDictionary;
 
 public class ColumnSerializer implements IMetaDataSerializer<Column> {
 
-  public static ColumnSerializer INSTANCE = new ColumnSerializer();
+  private final TagDictionary tagDictionary;
+
+  /**
+   * 序列化只写记录中已解析的标签 ID，不修改记录，ID 由 {@link TagDictionary#resolveTagIds} 在写入前解析
+   *
+   * @param tagDictionary 反序列化时按 ID 查找标签
+   */
+  public ColumnSerializer(TagDictionary tagDictionary) {
+    this.tagDictionary = tagDictionary;
+  }
 
   @Override
   public void serialize(ByteBuf byteBuf, Column metaData) {
@@ -19,7 +26,7 @@ public class ColumnSerializer implements IMetaDataSerializer<Column> {
     CodecUtil.writeVarLong(byteBuf, metaData.getUpdatedAt());
     byteBuf.writeByte(metaData.getValueType().getValue());
     CodecUtil.writeString(byteBuf, metaData.getCode());
-    CodecUtil.writeList(byteBuf, metaData.getTags());
+    TagsCodec.writeTagIds(byteBuf, metaData);
     CodecUtil.writeMap(byteBuf, metaData.getAttrs());
   }
 
@@ -31,7 +38,14 @@ public class ColumnSerializer implements IMetaDataSerializer<Column> {
     column.setUpdatedAt(CodecUtil.readVarLong(byteBuf));
     column.setValueType(ValueType.fromValue(byteBuf.readUnsignedByte()));
     column.setCode(CodecUtil.readString(byteBuf));
-    column.setTags(CodecUtil.readList(byteBuf));
+    if (TagsCodec.isLegacy(byteBuf)) {
+      // 旧记录的标签 ID 在下次写入前解析
+      column.setTags(CodecUtil.readList(byteBuf));
+    } else {
+      int[] tagIds = TagsCodec.readTagIds(byteBuf);
+      column.setTags(tagIds == null ? null : tagDictionary.getTags(tagIds));
+      column.setTagIds(tagIds);
+    }
     column.setAttrs(CodecUtil.readMap(byteBuf));
     return column;
   }
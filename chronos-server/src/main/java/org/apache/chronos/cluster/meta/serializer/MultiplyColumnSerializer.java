@@ -6,17 +6,27 @@ import io.netty.buffer.ByteBuf;
 import java.util.List;
 import org.apache.chronos.cluster.meta.MultiplyColumn;
 import org.apache.chronos.cluster.meta.ValueType;
+import org.apache.chronos.cluster.metastore.TagDictionary;
 
 public class MultiplyColumnSerializer implements IMetaDataSerializer<MultiplyColumn> {
 
-  public static MultiplyColumnSerializer INSTANCE = new MultiplyColumnSerializer();
+  private final TagDictionary tagDictionary;
+
+  /**
+   * 序列化只写记录中已解析的标签 ID，不修改记录，ID 由 {@link TagDictionary#resolveTagIds} 在写入前解析
+   *
+   * @param tagDictionary 反序列化时按 ID 查找标签
+   */
+  public MultiplyColumnSerializer(TagDictionary tagDictionary) {
+    this.tagDictionary = tagDictionary;
+  }
 
   @Override
   public void serialize(ByteBuf byteBuf, MultiplyColumn metaData) {
     byteBuf.writeInt(metaData.getId());
     byteBuf.writeLong(metaData.getCreatedAt());
     byteBuf.writeLong(metaData.getUpdatedAt());
-    CodecUtil.writeList(byteBuf, metaData.getTags());
+    TagsCodec.writeTagIds(byteBuf, metaData);
     CodecUtil.writeList(byteBuf, metaData.getCodes());
     List<ValueType> types = metaData.getTypes();
     if (types != null && !types.isEmpty()) {
@@ -36,7 +46,14 @@ public class MultiplyColumnSerializer implements IMetaDataSerializer<MultiplyCol
     column.setId(byteBuf.readInt());
     column.setCreatedAt(byteBuf.readLong());
     column.setUpdatedAt(byteBuf.readLong());
-    column.setTags(CodecUtil.readList(byteBuf));
+    if (TagsCodec.isLegacy(byteBuf)) {
+      // 旧记录的标签 ID 在下次写入前解析
+      column.setTags(CodecUtil.readList(byteBuf));
+    } else {
+      int[] tagIds = TagsCodec.readTagIds(byteBuf);
+      column.setTags(tagIds == null ? null : tagDictionary.getTags(tagIds));
+      column.setTagIds(tagIds);
+    }
     column.setCodes(CodecUtil.readList(byteBuf));
     int length = byteBuf.readUnsignedByte();
     if (length > 0) {
@@ -24,4 +24,15 @@ public class OffsetSerializer {
     offset.setUpdated(byteBuf.readLong());
     return offset;
   }
+
+  /**
+   * Read the offset at the index into the holder, the reader index of the buffer is not changed.
+   */
+  public void deserialize(ByteBuf byteBuf, int index, Offset holder) {
+    holder.setStatus(byteBuf.getByte(index));
+    holder.setBlockId(byteBuf.getInt(index + 1));
+    holder.setOffset(byteBuf.getLong(index + 5));
+    holder.setLength(byteBuf.getInt(index + 13));
+    holder.setUpdated(byteBuf.getLong(index + 17));
+  }
 }
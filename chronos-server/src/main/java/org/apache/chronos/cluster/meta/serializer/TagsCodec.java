@@ -0,0 +1,58 @@
+package org.apache.chronos.cluster.meta.serializer;
+
+import com.apache.chronos.protocol.codec.CodecUtil;
+import io.netty.buffer.ByteBuf;
+import java.util.List;
+import org.apache.chronos.cluster.meta.IMetaData;
+import org.apache.chronos.cluster.metastore.TagDictionary;
+
+/**
+ * 记录中标签字段的编码。当前格式先写 {@link #MARKER} 和格式版本，再写标签在 {@link TagDictionary} 中的 ID 数组。
+ * <p>
+ * 旧格式是 {@link CodecUtil#writeList} 写的标签字符串列表，以变长编码的个数开头。首字节为 0xFF 的个数至少有 10 亿，
+ * 旧记录中不可能出现，所以按首字节区分两种格式。
+ */
+final class TagsCodec {
+
+  static final int MARKER = 0xFF;
+  static final int FORMAT_VERSION = 1;
+
+  private TagsCodec() {
+  }
+
+  /**
+   * 写入已解析的标签 ID，不修改记录
+   *
+   * @throws IllegalStateException 标签的 ID 还没有解析
+   */
+  static void writeTagIds(ByteBuf byteBuf, IMetaData metaData) {
+    List<String> tags = metaData.getTags();
+    int[] tagIds = metaData.getTagIds();
+    int size = tags == null ? 0 : tags.size();
+    if ((tagIds == null ? 0 : tagIds.length) != size) {
+      throw new IllegalStateException("Tag ids of meta data " + metaData.getId() + " are not resolved");
+    }
+    byteBuf.writeByte(MARKER);
+    byteBuf.writeByte(FORMAT_VERSION);
+    CodecUtil.writeVarIntArray(byteBuf, size == 0 ? null : tagIds);
+  }
+
+  /**
+   * 标签字段是否是旧格式的字符串列表，不移动读位置
+   */
+  static boolean isLegacy(ByteBuf byteBuf) {
+    return byteBuf.getUnsignedByte(byteBuf.readerIndex()) != MARKER;
+  }
+
+  /**
+   * 读取当前格式的标签 ID，没有标签时返回 null
+   */
+  static int[] readTagIds(ByteBuf byteBuf) {
+    byteBuf.skipBytes(1);
+    int version = byteBuf.readUnsignedByte();
+    if (version != FORMAT_VERSION) {
+      throw new IllegalArgumentException("Unsupported tags format version: " + version);
+    }
+    return CodecUtil.readVarIntArray(byteBuf);
+  }
+}
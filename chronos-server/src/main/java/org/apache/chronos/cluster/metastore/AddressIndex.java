@@ -0,0 +1,114 @@
+package org.apache.chronos.cluster.metastore;
+
+/**
+ * 块地址到标签哈希的内存反向索引。BlockCompactor 移动条目后，{@link TagsIndexShard} 用它找出指向旧地址的标签，按哈希直接探测槽位，
+ * 不扫描整张表。
+ * <p>
+ * 开放寻址、线性探测，同一个地址可以对应多个标签，每个 (地址, 哈希) 各占一个位置。删除时把探测序列上后面的位置前移，不留删除标记。
+ * 不是线程安全的，由分片的写锁保护。不持久化，分片第一次移动条目时从表中建立。
+ */
+final class AddressIndex {
+
+  private static final int INITIAL_CAPACITY = 16;
+  private static final int[] EMPTY = new int[0];
+
+  private long[] addresses;
+  private int[] hashes;
+  private boolean[] used;
+  private int mask;
+  private int size;
+
+  AddressIndex() {
+    allocate(INITIAL_CAPACITY);
+  }
+
+  private void allocate(int capacity) {
+    addresses = new long[capacity];
+    hashes = new int[capacity];
+    used = new boolean[capacity];
+    mask = capacity - 1;
+  }
+
+  private int home(long address) {
+    long mixed = address * 0x9E3779B97F4A7C15L;
+    return (int) (mixed ^ (mixed >>> 32)) & mask;
+  }
+
+  int size() {
+    return size;
+  }
+
+  void add(long address, int hash) {
+    if ((size + 1) * 2 > used.length) {
+      resize(used.length * 2);
+    }
+    int pos = home(address);
+    while (used[pos]) {
+      pos = (pos + 1) & mask;
+    }
+    used[pos] = true;
+    addresses[pos] = address;
+    hashes[pos] = hash;
+    size++;
+  }
+
+  /**
+   * 删除一个 (地址, 哈希)，不存在时不做任何事
+   */
+  void remove(long address, int hash) {
+    int pos = home(address);
+    while (used[pos] && (addresses[pos] != address || hashes[pos] != hash)) {
+      pos = (pos + 1) & mask;
+    }
+    if (!used[pos]) {
+      return;
+    }
+    int hole = pos;
+    for (int next = (hole + 1) & mask; used[next]; next = (next + 1) & mask) {
+      // 初始位置不在空位与当前位置之间的元素可以前移到空位，探测时仍能找到
+      if (((next - home(addresses[next])) & mask) >= ((next - hole) & mask)) {
+        addresses[hole] = addresses[next];
+        hashes[hole] = hashes[next];
+        hole = next;
+      }
+    }
+    used[hole] = false;
+    size--;
+  }
+
+  /**
+   * @return 指向该地址的标签哈希，没有时返回空数组
+   */
+  int[] get(long address) {
+    int count = 0;
+    for (int pos = home(address); used[pos]; pos = (pos + 1) & mask) {
+      if (addresses[pos] == address) {
+        count++;
+      }
+    }
+    if (count == 0) {
+      return EMPTY;
+    }
+    int[] result = new int[count];
+    count = 0;
+    for (int pos = home(address); used[pos]; pos = (pos + 1) & mask) {
+      if (addresses[pos] == address) {
+        result[count++] = hashes[pos];
+      }
+    }
+    return result;
+  }
+
+  private void resize(int capacity) {
+    long[] oldAddresses = addresses;
+    int[] oldHashes = hashes;
+    boolean[] oldUsed = used;
+    allocate(capacity);
+    size = 0;
+    for (int i = 0; i < oldUsed.length; i++) {
+      if (oldUsed[i]) {
+        add(oldAddresses[i], oldHashes[i]);
+      }
+    }
+  }
+}
@@ -4,307 +4,1176 @@ import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufInputStream;
 import io.netty.buffer.ByteBufOutputStream;
 import io.netty.buffer.CompositeByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.file.StandardOpenOption;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import org.apache.chronos.common.FileUtil;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.StampedLock;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.roaringbitmap.RoaringBitmap;
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
 
 /**
- * Page size is 128 KB.
+ * A block is a set of segment files of a fixed size, each one is mapped once when it is opened and never remapped. The
+ * first segment is the block file itself, segment n is the block file with the suffix ".n". When the last segment is
+ * full a new segment is added.
+ * <p>
+ * An entry is addressed by a long, the segment id in the high 32 bits and the offset in the segment in the low 32 bits,
+ * see {@link #toAddress(int, int)}. The address of an entry of the first segment is its offset, so the offsets stored
+ * before the block was split in segments are still valid.
+ * <p>
+ * The segments are published as a {@link BlockGeneration}, a new generation is published when a segment is added or
+ * removed. A new segment is mapped without holding the block lock, so lookups are not paused while the block grows, and
+ * a segment is never remapped. A removed segment is retired, it is unmapped once no reader that entered before it was
+ * removed is left, see {@link BlockEpoch}. A reader enters an epoch for every read, a caller keeping a view of the
+ * mapping takes a {@link BlockPin}, see {@link #pin()}.
+ * <p>
+ * Deleted, moved and relocated entries are retired the same way: the entry is marked in its flag and its space is only
+ * given back to the page once no pin taken before is left, so an address looked up in another index under a pin is
+ * never reused by another entry while the pin is held. See {@link #pin()}.
+ * <p>
+ * Only writers are serialized. {@link #getRoaringBitmap(long)} and {@link #getImmutableRoaringBitmap(long, BlockPin)} read the
+ * entry optimistically without taking the lock and validate that no write happened meanwhile, they read again under the
+ * read lock when one did. The optimistic read copies the raw bytes of the entry before anything is decoded, so a
+ * half written entry is never deserialized or decompressed.
+ * <p>
+ * Every segment has the following layout. Page size is 128 KB.
  * <p>
  * |----------- block header(32 bytes)-------|------ page1 ------|------- page2 ---------|---------- pageN ----------|
  * <p>
- * |--- magic value ---|--- writer index ---|---
+ * |--- magic value ---|--- writer index ---|--- checkpoint ---|--- retired ---|--- reserved ---|
  * <p>
- * |--- 4 bytes -------|--- 4 bytes --------|--- -----------------------------------------|-------------------|-----------------------|
+ * |--- 4 bytes -------|--- 4 bytes --------|--- 4 bytes ------|--- 4 bytes ---|--- 16 bytes ---|--- -----------------------------------------|-------------------|-----------------------|
  * <p>
  * |----------- page header(16 bytes) --------------|
  * <p>
- * |--- used page size ---|----------|---
+ * |--- used page size ---|--- span page number ---|--- fill offset ---|--- reserved ---|
  * <p>
- * |--- 4 bytes ----------|-----|----------|---
+ * |--- 4 bytes ----------|--- 4 bytes -------------|--- 4 bytes -------|--- 4 bytes ----|
  * <p>
  * |----------- entry header(32 bytes) --------------|
  * <p>
- * |--- flag ---|--- entry size --|--- next page offset ---|--- tags index offset ---|
+ * |--- flag ---|--- entry size --|--- next page offset ---|--- tags index offset ---|--- entry capacity ---|--- entry head offset ---|--- checksum ---|--- raw size ---|--- entry length ---|
+ * <p>
+ * |--- 1 bytes |--- 3 bytes -----|--------- 4 bytes ------|--- 4 bytes -------------|--- 4 bytes ----------|--- 4 bytes -------------|--- 4 bytes ----|--- 4 bytes ----|--- 4 bytes --------|
+ * <p>
+ * flag 0： no entry, 1: single page, flag 2: continue page, flag 3: span pages. The flag of the first chunk of a retired
+ * entry has the bit 0x10 set when the entry was moved, it is still read, or 0x20 when it was deleted. retired is the
+ * offset of the first page holding a retired entry, 0 if there is none, the retired entries are released when the
+ * segment is opened.
+ * <p>
+ * A span entry is written with the contiguous allocation, see {@link #setContiguousAllocation(boolean)}. It starts at
+ * the first page of a run of pages and its payload runs over the following pages, the page headers of the following
+ * pages included, so the payload is one contiguous range of the mapping. The span page number in the header of the
+ * first page is the length of the run, it is 0 for other pages. The entry size of a span entry is 0, its size is the
+ * entry length.
+ * <p>
+ * raw size 0: the payload is the serialized bitmap, otherwise the payload is the serialized bitmap compressed by LZ4 and
+ * raw size is the size of the serialized bitmap. See {@link #setCompressionThreshold(int)}.
  * <p>
- * |--- 1 bytes |--- 3 bytes -----|--------- 4 bytes ------|--- 4 bytes -------------|
+ * checksum is the CRC32C of the payload, set in the first chunk of an entry. checkpoint is the writer index when the
+ * segment was last persisted, it is moved back before an entry is written below it. When a segment is opened only the
+ * entries from the page of the checkpoint on are validated, an entry torn by a crash is released.
  * <p>
- * flag 0： no entry, 1: single page, flag 2: continue page.
+ * fill offset is the offset after the last entry of the page, the next entry of the page is written there. It is
+ * meaningless when the used page size is 0. The pages are grouped by the free space after the fill offset in size
+ * classes, an entry fitting in a page is written in the page with the smallest free space large enough, see
+ * {@link #addRoaringBitmap(int, RoaringBitmap)}.
+ * <p>
+ * entry head offset is the offset of the first chunk of a continue entry, it is 0 in the first chunk itself.
+ * <p>
+ * entry size is the number of payload bytes in use, entry capacity is the number of payload bytes allocated to the
+ * entry, which can be larger than entry size after an in-place update. A capacity of 0 means the entry was written
+ * before capacity was tracked, and its capacity equals its size.
  * <p>
  */
-public class BlockChannel {
+public class BlockChannel implements Closeable {
 
   private static final Logger log = LogManager.getLogger(BlockChannel.class);
 
   // bytes
-  private static final int BLOCK_HEADER_SIZE = 32;
-  private static final int PAGE_HEADER_SIZE = 16;
-  private static final int ENTRY_HEADER_SIZE = 32;
-  private static final int MAGIC_VALUE = 0x870712;
+  static final int BLOCK_HEADER_SIZE = 32;
+  static final int PAGE_HEADER_SIZE = 16;
+  static final int ENTRY_HEADER_SIZE = 32;
+  static final int MAGIC_VALUE = 0x870712;
+  static final int ENTRY_NEXT_OFFSET = 4;
+  static final int ENTRY_TAG_INDEX_OFFSET = 8;
+  static final int ENTRY_CAPACITY_OFFSET = 12;
+  static final int ENTRY_HEAD_OFFSET = 16;
+  static final int ENTRY_CHECKSUM_OFFSET = 20;
+  static final int ENTRY_RAW_SIZE_OFFSET = 24;
+  static final int ENTRY_LENGTH_OFFSET = 28;
+  static final int PAGE_SPAN_OFFSET = 4;
+  static final int PAGE_FILL_OFFSET = 8;
+  static final int FLAG_KIND_MASK = 0x0F;
+  static final int FLAG_MOVED = 0x10;
+  static final int FLAG_DELETED = 0x20;
   // 128 KB
-  private static final int PAGE_SIZE = 128 * 1024;
-  // page number
-  private static final int PAGE_NUM = 256;
-  private final FileChannel fileChannel;
-  private MappedByteBuffer mappedByteBuffer;
-  private ByteBuf byteBuf;
-  private ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
-  private final Lock readLock = readWriteLock.readLock();
-  private final Lock writeLock = readWriteLock.writeLock();
+  static final int PAGE_SIZE = 128 * 1024;
+  private static final LZ4Compressor COMPRESSOR = LZ4Factory.fastestInstance().fastCompressor();
+  private static final LZ4FastDecompressor DECOMPRESSOR = LZ4Factory.fastestInstance().fastDecompressor();
+  // page number of a new segment, 256 MB
+  private static final int SEGMENT_PAGE_NUM = 2048;
+  // pause of close while readers are still in an epoch
+  private static final long CLOSE_WAIT_NANOS = 100_000;
+  private final String filePath;
+  private final long segmentSize;
+  // segments indexed by segment id, replaced as a whole when a segment is added or removed
+  private volatile BlockGeneration generation;
+  // readers of the mappings, a retired segment is unmapped once its readers are gone
+  private final BlockEpoch epoch = new BlockEpoch();
+  // entries and segments retired and not yet released, in retire order, guarded by the write lock
+  private final ArrayDeque<Retired> retired = new ArrayDeque<>();
+  // set under the write lock, a reader checks it after entering an epoch and the mappings are unmapped once the readers
+  // are gone
+  private volatile boolean closed;
+  // serializes adding and removing segments, taken before the write lock
+  private final Object growLock = new Object();
+  // serializes updates and deletes of existing entries with the commit of a relocation, taken before the grow lock. The
+  // listener repoints the moved entries holding only this lock, lookups and appends go on meanwhile
+  private final Object relocationLock = new Object();
+  // not reentrant, a method holding the lock does not call another one taking it
+  private final StampedLock lock = new StampedLock();
+  private final Lock readLock = lock.asReadLock();
+  private final Lock writeLock = lock.asWriteLock();
+  // changed by every update and delete, lets the compactor detect entries changed while they were being copied
+  private final AtomicLong modCount = new AtomicLong();
+  // the address of the write index of the running compaction, 0 when no page is being filled by the compaction
+  private long compactionWrtIdx;
+  private volatile boolean contiguousAllocation;
+  private volatile int compressionThreshold;
+  private final BlockChannelMetrics metrics = new BlockChannelMetrics();
 
   public BlockChannel(String filePath) throws Exception {
-    File file = new File(filePath);
+    this(filePath, SEGMENT_PAGE_NUM);
+  }
+
+  /**
+   * @param segmentPageNum number of pages of a new segment file, existing segment files keep their size.
+   */
+  public BlockChannel(String filePath, int segmentPageNum) throws Exception {
+    this.filePath = filePath;
+    this.segmentSize = (long) PAGE_SIZE * segmentPageNum + BLOCK_HEADER_SIZE;
+    if (segmentPageNum <= 0 || segmentSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Invalid segment page number: " + segmentPageNum);
+    }
+    File file = getSegmentFile(0);
+    BlockSegment[] segments;
     if (!file.exists()) {
-      fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
-      fileChannel.truncate(PAGE_SIZE * PAGE_NUM);
-      mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, PAGE_SIZE * PAGE_NUM);
-      byteBuf = Unpooled.wrappedBuffer(mappedByteBuffer);
-      byteBuf.readerIndex(0);
-      updateBlockHeader(BLOCK_HEADER_SIZE);
-      byteBuf.writerIndex(BLOCK_HEADER_SIZE);
-      persist();
+      segments = new BlockSegment[]{BlockSegment.create(0, file, segmentSize)};
     } else {
-      fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
-      mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, fileChannel.size());
-      byteBuf = Unpooled.wrappedBuffer(mappedByteBuffer);
-      byteBuf.readerIndex(0);
-      byteBuf.writerIndex(getWrtIdx());
+      List<BlockSegment> opened = new ArrayList<>();
+      for (int segmentId = 0; getSegmentFile(segmentId).exists(); segmentId++) {
+        opened.add(BlockSegment.open(segmentId, getSegmentFile(segmentId)));
+      }
+      segments = opened.toArray(new BlockSegment[0]);
+    }
+    generation = new BlockGeneration(0, segments);
+  }
+
+  private File getSegmentFile(int segmentId) {
+    return new File(segmentId == 0 ? filePath : filePath + "." + segmentId);
+  }
+
+  public static long toAddress(int segmentId, int offset) {
+    return ((long) segmentId << 32) | (offset & 0xFFFFFFFFL);
+  }
+
+  public static int getSegmentId(long address) {
+    return (int) (address >>> 32);
+  }
+
+  public static int getSegmentOffset(long address) {
+    return (int) address;
+  }
+
+  /**
+   * The segments of the current generation. A reader calls it after entering an epoch or under the lock.
+   */
+  private BlockSegment[] getSegments() {
+    if (closed) {
+      throw new IllegalStateException("Block channel is closed: " + filePath);
+    }
+    return generation.getSegments();
+  }
+
+  private BlockSegment getSegment(long address) {
+    BlockSegment[] current = getSegments();
+    int segmentId = getSegmentId(address);
+    if (segmentId >= current.length) {
+      throw new IllegalArgumentException("No segment for address: " + address);
+    }
+    return current[segmentId];
+  }
+
+  private BlockSegment getLastSegment() {
+    BlockSegment[] current = getSegments();
+    return current[current.length - 1];
+  }
+
+  /**
+   * Map a new segment after the last one, unless the block already has more segments than the given count. The segment
+   * file is created and mapped without holding the block lock, the lock is only taken to publish the new generation.
+   */
+  private void growSegments(int segmentCount) throws IOException {
+    synchronized (growLock) {
+      if (generation.size() != segmentCount) {
+        return;
+      }
+      BlockSegment segment = BlockSegment.create(segmentCount, getSegmentFile(segmentCount), segmentSize);
+      try {
+        writeLock.lock();
+        if (closed) {
+          // closed while the segment was mapped, getSegments fails below
+          segment.deleteFile();
+          segment.close();
+        }
+        BlockSegment[] newSegments = Arrays.copyOf(getSegments(), segmentCount + 1);
+        newSegments[segmentCount] = segment;
+        publish(newSegments);
+      } finally {
+        writeLock.unlock();
+      }
+      log.info("Add block segment {}, file: {}", segment.getId(), getSegmentFile(segment.getId()));
+    }
+  }
+
+  /**
+   * Replace the current generation, the caller holds the write lock.
+   */
+  private void publish(BlockSegment[] segments) {
+    generation = new BlockGeneration(generation.getVersion() + 1, segments);
+  }
+
+  /**
+   * Pin the channel, nothing retired after the pin is taken is released before the pin is closed.
+   * <p>
+   * A caller looking an address up in another index, such as the tags index, takes the pin before the lookup and reads
+   * or updates the entry under it: the space of a deleted or moved entry is not reused while the pin is held, a moved
+   * entry is still read and {@link #updateRoaringBitmap(long, RoaringBitmap)} rejects it. A caller repointing an address
+   * returned by an update does it under the pin the update was made under.
+   */
+  public BlockPin pin() {
+    return new BlockPin(epoch);
+  }
+
+  /**
+   * Retire the entry, it is released by {@link #reclaim(BitSet)} once no reader may still read it. The caller holds the
+   * write lock.
+   */
+  private void retire(BlockSegment segment, int entryOffset, boolean moved) {
+    segment.retireEntry(entryOffset, moved);
+    retired.add(new Retired(epoch.getEpoch(), segment, entryOffset));
+  }
+
+  /**
+   * Release what was retired and no reader may still read, advancing the epoch as far as the readers allow. The caller
+   * holds the write lock and forces the changed segments.
+   *
+   * @param changed the ids of the segments whose entries are released are added to it.
+   */
+  private void reclaim(BitSet changed) {
+    while (!retired.isEmpty()) {
+      Retired first = retired.peekFirst();
+      if (!epoch.isReclaimable(first.epoch)) {
+        if (!epoch.tryAdvance()) {
+          return;
+        }
+        continue;
+      }
+      retired.pollFirst();
+      if (first.entryOffset < 0) {
+        first.segment.close();
+      } else {
+        first.segment.releaseRetired(first.entryOffset);
+        changed.set(first.segment.getId());
+      }
+    }
+  }
+
+  /**
+   * Number of retired entries and segments not yet released.
+   */
+  protected int getRetiredCount() {
+    try {
+      readLock.lock();
+      return retired.size();
+    } finally {
+      readLock.unlock();
     }
   }
 
-  private void updateBlockHeader(int wrtIdx) {
-    byteBuf.setInt(0, MAGIC_VALUE);
-    byteBuf.setInt(4, wrtIdx);
+  /**
+   * When enabled an entry larger than a page is written as a span entry starting on a new page, instead of a chain of
+   * continue chunks. Such entries can be read without a copy by {@link #getImmutableRoaringBitmap(long, BlockPin)}.
+   * Entries written before are not changed.
+   */
+  public void setContiguousAllocation(boolean contiguousAllocation) {
+    this.contiguousAllocation = contiguousAllocation;
   }
 
-  private int getWrtIdx() {
-    return byteBuf.getInt(4);
+  /**
+   * Bitmaps whose serialized size is at least the threshold are stored compressed by LZ4, when compression makes them
+   * smaller. A compressed entry is decompressed on every read, into a pooled direct buffer. 0 disables the compression,
+   * which is the default. Entries written before are not changed.
+   */
+  public void setCompressionThreshold(int compressionThreshold) {
+    this.compressionThreshold = compressionThreshold;
   }
 
-  protected void expandChannelFile() throws Exception {
-    if (fileChannel.size() == Integer.MAX_VALUE) {
-      throw new MemMapSpaceExceedException();
+  /**
+   * The bitmap serialized and compressed by LZ4, in a pooled direct buffer the caller releases. Null if the bitmap is
+   * below the compression threshold or compression does not make it smaller.
+   */
+  private ByteBuf compress(RoaringBitmap roaringBitmap) throws IOException {
+    int threshold = compressionThreshold;
+    int rawSize = roaringBitmap.serializedSizeInBytes();
+    if (threshold <= 0 || rawSize < threshold) {
+      return null;
     }
-    long newSize = fileChannel.size() * 2;
-    if (newSize > Integer.MAX_VALUE) {
-      newSize = Integer.MAX_VALUE;
+    ByteBuf raw = PooledByteBufAllocator.DEFAULT.directBuffer(rawSize, rawSize);
+    try {
+      roaringBitmap.serialize(new ByteBufOutputStream(raw));
+      int maxCompressedLength = COMPRESSOR.maxCompressedLength(rawSize);
+      ByteBuf compressed = PooledByteBufAllocator.DEFAULT.directBuffer(maxCompressedLength, maxCompressedLength);
+      int compressedLength = COMPRESSOR.compress(raw.nioBuffer(0, rawSize), 0, rawSize, compressed.nioBuffer(0, maxCompressedLength), 0, maxCompressedLength);
+      if (compressedLength >= rawSize) {
+        compressed.release();
+        return null;
+      }
+      return compressed.writerIndex(compressedLength);
+    } finally {
+      raw.release();
+    }
+  }
+
+  /**
+   * Decompress the payload of a compressed entry into a pooled direct buffer the caller releases.
+   */
+  private static ByteBuf decompress(ByteBuf payload, int rawSize) {
+    ByteBuf raw = PooledByteBufAllocator.DEFAULT.directBuffer(rawSize, rawSize);
+    ByteBuffer source = payload.nioBuffer();
+    DECOMPRESSOR.decompress(source, source.position(), raw.nioBuffer(0, rawSize), 0, rawSize);
+    return raw.writerIndex(rawSize);
+  }
+
+  private static void writePayload(ByteBuf target, RoaringBitmap roaringBitmap, ByteBuf compressed) throws IOException {
+    if (compressed == null) {
+      roaringBitmap.serialize(new ByteBufOutputStream(target));
+    } else {
+      target.writeBytes(compressed, compressed.readerIndex(), compressed.readableBytes());
     }
-    persist();
-    FileUtil.clean(mappedByteBuffer);
-    byteBuf.release();
-    fileChannel.truncate(newSize);
-    this.mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
-    this.byteBuf = Unpooled.wrappedBuffer(mappedByteBuffer);
-    byteBuf.readerIndex(0);
-    byteBuf.writerIndex(getWrtIdx());
   }
 
-  private void persist() throws IOException {
-    mappedByteBuffer.force();
-    fileChannel.force(true);
+  public int getSegmentCount() {
+    return generation.size();
   }
 
   public long getFileSize() throws IOException {
-    return fileChannel.size();
+    long size = 0;
+    for (BlockSegment segment : getSegments()) {
+      size += segment.size();
+    }
+    return size;
   }
 
-  public int addRoaringBitmap(int tagIndex, RoaringBitmap roaringBitmap) throws Exception {
+  /**
+   * Write the bitmap. An entry fitting in a page is written in the free space of a page, the page with the smallest
+   * free space large enough in the lowest segment is used. Otherwise the entry is appended to the last segment, a new
+   * segment is added when the last one is full.
+   *
+   * @return the address of the entry.
+   */
+  public long addRoaringBitmap(int tagIndex, RoaringBitmap roaringBitmap) throws Exception {
+    ByteBuf compressed = compress(roaringBitmap);
     try {
-      writeLock.lock();
-      int needSize = roaringBitmap.serializedSizeInBytes();
-      while (getAvailableFileSize() < needSize + ENTRY_HEADER_SIZE + PAGE_HEADER_SIZE) {
-        expandChannelFile();
-      }
-      // The channel file has enough space to hold the data
-      int currentPageAvailableSize = PAGE_SIZE - getUsedPageSize(byteBuf.writerIndex()) - PAGE_HEADER_SIZE;
-      int pageIndex = getPageOffset(byteBuf.writerIndex());
-
-      if (pageIndex == byteBuf.writerIndex()) {
-        // Page Header: page size
-        byteBuf.writeInt(0);
-        // Page Header: reserve
-        byteBuf.writerIndex(byteBuf.writerIndex() + PAGE_HEADER_SIZE - 4);
-      }
-      int result = byteBuf.writerIndex();
-      // single page
-      if (needSize + ENTRY_HEADER_SIZE <= currentPageAvailableSize) {
-        log.info("write entry offset: {}, size: {}", result, needSize);
-        // update page header
-        addUsedPageSize(result, needSize + ENTRY_HEADER_SIZE);
-        // entry header 32 bytes
-        byteBuf.writeByte(1);
-        byteBuf.writeMedium(needSize);
-        // next entry offset
-        byteBuf.writeInt(0);
-        // tag index
-        byteBuf.writeInt(tagIndex);
-        byteBuf.writerIndex(byteBuf.writerIndex() + ENTRY_HEADER_SIZE - 12);
-        roaringBitmap.serialize(new ByteBufOutputStream(byteBuf));
-        updateBlockHeader(byteBuf.writerIndex());
-        persist();
-      } else {
-        log.info("write entry offset: {}, size: {}", result, currentPageAvailableSize - ENTRY_HEADER_SIZE);
-        CompositeByteBuf compositeByteBuf = Unpooled.compositeBuffer();
-        addUsedPageSize(byteBuf.writerIndex(), currentPageAvailableSize);
-        byteBuf.writeByte(2);
-        byteBuf.writeMedium(currentPageAvailableSize - ENTRY_HEADER_SIZE);
-        // next entry offset
-        byteBuf.writeInt(getNextPageOffset(byteBuf.writerIndex()) + PAGE_HEADER_SIZE);
-        // tag index
-        byteBuf.writeInt(tagIndex);
-        byteBuf.writerIndex(byteBuf.writerIndex() + ENTRY_HEADER_SIZE - 12);
-        compositeByteBuf.addComponent(byteBuf.slice(byteBuf.writerIndex(), currentPageAvailableSize - ENTRY_HEADER_SIZE));
-        byteBuf.writerIndex(byteBuf.writerIndex() + currentPageAvailableSize - ENTRY_HEADER_SIZE);
-
-        int leaveSize = needSize - (currentPageAvailableSize - ENTRY_HEADER_SIZE);
-        while (leaveSize > 0) {
-          // next page
-          pageIndex = getPageOffset(byteBuf.writerIndex());
-          if (pageIndex == byteBuf.writerIndex()) {
-            // Page Header: page size
-            byteBuf.writeInt(0);
-            // Page Header: reserve
-            byteBuf.writerIndex(byteBuf.writerIndex() + PAGE_HEADER_SIZE - 4);
+      while (true) {
+        int segmentCount;
+        try {
+          writeLock.lock();
+          long address = writeEntry(tagIndex, roaringBitmap, compressed);
+          if (address >= 0) {
+            BitSet changed = new BitSet();
+            changed.set(getSegmentId(address));
+            reclaim(changed);
+            persist(changed);
+            return address;
           }
+          segmentCount = generation.size();
+        } finally {
+          writeLock.unlock();
+        }
+        growSegments(segmentCount);
+      }
+    } finally {
+      if (compressed != null) {
+        compressed.release();
+      }
+    }
+  }
+
+  /**
+   * Write the bitmaps of the tag indexes like {@link #addRoaringBitmap(int, RoaringBitmap)}, under one lock and with
+   * one force of every changed segment at the end. The lock is only released while a new segment is mapped. If a bitmap
+   * can not be written, the entries already written by the call are deleted.
+   *
+   * @return the addresses of the entries, in the iteration order of the map.
+   */
+  public long[] addRoaringBitmaps(Map<Integer, RoaringBitmap> roaringBitmaps) throws Exception {
+    int[] tagIndexes = new int[roaringBitmaps.size()];
+    RoaringBitmap[] bitmaps = new RoaringBitmap[roaringBitmaps.size()];
+    int count = 0;
+    for (Map.Entry<Integer, RoaringBitmap> entry : roaringBitmaps.entrySet()) {
+      tagIndexes[count] = entry.getKey();
+      bitmaps[count] = entry.getValue();
+      count++;
+    }
+    long[] addresses = new long[count];
+    BitSet changed = new BitSet();
+    int size = 0;
+    try {
+      while (true) {
+        int segmentCount;
+        try {
+          writeLock.lock();
+          for (; size < count; size++) {
+            long address = writeEntry(tagIndexes[size], bitmaps[size]);
+            if (address < 0) {
+              break;
+            }
+            addresses[size] = address;
+            changed.set(getSegmentId(address));
+          }
+          if (size == count) {
+            reclaim(changed);
+            persist(changed);
+            return addresses;
+          }
+          segmentCount = generation.size();
+        } finally {
+          writeLock.unlock();
+        }
+        growSegments(segmentCount);
+      }
+    } catch (Exception e) {
+      try {
+        writeLock.lock();
+        for (int i = size - 1; i >= 0; i--) {
+          getSegment(addresses[i]).releaseChunks(getSegmentOffset(addresses[i]));
+        }
+        persist(changed);
+      } finally {
+        writeLock.unlock();
+      }
+      throw e;
+    }
+  }
 
-          int writeSize = Math.min(leaveSize, PAGE_SIZE - PAGE_HEADER_SIZE - ENTRY_HEADER_SIZE);
-          leaveSize = leaveSize - writeSize;
-          log.info("write entry offset: {}, size: {}", byteBuf.writerIndex(), writeSize);
+  /**
+   * Force the segment to disk and record the time it took.
+   */
+  private void force(BlockSegment segment) throws IOException {
+    long start = System.nanoTime();
+    segment.persist();
+    metrics.recordForce(System.nanoTime() - start);
+  }
 
-          addUsedPageSize(byteBuf.writerIndex(), writeSize + ENTRY_HEADER_SIZE);
-          byteBuf.writeByte(2);
-          byteBuf.writeMedium(writeSize);
-          // next entry offset
-          if (leaveSize > 0) {
-            byteBuf.writeInt(getNextPageOffset(byteBuf.writerIndex()) + PAGE_HEADER_SIZE);
-          } else {
-            byteBuf.writeInt(0);
+  private void recordRead(ByteBuf payload) {
+    int hops = payload instanceof CompositeByteBuf composite ? composite.numComponents() - 1 : 0;
+    metrics.recordRead(payload.readableBytes(), hops);
+  }
+
+  public BlockChannelMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * The ratio of the page space below the writer index of every segment not used by any entry, unused pages included.
+   * The space is given back by {@link BlockCompactor}, or reused by entries fitting in the free space of a page.
+   */
+  public double getFragmentationRatio() {
+    try {
+      readLock.lock();
+      long total = 0;
+      long used = 0;
+      for (BlockSegment segment : getSegments()) {
+        total += (long) segment.getPageCount() * (PAGE_SIZE - PAGE_HEADER_SIZE);
+        used += segment.getUsedSize();
+      }
+      return total == 0 ? 0 : 1 - (double) used / total;
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  private void persist(BitSet segmentIds) throws IOException {
+    BlockSegment[] current = getSegments();
+    for (int segmentId = segmentIds.nextSetBit(0); segmentId >= 0; segmentId = segmentIds.nextSetBit(segmentId + 1)) {
+      force(current[segmentId]);
+    }
+  }
+
+  /**
+   * Write the entry, compressing the bitmap when it reaches the compression threshold.
+   */
+  private long writeEntry(int tagIndex, RoaringBitmap roaringBitmap) throws IOException {
+    ByteBuf compressed = compress(roaringBitmap);
+    try {
+      return writeEntry(tagIndex, roaringBitmap, compressed);
+    } finally {
+      if (compressed != null) {
+        compressed.release();
+      }
+    }
+  }
+
+  /**
+   * Write the entry without forcing the segment, the caller holds the write lock.
+   *
+   * @param compressed the compressed bitmap, null to write the bitmap uncompressed.
+   * @return the address of the entry, -1 if the last segment is full and a segment must be added.
+   */
+  private long writeEntry(int tagIndex, RoaringBitmap roaringBitmap, ByteBuf compressed) throws IOException {
+    int rawSize = roaringBitmap.serializedSizeInBytes();
+    int needSize = compressed == null ? rawSize : compressed.readableBytes();
+    boolean contiguous = contiguousAllocation;
+    BlockSegment segment = null;
+    int entryOffset = -1;
+    if (BlockSegment.fitsInEmptyPage(needSize)) {
+      for (BlockSegment candidate : getSegments()) {
+        entryOffset = candidate.findFreeOffset(needSize);
+        if (entryOffset > 0) {
+          segment = candidate;
+          break;
+        }
+      }
+    }
+    if (segment == null) {
+      segment = getLastSegment();
+      entryOffset = segment.getAppendOffset(needSize, contiguous);
+    }
+    if (entryOffset < 0) {
+      int entryStart = BlockSegment.getEntryStart(BLOCK_HEADER_SIZE, needSize);
+      if (BlockSegment.getEntryEnd(entryStart, needSize, contiguous) + ENTRY_HEADER_SIZE > segmentSize) {
+        throw new MemMapSpaceExceedException("Entry size " + needSize + " exceeds the segment size " + segmentSize);
+      }
+      return -1;
+    }
+    // The segment has enough space to hold the data
+    writePayload(segment.layoutEntry(entryOffset, tagIndex, needSize, contiguous), roaringBitmap, compressed);
+    metrics.recordWrite(needSize);
+    segment.sealEntry(entryOffset, compressed == null ? 0 : rawSize);
+    int entryEnd = BlockSegment.getEntryEnd(entryOffset, needSize, contiguous);
+    if (entryEnd > segment.getWriterIndex()) {
+      segment.setWriterIndex(entryEnd);
+    }
+    return toAddress(segment.getId(), entryOffset);
+  }
+
+  /**
+   * Replace the bitmap stored at the address.
+   * <p>
+   * The new bitmap is written in place when it fits in the capacity of the existing entry (all pages of a continue
+   * entry included) and no pin holding views is open, chunks that are no longer needed are released. Otherwise the
+   * bitmap is appended as a new entry and the old entry is retired as moved, see {@link #pin()}.
+   *
+   * @return the address of the bitmap, which differs from the given address when the entry was relocated.
+   * @throws IllegalStateException if the entry was moved, by an update or by the compaction, the address must be
+   *                               looked up again.
+   */
+  public long updateRoaringBitmap(long address, RoaringBitmap roaringBitmap) throws Exception {
+    ByteBuf compressed = compress(roaringBitmap);
+    try {
+      int rawSize = roaringBitmap.serializedSizeInBytes();
+      int needSize = compressed == null ? rawSize : compressed.readableBytes();
+      synchronized (relocationLock) {
+        while (true) {
+          int segmentCount;
+          try {
+            writeLock.lock();
+            BlockSegment segment = getSegment(address);
+            int entryOffset = getSegmentOffset(address);
+            checkLive(segment, address);
+            BitSet changed = new BitSet();
+            changed.set(segment.getId());
+            // a view of the entry may be read under an open pin, its pages are not overwritten
+            if (needSize <= segment.getEntryCapacity(entryOffset) && !epoch.hasViewPins()) {
+              modCount.incrementAndGet();
+              writePayload(segment.resizeEntry(entryOffset, needSize), roaringBitmap, compressed);
+              metrics.recordWrite(needSize);
+              segment.sealEntry(entryOffset, compressed == null ? 0 : rawSize);
+              reclaim(changed);
+              persist(changed);
+              return address;
+            }
+            long newAddress = writeEntry(segment.getTagIndex(entryOffset), roaringBitmap, compressed);
+            if (newAddress >= 0) {
+              modCount.incrementAndGet();
+              retire(segment, entryOffset, true);
+              changed.set(getSegmentId(newAddress));
+              reclaim(changed);
+              persist(changed);
+              return newAddress;
+            }
+            segmentCount = generation.size();
+          } finally {
+            writeLock.unlock();
           }
-          // tag index
-          byteBuf.writeInt(tagIndex);
-          byteBuf.writerIndex(byteBuf.writerIndex() + ENTRY_HEADER_SIZE - 12);
-          compositeByteBuf.addComponent(byteBuf.slice(byteBuf.writerIndex(), writeSize));
-          byteBuf.writerIndex(byteBuf.writerIndex() + writeSize);
+          growSegments(segmentCount);
         }
-        roaringBitmap.serialize(new ByteBufOutputStream(compositeByteBuf));
-        updateBlockHeader(byteBuf.writerIndex());
-        persist();
       }
-      return result;
     } finally {
-      writeLock.unlock();
+      if (compressed != null) {
+        compressed.release();
+      }
     }
   }
 
-  public void updateRoaringBitmap(int offset, RoaringBitmap roaringBitmap) {
-    // todo
+  /**
+   * Throw if no live entry starts at the address, the caller holds the write lock.
+   */
+  private static void checkLive(BlockSegment segment, long address) {
+    int entryOffset = getSegmentOffset(address);
+    if (segment.isMoved(entryOffset)) {
+      throw new IllegalStateException("Entry moved, look the address up again: " + address);
+    }
+    if (!segment.isLive(entryOffset)) {
+      throw new IllegalArgumentException("No entry at address: " + address);
+    }
   }
 
-  public void deleteRoaringBitmap(int offset) {
-    // 1. update page header
-    // 2. align page content
+  /**
+   * Delete the entry at the address. The entry is retired as deleted, it is not read anymore, and once no reader may
+   * still read it the space of every chunk is subtracted from the used size of its page, the space is given back by
+   * {@link BlockCompactor}. Deleting a deleted entry does nothing.
+   *
+   * @throws IllegalStateException if the entry was moved, the address must be looked up again.
+   */
+  public void deleteRoaringBitmap(long address) throws IOException {
+    synchronized (relocationLock) {
+      try {
+        writeLock.lock();
+        BlockSegment segment = getSegment(address);
+        int entryOffset = getSegmentOffset(address);
+        if (segment.getFlag(entryOffset) < 1 || segment.isDeleted(entryOffset)) {
+          return;
+        }
+        checkLive(segment, address);
+        modCount.incrementAndGet();
+        retire(segment, entryOffset, false);
+        BitSet changed = new BitSet();
+        changed.set(segment.getId());
+        reclaim(changed);
+        persist(changed);
+      } finally {
+        writeLock.unlock();
+      }
+    }
   }
 
-  public RoaringBitmap getRoaringBitmap(int entryOffset) throws IOException {
-    if (entryOffset <= 0) {
+  public RoaringBitmap getRoaringBitmap(long address) throws IOException {
+    if (address < 0 || getSegmentOffset(address) <= 0) {
       return null;
     }
+    int counter = epoch.enter();
     try {
-      readLock.lock();
-      int flag = byteBuf.getUnsignedByte(entryOffset);
-      int size = byteBuf.getUnsignedMedium(entryOffset + 1);
-      int nextEntryOffset = byteBuf.getInt(entryOffset + 4);
+      return readRoaringBitmap(address);
+    } finally {
+      epoch.exit(counter);
+    }
+  }
 
-      if (size <= 0 || flag < 1) {
+  private RoaringBitmap readRoaringBitmap(long address) throws IOException {
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      ByteBuf copy = null;
+      int rawSize = 0;
+      boolean valid = false;
+      try {
+        BlockSegment segment = getSegment(address);
+        int entryOffset = getSegmentOffset(address);
+        ByteBuf payload = segment.getEntryPayload(entryOffset);
+        if (payload != null) {
+          rawSize = segment.getRawSize(entryOffset);
+          copy = copyPayload(payload);
+        }
+        valid = lock.validate(stamp);
+        if (valid && payload != null) {
+          recordRead(payload);
+        }
+      } catch (RuntimeException e) {
+        // a concurrent write may be seen half done, read again under the lock
+      }
+      if (valid) {
+        if (copy == null) {
+          return null; // Entry is deleted
+        }
+        try {
+          return toRoaringBitmap(copy, rawSize);
+        } finally {
+          copy.release();
+        }
+      }
+      if (copy != null) {
+        copy.release();
+      }
+    }
+    try {
+      readLock.lock();
+      BlockSegment segment = getSegment(address);
+      int entryOffset = getSegmentOffset(address);
+      ByteBuf payload = segment.getEntryPayload(entryOffset);
+      if (payload == null) {
         return null; // Entry is deleted
       }
-      ByteBuf sliceByteBuf = byteBuf.slice(entryOffset + ENTRY_HEADER_SIZE, size);
-
-      RoaringBitmap bitmap = new RoaringBitmap();
-
-      if (flag == 1) {
-        // Single page entry
-        log.info("read entry offset: {}, size: {}", entryOffset, size);
-        bitmap.deserialize(new ByteBufInputStream(sliceByteBuf));
-      } else if (flag == 2) {
-        log.info("read entry offset: {}, size: {}", entryOffset, size);
-        CompositeByteBuf compositeByteBuf = Unpooled.compositeBuffer();
-        compositeByteBuf.addComponent(sliceByteBuf);
-        while (flag == 2 && nextEntryOffset != 0) {
-          flag = byteBuf.getUnsignedByte(nextEntryOffset);
-          size = byteBuf.getUnsignedMedium(nextEntryOffset + 1);
-          log.info("read entry offset: {}, size: {}", nextEntryOffset, size);
-          compositeByteBuf.addComponent(byteBuf.slice(nextEntryOffset + ENTRY_HEADER_SIZE, size));
-          nextEntryOffset = byteBuf.getInt(nextEntryOffset + 4);
+      recordRead(payload);
+      return toRoaringBitmap(payload, segment.getRawSize(entryOffset));
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  /**
+   * A pooled copy of the payload, taken by an optimistic read before the payload is decoded.
+   */
+  private static ByteBuf copyPayload(ByteBuf payload) {
+    int length = payload.readableBytes();
+    ByteBuf copy = PooledByteBufAllocator.DEFAULT.directBuffer(length, length);
+    try {
+      return copy.writeBytes(payload, payload.readerIndex(), length);
+    } catch (RuntimeException e) {
+      copy.release();
+      throw e;
+    }
+  }
+
+  private static RoaringBitmap toRoaringBitmap(ByteBuf payload, int rawSize) throws IOException {
+    RoaringBitmap bitmap = new RoaringBitmap();
+    if (rawSize > 0) {
+      ByteBuf raw = decompress(payload, rawSize);
+      try {
+        bitmap.deserialize(new ByteBufInputStream(raw));
+      } finally {
+        raw.release();
+      }
+    } else {
+      bitmap.deserialize(new ByteBufInputStream(payload));
+    }
+    return bitmap;
+  }
+
+  /**
+   * A read only view of the bitmap stored at the address. The view of a single page or span entry is backed by the
+   * mapped pages, nothing is copied or deserialized. The view of a continue entry is backed by a copy of its chunks.
+   * <p>
+   * The view of a compressed entry is backed by a heap copy of the decompressed bitmap.
+   * <p>
+   * The view is stable while the pin is open. Once a view is taken with a pin no entry is updated in place until the
+   * pin is closed, an update is written as a new entry, and the pages of a deleted or moved entry are not reused, so the
+   * view reads the bitmap of the entry when the view was taken. The view must not be used after the pin is closed.
+   *
+   * @param pin a pin of this channel, taken before the address was looked up.
+   * @return null if there is no entry at the address.
+   */
+  public ImmutableRoaringBitmap getImmutableRoaringBitmap(long address, BlockPin pin) {
+    pin.view(epoch);
+    if (address < 0 || getSegmentOffset(address) <= 0) {
+      return null;
+    }
+    return readImmutableRoaringBitmap(address);
+  }
+
+  private ImmutableRoaringBitmap readImmutableRoaringBitmap(long address) {
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      try {
+        BlockSegment segment = getSegment(address);
+        int entryOffset = getSegmentOffset(address);
+        ByteBuf payload = segment.getEntryPayload(entryOffset);
+        int rawSize = payload == null ? 0 : segment.getRawSize(entryOffset);
+        // a compressed payload is copied, it is decompressed after the read is validated
+        ByteBuffer view = payload == null ? null : rawSize > 0 ? copyToHeap(payload) : payload.nioBuffer();
+        if (lock.validate(stamp)) {
+          if (view == null) {
+            return null; // Entry is deleted
+          }
+          recordRead(payload);
+          return rawSize > 0 ? decompressToHeap(view, rawSize) : new ImmutableRoaringBitmap(view);
         }
-        compositeByteBuf.writerIndex(compositeByteBuf.capacity());
-        bitmap.deserialize(new ByteBufInputStream(compositeByteBuf));
+      } catch (RuntimeException e) {
+        // a concurrent write may be seen half done, read again under the lock
       }
-      return bitmap;
+    }
+    try {
+      readLock.lock();
+      BlockSegment segment = getSegment(address);
+      int entryOffset = getSegmentOffset(address);
+      ByteBuf payload = segment.getEntryPayload(entryOffset);
+      if (payload == null) {
+        return null; // Entry is deleted
+      }
+      recordRead(payload);
+      if (segment.getRawSize(entryOffset) > 0) {
+        return decompressToHeap(payload.nioBuffer(), segment.getRawSize(entryOffset));
+      }
+      // a slice of the mapping gives a view of the mapped buffer, a composite is merged into a copy
+      return new ImmutableRoaringBitmap(payload.nioBuffer());
     } finally {
       readLock.unlock();
     }
   }
 
+  private static ByteBuffer copyToHeap(ByteBuf payload) {
+    byte[] bytes = new byte[payload.readableBytes()];
+    payload.getBytes(payload.readerIndex(), bytes);
+    return ByteBuffer.wrap(bytes);
+  }
+
+  private static ImmutableRoaringBitmap decompressToHeap(ByteBuffer source, int rawSize) {
+    ByteBuffer raw = ByteBuffer.allocate(rawSize);
+    DECOMPRESSOR.decompress(source, source.position(), raw, 0, rawSize);
+    return new ImmutableRoaringBitmap(raw);
+  }
+
+  protected int getEntryCapacity(long address) {
+    return getSegment(address).getEntryCapacity(getSegmentOffset(address));
+  }
+
   protected long getAvailableFileSize() throws Exception {
-    return fileChannel.size() - byteBuf.writerIndex();
+    BlockSegment segment = getLastSegment();
+    return segment.size() - segment.getWriterIndex();
   }
 
-  protected int getPageOffset(int offset) {
-    return Math.floorDiv(offset - BLOCK_HEADER_SIZE, PAGE_SIZE) * PAGE_SIZE + BLOCK_HEADER_SIZE;
+  protected long getPageOffset(long address) {
+    return toAddress(getSegmentId(address), BlockSegment.getPageOffset(getSegmentOffset(address)));
   }
 
-  protected int getNextPageOffset(int offset) {
-    return getPageOffset(offset) + PAGE_SIZE;
+  protected long getNextPageOffset(long address) {
+    return toAddress(getSegmentId(address), BlockSegment.getNextPageOffset(getSegmentOffset(address)));
   }
 
-  protected int getUsedPageSize(int offset) {
-    int pageIndex = Math.floorDiv(offset - BLOCK_HEADER_SIZE, PAGE_SIZE) * PAGE_SIZE + BLOCK_HEADER_SIZE;
-    return byteBuf.getInt(pageIndex);
+  protected int getUsedPageSize(long address) {
+    return getSegment(address).getUsedPageSize(getSegmentOffset(address));
+  }
+
+  protected void addUsedPageSize(long address, int addSize) {
+    getSegment(address).addUsedPageSize(getSegmentOffset(address), addSize);
+  }
+
+  protected int getPageEntryNumber(long address) {
+    return getSegment(address).getPageEntryNumber(getSegmentOffset(address));
+  }
+
+  /**
+   * Close the channel and unmap the segments, the retired ones included. The channel is marked closed first, a read or
+   * a write started after fails with an {@link IllegalStateException}. The segments are unmapped once the readers still
+   * reading them are gone, close waits for them and for the open pins. Views returned by
+   * {@link #getImmutableRoaringBitmap(long, BlockPin)} must not be used after.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      writeLock.lock();
+      if (closed) {
+        return;
+      }
+      closed = true;
+    } finally {
+      writeLock.unlock();
+    }
+    // an optimistic read entered before the channel was closed may still be reading a mapping
+    while (!epoch.isQuiescent()) {
+      LockSupport.parkNanos(CLOSE_WAIT_NANOS);
+    }
+    try {
+      writeLock.lock();
+      for (BlockSegment segment : generation.getSegments()) {
+        segment.close();
+      }
+      for (Retired segment : retired) {
+        segment.segment.close();
+      }
+      retired.clear();
+    } finally {
+      writeLock.unlock();
+    }
   }
 
-  protected void addUsedPageSize(int offset, int addSize) {
-    int pageIndex = Math.floorDiv(offset - BLOCK_HEADER_SIZE, PAGE_SIZE) * PAGE_SIZE + BLOCK_HEADER_SIZE;
-    int newSize = byteBuf.getInt(pageIndex) + addSize;
-    byteBuf.setInt(pageIndex, newSize);
+  // ------------------------------------------------------------------------------------------------
+  // compaction, driven by BlockCompactor
+  // ------------------------------------------------------------------------------------------------
+
+  /**
+   * Number of pages below the writer index, all segments included.
+   */
+  protected int getPageCount() {
+    try {
+      readLock.lock();
+      int pageCount = 0;
+      for (BlockSegment segment : getSegments()) {
+        pageCount += segment.getPageCount();
+      }
+      return pageCount;
+    } finally {
+      readLock.unlock();
+    }
   }
 
-  protected int getPageEntryNumber(int offset) {
-    int pageStartIndex = Math.floorDiv(offset - BLOCK_HEADER_SIZE, PAGE_SIZE) * PAGE_SIZE + BLOCK_HEADER_SIZE;
-    if (byteBuf.getInt(pageStartIndex) == 0) {
+  /**
+   * Number of pages below the writer index of the segment, 0 if the segment does not exist.
+   */
+  protected int getPageCount(int segmentId) {
+    try {
+      readLock.lock();
+      BlockSegment[] current = getSegments();
+      return segmentId < current.length ? current[segmentId].getPageCount() : 0;
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  protected int getPageSize() {
+    return PAGE_SIZE;
+  }
+
+  protected long getPageAddress(int segmentId, int pageNumber) {
+    return toAddress(segmentId, BlockSegment.getPageOffsetByNumber(pageNumber));
+  }
+
+  protected long getModCount() {
+    return modCount.get();
+  }
+
+  /**
+   * The addresses of the live entries having a chunk in the page, in ascending order. Null if the page holds chunks
+   * written before the entry head offset was recorded, such entries can not be moved.
+   */
+  protected long[] getPageEntryHeads(long pageAddress) {
+    try {
+      readLock.lock();
+      int segmentId = getSegmentId(pageAddress);
+      RoaringBitmap heads = getSegment(pageAddress).getPageEntryHeads(getSegmentOffset(pageAddress));
+      if (heads == null) {
+        return null;
+      }
+      long[] addresses = new long[heads.getCardinality()];
+      int i = 0;
+      for (int entryOffset : heads) {
+        addresses[i++] = toAddress(segmentId, entryOffset);
+      }
+      return addresses;
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  /**
+   * Payload size of the entry, 0 if it is deleted.
+   */
+  protected int getEntrySize(long address) {
+    try {
+      readLock.lock();
+      ByteBuf payload = getSegment(address).getEntryPayload(getSegmentOffset(address));
+      return payload == null ? 0 : payload.readableBytes();
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  protected void startCompaction() {
+    try {
+      writeLock.lock();
+      compactionWrtIdx = 0;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Copy the entry into unused pages before the limit address, in a lower segment or before the limit page of the same
+   * segment. The copy is filled from the write index of the compaction, or from the first run of unused pages large
+   * enough to hold it.
+   *
+   * @return the address of the copy, -1 if the entry is deleted or there is no room before the limit address.
+   */
+  protected long copyEntry(long address, long limitAddress) {
+    try {
+      writeLock.lock();
+      BlockSegment source = getSegment(address);
+      int entryOffset = getSegmentOffset(address);
+      ByteBuf payload = source.getEntryPayload(entryOffset);
+      if (payload == null) {
+        return -1;
+      }
+      int needSize = payload.readableBytes();
+      BlockSegment target = null;
+      int targetOffset = -1;
+      if (compactionWrtIdx > 0) {
+        BlockSegment segment = getSegment(compactionWrtIdx);
+        // entries may have been added in the page after the copies
+        int fillOffset = segment.getFillOffset(BlockSegment.getPageOffset(getSegmentOffset(compactionWrtIdx) - 1));
+        int offset = BlockSegment.getEntryStart(Math.max(fillOffset, getSegmentOffset(compactionWrtIdx)), needSize);
+        if (isUnused(segment, offset, needSize, limitAddress)) {
+          target = segment;
+          targetOffset = offset;
+        }
+      }
+      BlockSegment[] current = getSegments();
+      for (int segmentId = 0; target == null && segmentId <= getSegmentId(limitAddress); segmentId++) {
+        BlockSegment segment = current[segmentId];
+        int limitOffset = getLimitOffset(segment, limitAddress);
+        for (int page = BlockSegment.getPageOffsetByNumber(0); target == null && page < limitOffset; page += PAGE_SIZE) {
+          if (isUnused(segment, page + PAGE_HEADER_SIZE, needSize, limitAddress)) {
+            target = segment;
+            targetOffset = page + PAGE_HEADER_SIZE;
+          }
+        }
+      }
+      if (target == null) {
+        return -1;
+      }
+      target.layoutEntry(targetOffset, source.getTagIndex(entryOffset), needSize, false).writeBytes(payload);
+      target.sealEntry(targetOffset, source.getRawSize(entryOffset), source.getChecksum(entryOffset));
+      compactionWrtIdx = toAddress(target.getId(), BlockSegment.getEntryEnd(targetOffset, needSize, false));
+      return toAddress(target.getId(), targetOffset);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * The offset in the segment before which the compaction may write. In a lower segment it is the page of the writer
+   * index, a page partly written by appends is never filled by the compaction.
+   */
+  private int getLimitOffset(BlockSegment segment, long limitAddress) {
+    int limitSegmentId = getSegmentId(limitAddress);
+    if (segment.getId() > limitSegmentId) {
       return 0;
     }
-    int pageEndIndex = pageStartIndex + PAGE_SIZE;
-    int counter = 0;
-    int idx = pageStartIndex + PAGE_HEADER_SIZE;
-    while (idx < pageEndIndex) {
-      int size = byteBuf.getMedium(idx + 1);
-      if (size <= 0) {
-        break;
+    if (segment.getId() == limitSegmentId) {
+      return getSegmentOffset(limitAddress);
+    }
+    return BlockSegment.getPageOffset(segment.getWriterIndex());
+  }
+
+  private boolean isUnused(BlockSegment segment, int entryOffset, int needSize, long limitAddress) {
+    int filledOffset = getSegmentId(compactionWrtIdx) == segment.getId() ? getSegmentOffset(compactionWrtIdx) : 0;
+    return segment.isUnused(entryOffset, BlockSegment.getEntryEnd(entryOffset, needSize, false), getLimitOffset(segment, limitAddress), filledOffset);
+  }
+
+  /**
+   * Finish the relocation of entries copied by {@link #copyEntry(long, long)}. When none of the entries was changed
+   * since the copies were taken, the listener repoints them and the old entries are retired as moved, a reader that
+   * looked an old address up under a pin still reads it. Otherwise the copies, never seen by anyone, are deleted.
+   * <p>
+   * The listener is called without the block lock. Updates and deletes wait for the relocation lock, so no entry
+   * changes while the addresses are repointed, lookups and appends are not paused.
+   *
+   * @return whether the relocation was applied.
+   */
+  protected boolean commitRelocation(long[] oldAddresses, long[] newAddresses, int size, long expectedModCount,
+      BlockRelocationListener listener) throws IOException {
+    synchronized (relocationLock) {
+      boolean applied = modCount.get() == expectedModCount;
+      if (applied) {
+        listener.onRelocated(oldAddresses, newAddresses, size);
       }
-      counter++;
-      idx = idx + ENTRY_HEADER_SIZE + size;
+      try {
+        writeLock.lock();
+        BlockSegment[] current = getSegments();
+        BitSet changed = new BitSet();
+        for (int i = 0; i < size; i++) {
+          if (applied) {
+            retire(current[getSegmentId(oldAddresses[i])], getSegmentOffset(oldAddresses[i]), true);
+          } else {
+            current[getSegmentId(newAddresses[i])].releaseChunks(getSegmentOffset(newAddresses[i]));
+          }
+          changed.set(getSegmentId(oldAddresses[i]));
+          changed.set(getSegmentId(newAddresses[i]));
+        }
+        modCount.incrementAndGet();
+        reclaim(changed);
+        persist(changed);
+        return applied;
+      } finally {
+        writeLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Release the retired entries no reader may still read, remove the trailing segments holding no entry, the first
+   * segment is always kept, then move the writer index of the last segment back to the end of its last used page.
+   */
+  protected void trimChannelFile() throws IOException {
+    synchronized (growLock) {
+      try {
+        writeLock.lock();
+        compactionWrtIdx = 0;
+        BitSet changed = new BitSet();
+        reclaim(changed);
+        persist(changed);
+        BlockSegment[] current = getSegments();
+        int last = current.length - 1;
+        while (last > 0 && current[last].isEmpty()) {
+          last--;
+        }
+        if (last < current.length - 1) {
+          for (int segmentId = current.length - 1; segmentId > last; segmentId--) {
+            log.info("Remove block segment {}, file: {}", segmentId, getSegmentFile(segmentId));
+            current[segmentId].deleteFile();
+            retired.add(new Retired(epoch.getEpoch(), current[segmentId], -1));
+          }
+          publish(Arrays.copyOf(current, last + 1));
+          // unmap the removed segments when no reader is left
+          changed.clear();
+          reclaim(changed);
+          persist(changed);
+        }
+        if (current[last].trimWriterIndex()) {
+          force(current[last]);
+        }
+      } finally {
+        writeLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * An entry or a segment retired in the epoch, released once the readers that may still read it are gone.
+   */
+  private static final class Retired {
+
+    private final long epoch;
+    private final BlockSegment segment;
+    // the retired entry, -1 when the whole segment was removed
+    private final int entryOffset;
+
+    private Retired(long epoch, BlockSegment segment, int entryOffset) {
+      this.epoch = epoch;
+      this.segment = segment;
+      this.entryOffset = entryOffset;
     }
-    return counter;
   }
 
   protected void prettyDebug() throws IOException {
-    int idx = BLOCK_HEADER_SIZE;
-    int endIdx = byteBuf.writerIndex();
-    log.info("wrtIdx: {}", byteBuf.getInt(4));
-    while (idx < endIdx) {
-      log.info("Page idx: {}, page available size: {}, entry num: {}", (idx - BLOCK_HEADER_SIZE) / PAGE_SIZE, PAGE_SIZE - PAGE_HEADER_SIZE - byteBuf.getInt(idx), getPageEntryNumber(idx));
-      idx += PAGE_SIZE;
+    for (BlockSegment segment : getSegments()) {
+      segment.prettyDebug();
     }
+    log.info("fragmentation ratio: {}", getFragmentationRatio());
   }
 }
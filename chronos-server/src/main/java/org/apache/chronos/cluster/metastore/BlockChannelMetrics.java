@@ -0,0 +1,141 @@
+package org.apache.chronos.cluster.metastore;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a {@link BlockChannel}, updated on the read and write paths without locking. The values are read by
+ * {@link BlockChannel#getMetrics()}, a value read while entries are being written may lag behind the others.
+ */
+public class BlockChannelMetrics {
+
+  private final LongAdder entriesWritten = new LongAdder();
+  private final LongAdder bytesWritten = new LongAdder();
+  private final LongAdder entriesRead = new LongAdder();
+  private final LongAdder bytesRead = new LongAdder();
+  private final Histogram continuationHops = new Histogram();
+  private final Histogram forceNanos = new Histogram();
+
+  void recordWrite(int bytes) {
+    entriesWritten.increment();
+    bytesWritten.add(bytes);
+  }
+
+  void recordRead(int bytes, int hops) {
+    entriesRead.increment();
+    bytesRead.add(bytes);
+    continuationHops.record(hops);
+  }
+
+  void recordForce(long nanos) {
+    forceNanos.record(nanos);
+  }
+
+  /**
+   * Number of entries written by adds and updates, an entry copied by the compaction is not counted.
+   */
+  public long getEntriesWritten() {
+    return entriesWritten.sum();
+  }
+
+  /**
+   * Number of payload bytes written by adds and updates, after compression.
+   */
+  public long getBytesWritten() {
+    return bytesWritten.sum();
+  }
+
+  public long getEntriesRead() {
+    return entriesRead.sum();
+  }
+
+  /**
+   * Number of payload bytes read, before decompression.
+   */
+  public long getBytesRead() {
+    return bytesRead.sum();
+  }
+
+  /**
+   * Number of chunks followed after the first chunk of every entry read, 0 for a single page or span entry.
+   */
+  public Histogram getContinuationHops() {
+    return continuationHops;
+  }
+
+  /**
+   * Time spent forcing a segment to disk, in nanoseconds.
+   */
+  public Histogram getForceNanos() {
+    return forceNanos;
+  }
+
+  /**
+   * A histogram of non negative values in power of two buckets, bucket n holds the values in [2^(n-1), 2^n).
+   */
+  public static class Histogram {
+
+    private static final int BUCKET_NUM = 65;
+    private final LongAdder[] buckets = new LongAdder[BUCKET_NUM];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    Histogram() {
+      for (int i = 0; i < BUCKET_NUM; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    void record(long value) {
+      long recorded = Math.max(value, 0);
+      buckets[64 - Long.numberOfLeadingZeros(recorded)].increment();
+      count.increment();
+      sum.add(recorded);
+      max.accumulate(recorded);
+    }
+
+    public long getCount() {
+      return count.sum();
+    }
+
+    public long getSum() {
+      return sum.sum();
+    }
+
+    public long getMax() {
+      return max.get();
+    }
+
+    public double getMean() {
+      long n = count.sum();
+      return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * An upper bound of the value at the percentile, the upper bound of the bucket holding it.
+     *
+     * @param percentile in [0, 100].
+     */
+    public long getPercentile(double percentile) {
+      long[] counts = new long[BUCKET_NUM];
+      long total = 0;
+      for (int i = 0; i < BUCKET_NUM; i++) {
+        counts[i] = buckets[i].sum();
+        total += counts[i];
+      }
+      if (total == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(percentile / 100 * total);
+      long seen = 0;
+      for (int i = 0; i < BUCKET_NUM; i++) {
+        seen += counts[i];
+        if (seen >= Math.max(rank, 1)) {
+          return i == 0 ? 0 : Math.min((1L << Math.min(i, 63)) - 1, max.get());
+        }
+      }
+      return max.get();
+    }
+  }
+}
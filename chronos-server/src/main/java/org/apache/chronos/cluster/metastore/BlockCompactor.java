@@ -0,0 +1,123 @@
+package org.apache.chronos.cluster.metastore;
+
+import com.google.common.util.concurrent.RateLimiter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Background compaction of a {@link BlockChannel}.
+ * <p>
+ * Pages are visited from the end of the last segment, a page used less than the sparse ratio has its live entries
+ * copied into unused pages before it, in a lower segment or before it in the same segment. A page whose entries do not
+ * all fit keeps the rest of them and the pass goes on with the pages before it. The listener repoints the addresses of
+ * the moved entries, then the old entries are deleted. Once the last segments hold no entry they are removed.
+ * <p>
+ * Entries are copied one at a time, the block lock is released between two copies and the copied bytes are throttled,
+ * and the listener repoints the addresses without the block lock, so foreground lookups keep their latency.
+ */
+public class BlockCompactor implements Closeable {
+
+  private static final Logger log = LogManager.getLogger(BlockCompactor.class);
+
+  private static final double DEFAULT_SPARSE_RATIO = 0.5;
+  private final BlockChannel channel;
+  private final BlockRelocationListener listener;
+  private final double sparseRatio;
+  private final RateLimiter rateLimiter;
+  private ScheduledExecutorService executor;
+
+  public BlockCompactor(BlockChannel channel, BlockRelocationListener listener, long bytesPerSecond) {
+    this(channel, listener, DEFAULT_SPARSE_RATIO, bytesPerSecond);
+  }
+
+  /**
+   * @param sparseRatio    pages whose used size is below this ratio of the page size are compacted.
+   * @param bytesPerSecond the maximum number of bytes copied per second.
+   */
+  public BlockCompactor(BlockChannel channel, BlockRelocationListener listener, double sparseRatio, long bytesPerSecond) {
+    this.channel = channel;
+    this.listener = listener;
+    this.sparseRatio = sparseRatio;
+    this.rateLimiter = RateLimiter.create(bytesPerSecond);
+  }
+
+  /**
+   * Run a compaction periodically in a background thread.
+   */
+  public synchronized void start(long period, TimeUnit unit) {
+    if (executor != null) {
+      return;
+    }
+    executor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "block-compactor");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.scheduleWithFixedDelay(() -> {
+      try {
+        int moved = compact();
+        if (moved > 0) {
+          log.info("Block compacted, moved entries: {}", moved);
+        }
+      } catch (Exception e) {
+        log.error("Block compaction failed", e);
+      }
+    }, period, period, unit);
+  }
+
+  /**
+   * Run one compaction.
+   *
+   * @return number of moved entries.
+   */
+  public int compact() throws IOException {
+    channel.startCompaction();
+    int moved = 0;
+    for (int segmentId = channel.getSegmentCount() - 1; segmentId >= 0; segmentId--) {
+      // the first page of the block is never compacted, there is no room before it
+      int firstPage = segmentId == 0 ? 1 : 0;
+      for (int page = channel.getPageCount(segmentId) - 1; page >= firstPage; page--) {
+        long pageAddress = channel.getPageAddress(segmentId, page);
+        int usedPageSize = channel.getUsedPageSize(pageAddress);
+        if (usedPageSize == 0 || usedPageSize >= sparseRatio * channel.getPageSize()) {
+          continue;
+        }
+        long[] oldAddresses = channel.getPageEntryHeads(pageAddress);
+        if (oldAddresses == null || oldAddresses.length == 0) {
+          continue;
+        }
+        long modCount = channel.getModCount();
+        long[] newAddresses = new long[oldAddresses.length];
+        int size = 0;
+        for (long address : oldAddresses) {
+          rateLimiter.acquire(Math.max(1, channel.getEntrySize(address)));
+          long newAddress = channel.copyEntry(address, pageAddress);
+          if (newAddress < 0) {
+            // no room before this page for the entry, the page is kept, the smaller pages before it may still fit
+            break;
+          }
+          newAddresses[size] = newAddress;
+          size++;
+        }
+        if (size > 0 && channel.commitRelocation(oldAddresses, newAddresses, size, modCount, listener)) {
+          moved += size;
+        }
+      }
+    }
+    channel.trimChannelFile();
+    return moved;
+  }
+
+  @Override
+  public synchronized void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+}
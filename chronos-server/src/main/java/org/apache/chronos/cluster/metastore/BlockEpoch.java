@@ -0,0 +1,117 @@
+package org.apache.chronos.cluster.metastore;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Epoch based reclamation of a {@link BlockChannel}. A reader enters the current epoch before it reads a mapping and
+ * exits after, a writer retires what it unlinked with the current epoch and releases it once no reader that may still
+ * read it is left, see {@link #isReclaimable(long)}.
+ * <p>
+ * Readers are counted by the parity of the epoch they entered, in striped counters with a stripe per cache line, so
+ * readers of different threads do not write the same line. The epoch only advances when no reader of the previous
+ * epoch is left, so a reader is always counted in the current or the previous epoch.
+ * <p>
+ * Readers are lock free. The epoch is advanced by writers holding the block write lock.
+ */
+final class BlockEpoch {
+
+  // the counters of a stripe fill a cache line: the two parities and padding
+  private static final int STRIPE_LONGS = 8;
+  private static final int MAX_STRIPES = 256;
+  // epochs after the retire epoch before a retired object is released: the readers of the retire epoch and of the next
+  // one are gone. A reader of the next epoch may have looked up an address unlinked by the writer after the retire, the
+  // writer unlinks it before it leaves the epoch it retired it in
+  static final int GRACE_EPOCHS = 3;
+
+  private final int stripeMask;
+  private final AtomicLongArray counts;
+  private volatile long epoch;
+  // open pins holding views of the mapping, no entry is written in place while one is open
+  private final LongAdder viewPins = new LongAdder();
+
+  BlockEpoch() {
+    int stripes = Math.min(MAX_STRIPES, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1) << 1);
+    this.stripeMask = stripes - 1;
+    this.counts = new AtomicLongArray(stripes * STRIPE_LONGS);
+  }
+
+  /**
+   * Enter the current epoch.
+   *
+   * @return the counter of the reader, passed to {@link #exit(int)}.
+   */
+  int enter() {
+    int stripe = ((int) Thread.currentThread().threadId() & stripeMask) * STRIPE_LONGS;
+    while (true) {
+      long current = epoch;
+      int counter = stripe + (int) (current & 1);
+      counts.getAndIncrement(counter);
+      if (epoch == current) {
+        return counter;
+      }
+      // the epoch advanced before the reader was counted, a writer may have missed it
+      counts.getAndDecrement(counter);
+    }
+  }
+
+  void exit(int counter) {
+    counts.getAndDecrement(counter);
+  }
+
+  long getEpoch() {
+    return epoch;
+  }
+
+  /**
+   * Advance the epoch when no reader of the previous epoch is left, the caller holds the block write lock.
+   *
+   * @return whether the epoch advanced.
+   */
+  boolean tryAdvance() {
+    long current = epoch;
+    if (count((int) ((current + 1) & 1)) != 0) {
+      return false;
+    }
+    epoch = current + 1;
+    return true;
+  }
+
+  /**
+   * Whether an object retired in the epoch can be released, no reader that may still read it is left.
+   */
+  boolean isReclaimable(long retiredEpoch) {
+    return epoch - retiredEpoch >= GRACE_EPOCHS;
+  }
+
+  void addViewPin() {
+    viewPins.increment();
+  }
+
+  void removeViewPin() {
+    viewPins.decrement();
+  }
+
+  /**
+   * Whether a pin holding views is open, the caller holds the block write lock. A view is taken after its pin is
+   * counted, so a writer either sees the pin or the view is read after the write.
+   */
+  boolean hasViewPins() {
+    return viewPins.sum() != 0;
+  }
+
+  /**
+   * Whether no reader is in any epoch.
+   */
+  boolean isQuiescent() {
+    return count(0) == 0 && count(1) == 0;
+  }
+
+  private long count(int parity) {
+    long count = 0;
+    for (int counter = parity; counter < counts.length(); counter += STRIPE_LONGS) {
+      count += counts.get(counter);
+    }
+    return count;
+  }
+}
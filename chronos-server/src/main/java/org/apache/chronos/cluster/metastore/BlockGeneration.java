@@ -0,0 +1,32 @@
+package org.apache.chronos.cluster.metastore;
+
+/**
+ * The segments of a {@link BlockChannel} at a point in time. A new generation is published when a segment is added or
+ * removed, a reader takes the segment array of the current generation without holding the block lock.
+ * <p>
+ * A segment is mapped once and never remapped. A reader enters a {@link BlockEpoch} before it takes the segment array,
+ * a segment removed from the generation is retired and unmapped once no reader that may have taken an older generation
+ * is left.
+ */
+final class BlockGeneration {
+
+  private final long version;
+  private final BlockSegment[] segments;
+
+  BlockGeneration(long version, BlockSegment[] segments) {
+    this.version = version;
+    this.segments = segments;
+  }
+
+  long getVersion() {
+    return version;
+  }
+
+  BlockSegment[] getSegments() {
+    return segments;
+  }
+
+  int size() {
+    return segments.length;
+  }
+}
@@ -0,0 +1,62 @@
+package org.apache.chronos.cluster.metastore;
+
+/**
+ * {@link TagsIndexChannel#getBlockOffsets} 的结果，第 i 个位置对应第 i 个标签，用基本类型数组保存，不为每个标签创建对象
+ */
+public class BlockOffsets {
+
+  private final int[] blockIds;
+  private final int[] blockOffsets;
+  private final boolean[] found;
+
+  BlockOffsets(int size) {
+    this.blockIds = new int[size];
+    this.blockOffsets = new int[size];
+    this.found = new boolean[size];
+  }
+
+  void set(int index, int blockId, int blockOffset) {
+    blockIds[index] = blockId;
+    blockOffsets[index] = blockOffset;
+    found[index] = true;
+  }
+
+  void setAbsent(int index) {
+    blockIds[index] = 0;
+    blockOffsets[index] = 0;
+    found[index] = false;
+  }
+
+  public int size() {
+    return found.length;
+  }
+
+  /**
+   * 标签是否存在，不存在时块ID和偏移量为 0
+   */
+  public boolean isFound(int index) {
+    return found[index];
+  }
+
+  public int getBlockId(int index) {
+    return blockIds[index];
+  }
+
+  public int getBlockOffset(int index) {
+    return blockOffsets[index];
+  }
+
+  /**
+   * 块ID数组，调用方不要修改
+   */
+  public int[] getBlockIds() {
+    return blockIds;
+  }
+
+  /**
+   * 偏移量数组，调用方不要修改
+   */
+  public int[] getBlockOffsets() {
+    return blockOffsets;
+  }
+}
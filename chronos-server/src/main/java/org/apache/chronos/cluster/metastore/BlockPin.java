@@ -0,0 +1,52 @@
+package org.apache.chronos.cluster.metastore;
+
+/**
+ * A pin of a {@link BlockChannel}, taken by {@link BlockChannel#pin()}. While it is held nothing the channel retires
+ * after the pin was taken is released: the pages of a deleted or moved entry are not reused and the mapping of a removed
+ * segment stays mapped. Once a view is taken with the pin, see {@link BlockChannel#getImmutableRoaringBitmap(long,
+ * BlockPin)}, no entry is updated in place until the pin is closed.
+ * <p>
+ * A pin must be closed, an open pin keeps everything retired since it was taken and blocks
+ * {@link BlockChannel#close()}. Closing it twice does nothing.
+ */
+public final class BlockPin implements AutoCloseable {
+
+  private final BlockEpoch epoch;
+  private final int counter;
+  private boolean closed;
+  private boolean viewing;
+
+  BlockPin(BlockEpoch epoch) {
+    this.epoch = epoch;
+    this.counter = epoch.enter();
+  }
+
+  /**
+   * Count the pin as holding views, before a view is taken with it.
+   *
+   * @param owner the epoch of the channel the view is taken from.
+   */
+  void view(BlockEpoch owner) {
+    if (owner != epoch) {
+      throw new IllegalArgumentException("Pin of another block channel");
+    }
+    if (closed) {
+      throw new IllegalStateException("Pin is closed");
+    }
+    if (!viewing) {
+      viewing = true;
+      epoch.addViewPin();
+    }
+  }
+
+  @Override
+  public void close() {
+    if (!closed) {
+      closed = true;
+      if (viewing) {
+        epoch.removeViewPin();
+      }
+      epoch.exit(counter);
+    }
+  }
+}
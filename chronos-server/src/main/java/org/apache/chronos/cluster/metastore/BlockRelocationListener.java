@@ -0,0 +1,20 @@
+package org.apache.chronos.cluster.metastore;
+
+import java.io.IOException;
+
+/**
+ * Notified by {@link BlockCompactor} when entries of a block are moved, so the addresses referring to them can be
+ * repointed. It is called without the block lock while updates and deletes of the block wait, before the old entries
+ * are deleted.
+ */
+public interface BlockRelocationListener {
+
+  /**
+   * Addresses are built by {@link BlockChannel#toAddress(int, int)}, an entry can be moved to another segment.
+   *
+   * @param oldAddresses the entry addresses before the move, only the first size elements are used.
+   * @param newAddresses the entry addresses after the move, only the first size elements are used.
+   * @param size         number of moved entries.
+   */
+  void onRelocated(long[] oldAddresses, long[] newAddresses, int size) throws IOException;
+}
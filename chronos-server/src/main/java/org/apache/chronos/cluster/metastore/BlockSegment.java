@@ -0,0 +1,936 @@
+package org.apache.chronos.cluster.metastore;
+
+import static org.apache.chronos.cluster.metastore.BlockChannel.BLOCK_HEADER_SIZE;
+import static org.apache.chronos.cluster.metastore.BlockChannel.ENTRY_CAPACITY_OFFSET;
+import static org.apache.chronos.cluster.metastore.BlockChannel.ENTRY_CHECKSUM_OFFSET;
+import static org.apache.chronos.cluster.metastore.BlockChannel.ENTRY_HEADER_SIZE;
+import static org.apache.chronos.cluster.metastore.BlockChannel.ENTRY_HEAD_OFFSET;
+import static org.apache.chronos.cluster.metastore.BlockChannel.ENTRY_LENGTH_OFFSET;
+import static org.apache.chronos.cluster.metastore.BlockChannel.ENTRY_NEXT_OFFSET;
+import static org.apache.chronos.cluster.metastore.BlockChannel.ENTRY_RAW_SIZE_OFFSET;
+import static org.apache.chronos.cluster.metastore.BlockChannel.ENTRY_TAG_INDEX_OFFSET;
+import static org.apache.chronos.cluster.metastore.BlockChannel.FLAG_DELETED;
+import static org.apache.chronos.cluster.metastore.BlockChannel.FLAG_KIND_MASK;
+import static org.apache.chronos.cluster.metastore.BlockChannel.FLAG_MOVED;
+import static org.apache.chronos.cluster.metastore.BlockChannel.MAGIC_VALUE;
+import static org.apache.chronos.cluster.metastore.BlockChannel.PAGE_FILL_OFFSET;
+import static org.apache.chronos.cluster.metastore.BlockChannel.PAGE_HEADER_SIZE;
+import static org.apache.chronos.cluster.metastore.BlockChannel.PAGE_SIZE;
+import static org.apache.chronos.cluster.metastore.BlockChannel.PAGE_SPAN_OFFSET;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.TreeSet;
+import java.util.zip.CRC32C;
+import org.apache.chronos.common.FileUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ * A segment file of a {@link BlockChannel}, see {@link BlockChannel} for the layout. The file has a fixed size, it is
+ * mapped once when the segment is opened and never remapped.
+ * <p>
+ * A segment is not thread safe, the channel locks it. A segment is unmapped when it is closed, the channel closes a
+ * removed segment once no reader may still read it.
+ */
+class BlockSegment {
+
+  private static final Logger log = LogManager.getLogger(BlockSegment.class);
+
+  private final int id;
+  private final File file;
+  private final FileChannel fileChannel;
+  private final MappedByteBuffer mappedByteBuffer;
+  private final ByteBuf byteBuf;
+  private final long size;
+  // pages covered by a span entry after its first page, their page header is payload
+  private final BitSet spannedPages = new BitSet();
+  // number of whole pages of the segment file
+  private final int pageNum;
+  // pages below the writer index with free space, keyed by the free payload size in the high 32 bits and the page number
+  // in the low 32 bits, so the best fit is a single ceiling lookup. Rebuilt from the page headers when the segment is
+  // opened
+  private final TreeSet<Long> freePages = new TreeSet<>();
+  // free payload size of every page in the free pages, 0 if the page has no free space
+  private final int[] pageFreeSizes;
+  // number of retired entries not yet released
+  private int retiredCount;
+
+  /**
+   * @param size the size of the segment file, the file is extended to it by the mapping, -1 to keep the file size.
+   */
+  private BlockSegment(int id, File file, long size) throws IOException {
+    this.id = id;
+    this.file = file;
+    this.fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+    this.size = size < 0 ? fileChannel.size() : size;
+    this.mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, this.size);
+    this.byteBuf = Unpooled.wrappedBuffer(mappedByteBuffer);
+    byteBuf.readerIndex(0);
+    byteBuf.writerIndex(getWrtIdx());
+    this.pageNum = (int) ((this.size - BLOCK_HEADER_SIZE) / PAGE_SIZE);
+    this.pageFreeSizes = new int[pageNum];
+    loadPages();
+  }
+
+  private void loadPages() {
+    int pageCount = getPageCount();
+    for (int page = 0; page < pageCount; page++) {
+      int pageOffset = getPageOffsetByNumber(page);
+      int spanPageNum = byteBuf.getInt(pageOffset + PAGE_SPAN_OFFSET);
+      if (spanPageNum > 1 && byteBuf.getInt(pageOffset) != 0 && getFlag(pageOffset + PAGE_HEADER_SIZE) == 3) {
+        spannedPages.set(page + 1, page + spanPageNum);
+        page += spanPageNum - 1;
+      } else if (byteBuf.getInt(pageOffset) != 0 && byteBuf.getInt(pageOffset + PAGE_FILL_OFFSET) == 0) {
+        // written before the fill offset was recorded
+        byteBuf.setInt(pageOffset + PAGE_FILL_OFFSET, walkFillOffset(pageOffset));
+      }
+    }
+    for (int page = 0; page < pageCount; page++) {
+      updateFreeSpace(page);
+    }
+  }
+
+  /**
+   * The end of the last entry of the page, found by walking the entries from the start of the page.
+   */
+  private int walkFillOffset(int pageOffset) {
+    int pageEndIndex = pageOffset + PAGE_SIZE;
+    int idx = pageOffset + PAGE_HEADER_SIZE;
+    while (idx + ENTRY_HEADER_SIZE <= pageEndIndex) {
+      int capacity = getChunkCapacity(idx);
+      if (capacity <= 0) {
+        break;
+      }
+      idx = idx + ENTRY_HEADER_SIZE + capacity;
+    }
+    return Math.min(idx, pageEndIndex);
+  }
+
+  static BlockSegment create(int id, File file, long size) throws IOException {
+    // unused pages must have a zero page header, a file left by a removed segment is not reused
+    Files.deleteIfExists(file.toPath());
+    BlockSegment segment = new BlockSegment(id, file, size);
+    segment.setWriterIndex(BLOCK_HEADER_SIZE);
+    segment.persist();
+    return segment;
+  }
+
+  static BlockSegment open(int id, File file) throws IOException {
+    BlockSegment segment = new BlockSegment(id, file, -1);
+    segment.recover();
+    segment.releaseRetiredEntries();
+    return segment;
+  }
+
+  /**
+   * Validate the entries written after the checkpoint, they may be torn by a crash before the segment was persisted.
+   * An entry whose checksum does not match is released. The entries below the checkpoint were persisted and are not
+   * read, so opening a segment does not scan the whole file.
+   * <p>
+   * A segment written before the checksums were recorded has no checkpoint, the checksum of every entry is computed
+   * once.
+   */
+  private void recover() throws IOException {
+    int checkpoint = getCheckpoint();
+    int wrtIdx = byteBuf.writerIndex();
+    if (checkpoint >= wrtIdx) {
+      return;
+    }
+    boolean upgrade = checkpoint == 0;
+    int released = 0;
+    int checked = 0;
+    for (int page = upgrade ? 0 : getPageNumber(checkpoint); page < getPageCount(); page++) {
+      int pageOffset = getPageOffsetByNumber(page);
+      if (byteBuf.getInt(pageOffset) == 0 || isSpanned(pageOffset)) {
+        continue;
+      }
+      int pageEndIndex = pageOffset + PAGE_SIZE;
+      int idx = pageOffset + PAGE_HEADER_SIZE;
+      while (idx + ENTRY_HEADER_SIZE <= pageEndIndex) {
+        int capacity = getChunkCapacity(idx);
+        if (capacity <= 0) {
+          break;
+        }
+        if (byteBuf.getUnsignedByte(idx) > 0 && byteBuf.getInt(idx + ENTRY_HEAD_OFFSET) == 0) {
+          checked++;
+          if (upgrade) {
+            byteBuf.setInt(idx + ENTRY_CHECKSUM_OFFSET, computeChecksum(idx));
+          } else if (!isChecksumValid(idx)) {
+            log.warn("Release torn entry of segment {}, offset: {}, tag index: {}", id, idx, getTagIndex(idx));
+            releaseTornEntry(idx);
+            released++;
+          }
+        }
+        idx = idx + ENTRY_HEADER_SIZE + capacity;
+      }
+    }
+    persist();
+    log.info("Recover block segment {} from offset {}, entries checked: {}, released: {}", id, checkpoint, checked, released);
+  }
+
+  private boolean isChecksumValid(int entryOffset) {
+    try {
+      return byteBuf.getInt(entryOffset + ENTRY_CHECKSUM_OFFSET) == computeChecksum(entryOffset);
+    } catch (RuntimeException e) {
+      // a torn chunk header points out of the segment
+      return false;
+    }
+  }
+
+  private void releaseTornEntry(int entryOffset) {
+    try {
+      releaseChunks(entryOffset);
+    } catch (RuntimeException e) {
+      byteBuf.setByte(entryOffset, 0);
+    }
+  }
+
+  /**
+   * Release the entries retired before the segment was closed, the channel releases a retired entry once no reader may
+   * still read it, a crash may come before. Only the pages from the first page holding a retired entry are walked, the
+   * segment is not read when no entry was retired.
+   */
+  private void releaseRetiredEntries() throws IOException {
+    int retiredOffset = getRetiredOffset();
+    if (retiredOffset <= 0) {
+      return;
+    }
+    int released = 0;
+    for (int page = getPageNumber(retiredOffset); page < getPageCount(); page++) {
+      int pageOffset = getPageOffsetByNumber(page);
+      if (byteBuf.getInt(pageOffset) == 0 || isSpanned(pageOffset)) {
+        continue;
+      }
+      int pageEndIndex = pageOffset + PAGE_SIZE;
+      int idx = pageOffset + PAGE_HEADER_SIZE;
+      while (idx + ENTRY_HEADER_SIZE <= pageEndIndex) {
+        int capacity = getChunkCapacity(idx);
+        if (capacity <= 0) {
+          break;
+        }
+        if (isRetired(idx)) {
+          releaseChunks(idx);
+          released++;
+        }
+        idx = idx + ENTRY_HEADER_SIZE + capacity;
+      }
+    }
+    byteBuf.setInt(12, 0);
+    persist();
+    log.info("Release retired entries of block segment {} from offset {}, released: {}", id, retiredOffset, released);
+  }
+
+  /**
+   * The page offset of the first page holding a retired entry, 0 if no entry is retired.
+   */
+  private int getRetiredOffset() {
+    return byteBuf.getInt(12);
+  }
+
+  /**
+   * The writer index when the segment was last persisted, the entries written from it on may not be on disk. 0 if the
+   * segment was written before the checkpoint was recorded.
+   */
+  private int getCheckpoint() {
+    return byteBuf.getInt(8);
+  }
+
+  /**
+   * Move the checkpoint back to the page of an entry written below it, and force the block header before the entry is
+   * written, so a torn entry is always validated when the segment is opened.
+   */
+  private void markUnverified(int entryOffset) {
+    if (entryOffset >= getCheckpoint()) {
+      return;
+    }
+    byteBuf.setInt(8, getPageOffset(entryOffset));
+    mappedByteBuffer.force(0, BLOCK_HEADER_SIZE);
+  }
+
+  int getId() {
+    return id;
+  }
+
+  long size() {
+    return size;
+  }
+
+  int getWriterIndex() {
+    return byteBuf.writerIndex();
+  }
+
+  void setWriterIndex(int wrtIdx) {
+    int pageCount = getPageCount();
+    byteBuf.writerIndex(wrtIdx);
+    updateBlockHeader(wrtIdx);
+    // pages entering or leaving the range below the writer index
+    int newPageCount = getPageCount();
+    for (int page = Math.min(pageCount, newPageCount); page < Math.max(pageCount, newPageCount); page++) {
+      updateFreeSpace(page);
+    }
+  }
+
+  private void updateBlockHeader(int wrtIdx) {
+    byteBuf.setInt(0, MAGIC_VALUE);
+    byteBuf.setInt(4, wrtIdx);
+  }
+
+  private int getWrtIdx() {
+    return byteBuf.getInt(4);
+  }
+
+  void persist() throws IOException {
+    mappedByteBuffer.force();
+    fileChannel.force(true);
+    // the entries below the writer index are on disk, the checkpoint itself is forced by the next persist
+    byteBuf.setInt(8, byteBuf.writerIndex());
+    if (retiredCount == 0) {
+      // the released entries are on disk as well
+      byteBuf.setInt(12, 0);
+    }
+  }
+
+  /**
+   * Close the file channel and unmap the segment.
+   */
+  void close() {
+    FileUtil.clean(mappedByteBuffer);
+    try {
+      fileChannel.close();
+    } catch (IOException e) {
+      log.error("Close block segment {} failed", id, e);
+    }
+  }
+
+  /**
+   * Delete the segment file, the mapping stays valid until the segment is closed.
+   */
+  void deleteFile() throws IOException {
+    Files.deleteIfExists(file.toPath());
+  }
+
+  /**
+   * The offset of an entry of the given size when it is appended from the writer index, -1 if the segment has no room
+   * for it. An entry fitting in a page that does not fit in the rest of the current page starts on the next page, the
+   * rest of the page is left to smaller entries. A larger entry is a chain starting in the rest of the current page, or
+   * a span starting on the next page with the contiguous allocation.
+   */
+  int getAppendOffset(int needSize, boolean contiguous) {
+    int wrtIdx = byteBuf.writerIndex();
+    int entryOffset = getEntryStart(wrtIdx, needSize);
+    if ((contiguous || fitsInEmptyPage(needSize)) && !fitsInPage(entryOffset, needSize)
+        && entryOffset != getPageOffset(entryOffset) + PAGE_HEADER_SIZE) {
+      entryOffset = getNextPageOffset(entryOffset) + PAGE_HEADER_SIZE;
+    }
+    return getEntryEnd(entryOffset, needSize, contiguous) + ENTRY_HEADER_SIZE <= size ? entryOffset : -1;
+  }
+
+  static boolean fitsInPage(int entryOffset, int needSize) {
+    return needSize + ENTRY_HEADER_SIZE <= getNextPageOffset(entryOffset) - entryOffset;
+  }
+
+  static boolean fitsInEmptyPage(int needSize) {
+    return needSize + ENTRY_HEADER_SIZE <= PAGE_SIZE - PAGE_HEADER_SIZE;
+  }
+
+  /**
+   * The offset of an entry of the given size written in the free space of a page below the writer index, the page with
+   * the smallest free space large enough is used, the lowest one first. -1 if no page has enough free space.
+   */
+  int findFreeOffset(int needSize) {
+    Long key = freePages.ceiling(getFreePageKey(Math.max(needSize, 1), 0));
+    return key == null ? -1 : getFillOffset(getPageOffsetByNumber((int) key.longValue()));
+  }
+
+  private static long getFreePageKey(int freeSize, int page) {
+    return (long) freeSize << 32 | page;
+  }
+
+  /**
+   * The offset after the last entry of the page, where the next entry of the page is written.
+   */
+  int getFillOffset(int pageOffset) {
+    if (byteBuf.getInt(pageOffset) == 0) {
+      return pageOffset + PAGE_HEADER_SIZE;
+    }
+    return byteBuf.getInt(pageOffset + PAGE_FILL_OFFSET);
+  }
+
+  /**
+   * The largest payload size of an entry written at the fill offset of the page.
+   */
+  private int getPageFreeSize(int pageOffset) {
+    return pageOffset + PAGE_SIZE - getFillOffset(pageOffset) - ENTRY_HEADER_SIZE;
+  }
+
+  /**
+   * Re-key the page by its free space, a page above the writer index or covered by a span entry has no free space.
+   */
+  private void updateFreeSpace(int page) {
+    if (page >= pageNum) {
+      return;
+    }
+    int freeSize = 0;
+    if (page < getPageCount() && !spannedPages.get(page)) {
+      freeSize = Math.max(0, getPageFreeSize(getPageOffsetByNumber(page)));
+    }
+    int oldFreeSize = pageFreeSizes[page];
+    if (oldFreeSize == freeSize) {
+      return;
+    }
+    if (oldFreeSize > 0) {
+      freePages.remove(getFreePageKey(oldFreeSize, page));
+    }
+    if (freeSize > 0) {
+      freePages.add(getFreePageKey(freeSize, page));
+    }
+    pageFreeSizes[page] = freeSize;
+  }
+
+  /**
+   * Number of pages of a span entry of the given size.
+   */
+  static int getSpanPageNum(int needSize) {
+    return Math.floorDiv(PAGE_HEADER_SIZE + ENTRY_HEADER_SIZE + needSize + PAGE_SIZE - 1, PAGE_SIZE);
+  }
+
+  /**
+   * The offset of the first entry header when an entry is written from the write index. The page header is skipped
+   * when the write index is at the start of a page, and a page tail too small to hold any payload is skipped as well.
+   */
+  static int getEntryStart(int wrtIdx, int needSize) {
+    if (getPageOffset(wrtIdx) == wrtIdx) {
+      return wrtIdx + PAGE_HEADER_SIZE;
+    }
+    int currentPageAvailableSize = getNextPageOffset(wrtIdx) - wrtIdx;
+    if (needSize + ENTRY_HEADER_SIZE > currentPageAvailableSize && currentPageAvailableSize <= ENTRY_HEADER_SIZE) {
+      return getNextPageOffset(wrtIdx) + PAGE_HEADER_SIZE;
+    }
+    return wrtIdx;
+  }
+
+  /**
+   * The write index after an entry of the given size is written from the entry offset, without writing anything. A
+   * span entry ends at the end of its last page, the rest of the page is part of the entry.
+   */
+  static int getEntryEnd(int entryOffset, int needSize, boolean contiguous) {
+    if (contiguous && !fitsInPage(entryOffset, needSize)) {
+      return getPageOffset(entryOffset) + getSpanPageNum(needSize) * PAGE_SIZE;
+    }
+    int currentPageAvailableSize = getNextPageOffset(entryOffset) - entryOffset;
+    if (needSize + ENTRY_HEADER_SIZE <= currentPageAvailableSize) {
+      return entryOffset + ENTRY_HEADER_SIZE + needSize;
+    }
+    int leaveSize = needSize - (currentPageAvailableSize - ENTRY_HEADER_SIZE);
+    int idx = getNextPageOffset(entryOffset) + PAGE_HEADER_SIZE;
+    while (true) {
+      int writeSize = Math.min(leaveSize, PAGE_SIZE - PAGE_HEADER_SIZE - ENTRY_HEADER_SIZE);
+      leaveSize = leaveSize - writeSize;
+      if (leaveSize == 0) {
+        return idx + ENTRY_HEADER_SIZE + writeSize;
+      }
+      idx = getNextPageOffset(idx) + PAGE_HEADER_SIZE;
+    }
+  }
+
+  /**
+   * Write the entry headers of an entry starting at the entry offset, a single page entry when it fits in the current
+   * page, otherwise a chain of continue chunks filling the current page and the following pages. The following pages
+   * must be unused.
+   *
+   * <p>
+   * With the contiguous allocation an entry that does not fit in the page is a span entry, the entry offset must be the
+   * first entry offset of a page.
+   *
+   * @return the payload area of the entry, with writer index 0.
+   */
+  ByteBuf layoutEntry(int entryOffset, int tagIndex, int needSize, boolean contiguous) {
+    markUnverified(entryOffset);
+    if (contiguous && !fitsInPage(entryOffset, needSize)) {
+      return layoutSpan(entryOffset, tagIndex, needSize);
+    }
+    int currentPageAvailableSize = getNextPageOffset(entryOffset) - entryOffset;
+    // single page
+    if (needSize + ENTRY_HEADER_SIZE <= currentPageAvailableSize) {
+      writeChunkHeader(entryOffset, 1, needSize, 0, tagIndex, 0);
+      terminatePage(entryOffset + ENTRY_HEADER_SIZE + needSize);
+      return byteBuf.slice(entryOffset + ENTRY_HEADER_SIZE, needSize).writerIndex(0);
+    }
+    CompositeByteBuf compositeByteBuf = Unpooled.compositeBuffer();
+    int idx = entryOffset;
+    int writeSize = currentPageAvailableSize - ENTRY_HEADER_SIZE;
+    int leaveSize = needSize;
+    while (true) {
+      leaveSize = leaveSize - writeSize;
+      // the page header of the next page is left as it is: an unused page has a zero page header.
+      int nextEntryOffset = leaveSize > 0 ? getNextPageOffset(idx) + PAGE_HEADER_SIZE : 0;
+      writeChunkHeader(idx, 2, writeSize, nextEntryOffset, tagIndex, idx == entryOffset ? 0 : entryOffset);
+      compositeByteBuf.addComponent(byteBuf.slice(idx + ENTRY_HEADER_SIZE, writeSize));
+      if (leaveSize == 0) {
+        terminatePage(idx + ENTRY_HEADER_SIZE + writeSize);
+        return compositeByteBuf;
+      }
+      idx = nextEntryOffset;
+      writeSize = Math.min(leaveSize, PAGE_SIZE - PAGE_HEADER_SIZE - ENTRY_HEADER_SIZE);
+    }
+  }
+
+  private ByteBuf layoutSpan(int entryOffset, int tagIndex, int needSize) {
+    int pageOffset = getPageOffset(entryOffset);
+    int spanPageNum = getSpanPageNum(needSize);
+    writeChunkHeader(entryOffset, 3, 0, 0, tagIndex, 0);
+    // the entry size field has 3 bytes, the capacity and the length of a span entry are set here
+    byteBuf.setInt(entryOffset + ENTRY_CAPACITY_OFFSET, needSize);
+    byteBuf.setInt(entryOffset + ENTRY_LENGTH_OFFSET, needSize);
+    addUsedPageSize(entryOffset, needSize);
+    byteBuf.setInt(pageOffset + PAGE_SPAN_OFFSET, spanPageNum);
+    byteBuf.setInt(pageOffset + PAGE_FILL_OFFSET, getNextPageOffset(pageOffset));
+    int firstPage = getPageNumber(pageOffset);
+    spannedPages.set(firstPage + 1, firstPage + spanPageNum);
+    for (int page = firstPage; page < firstPage + spanPageNum; page++) {
+      updateFreeSpace(page);
+    }
+    return byteBuf.slice(entryOffset + ENTRY_HEADER_SIZE, needSize).writerIndex(0);
+  }
+
+  private void writeChunkHeader(int chunkOffset, int flag, int size, int nextEntryOffset, int tagIndex, int headOffset) {
+    // update page header
+    addUsedPageSize(chunkOffset, size + ENTRY_HEADER_SIZE);
+    int pageOffset = getPageOffset(chunkOffset);
+    byteBuf.setInt(pageOffset + PAGE_FILL_OFFSET, Math.max(getFillOffset(pageOffset), chunkOffset + ENTRY_HEADER_SIZE + size));
+    updateFreeSpace(getPageNumber(pageOffset));
+    // entry header 32 bytes
+    byteBuf.setByte(chunkOffset, flag);
+    byteBuf.setMedium(chunkOffset + 1, size);
+    byteBuf.setInt(chunkOffset + ENTRY_NEXT_OFFSET, nextEntryOffset);
+    byteBuf.setInt(chunkOffset + ENTRY_TAG_INDEX_OFFSET, tagIndex);
+    byteBuf.setInt(chunkOffset + ENTRY_CAPACITY_OFFSET, size);
+    byteBuf.setInt(chunkOffset + ENTRY_HEAD_OFFSET, headOffset);
+    byteBuf.setZero(chunkOffset + ENTRY_HEAD_OFFSET + 4, ENTRY_HEADER_SIZE - ENTRY_HEAD_OFFSET - 4);
+  }
+
+  /**
+   * Clear the entry header after the last entry of a page, a page reused after compaction may hold stale entries.
+   */
+  private void terminatePage(int entryEnd) {
+    if (entryEnd + ENTRY_HEADER_SIZE <= getNextPageOffset(entryEnd - 1)) {
+      byteBuf.setZero(entryEnd, ENTRY_HEADER_SIZE);
+    }
+  }
+
+  /**
+   * Resize the entry to the new size, which must fit in the entry capacity. Chunks that are no longer needed are
+   * released.
+   *
+   * @return the payload area of the entry, with writer index 0.
+   */
+  ByteBuf resizeEntry(int entryOffset, int needSize) {
+    markUnverified(entryOffset);
+    if (getFlag(entryOffset) == 3) {
+      byteBuf.setInt(entryOffset + ENTRY_LENGTH_OFFSET, needSize);
+      return byteBuf.slice(entryOffset + ENTRY_HEADER_SIZE, needSize).writerIndex(0);
+    }
+    if (getFlag(entryOffset) == 1) {
+      byteBuf.setMedium(entryOffset + 1, needSize);
+      return byteBuf.slice(entryOffset + ENTRY_HEADER_SIZE, needSize).writerIndex(0);
+    }
+    CompositeByteBuf compositeByteBuf = Unpooled.compositeBuffer();
+    int idx = entryOffset;
+    int leaveSize = needSize;
+    while (true) {
+      int writeSize = Math.min(leaveSize, getChunkCapacity(idx));
+      leaveSize -= writeSize;
+      byteBuf.setMedium(idx + 1, writeSize);
+      compositeByteBuf.addComponent(byteBuf.slice(idx + ENTRY_HEADER_SIZE, writeSize));
+      int nextEntryOffset = byteBuf.getInt(idx + ENTRY_NEXT_OFFSET);
+      if (leaveSize == 0) {
+        // the rest of the chain is not needed anymore
+        byteBuf.setInt(idx + ENTRY_NEXT_OFFSET, 0);
+        releaseChunks(nextEntryOffset);
+        break;
+      }
+      idx = nextEntryOffset;
+    }
+    return compositeByteBuf;
+  }
+
+  /**
+   * The kind of the entry, 0 if there is no entry, the retired bits are not included.
+   */
+  int getFlag(int entryOffset) {
+    return byteBuf.getUnsignedByte(entryOffset) & FLAG_KIND_MASK;
+  }
+
+  /**
+   * Whether an entry that is not retired starts at the offset.
+   */
+  boolean isLive(int entryOffset) {
+    int flag = byteBuf.getUnsignedByte(entryOffset);
+    return flag > 0 && (flag & ~FLAG_KIND_MASK) == 0;
+  }
+
+  boolean isRetired(int entryOffset) {
+    return (byteBuf.getUnsignedByte(entryOffset) & (FLAG_MOVED | FLAG_DELETED)) != 0;
+  }
+
+  boolean isDeleted(int entryOffset) {
+    return (byteBuf.getUnsignedByte(entryOffset) & FLAG_DELETED) != 0;
+  }
+
+  boolean isMoved(int entryOffset) {
+    return (byteBuf.getUnsignedByte(entryOffset) & FLAG_MOVED) != 0;
+  }
+
+  /**
+   * Retire the entry, its space stays allocated until {@link #releaseRetired(int)}. A moved entry is still read, a
+   * deleted one is not. The page of the entry is recorded in the block header and forced before the entry is marked,
+   * so the entry is released when the segment is opened after a crash.
+   */
+  void retireEntry(int entryOffset, boolean moved) {
+    int pageOffset = getPageOffset(entryOffset);
+    int retiredOffset = getRetiredOffset();
+    if (retiredOffset <= 0 || pageOffset < retiredOffset) {
+      byteBuf.setInt(12, pageOffset);
+      mappedByteBuffer.force(0, BLOCK_HEADER_SIZE);
+    }
+    byteBuf.setByte(entryOffset, byteBuf.getUnsignedByte(entryOffset) | (moved ? FLAG_MOVED : FLAG_DELETED));
+    retiredCount++;
+  }
+
+  /**
+   * Release a retired entry, its space is given back to the page.
+   */
+  void releaseRetired(int entryOffset) {
+    releaseChunks(entryOffset);
+    retiredCount--;
+  }
+
+  int getTagIndex(int entryOffset) {
+    return byteBuf.getInt(entryOffset + ENTRY_TAG_INDEX_OFFSET);
+  }
+
+  /**
+   * The size of the payload before it was compressed, 0 if the payload is not compressed.
+   */
+  int getRawSize(int entryOffset) {
+    return byteBuf.getInt(entryOffset + ENTRY_RAW_SIZE_OFFSET);
+  }
+
+  int getChecksum(int entryOffset) {
+    return byteBuf.getInt(entryOffset + ENTRY_CHECKSUM_OFFSET);
+  }
+
+  /**
+   * Set the raw size and the checksum of the entry once its payload is written.
+   */
+  void sealEntry(int entryOffset, int rawSize) {
+    sealEntry(entryOffset, rawSize, computeChecksum(entryOffset));
+  }
+
+  void sealEntry(int entryOffset, int rawSize, int checksum) {
+    byteBuf.setInt(entryOffset + ENTRY_RAW_SIZE_OFFSET, rawSize);
+    byteBuf.setInt(entryOffset + ENTRY_CHECKSUM_OFFSET, checksum);
+  }
+
+  /**
+   * The CRC32C of the payload of the entry.
+   */
+  private int computeChecksum(int entryOffset) {
+    ByteBuf payload = getEntryPayload(entryOffset);
+    if (payload == null) {
+      return 0;
+    }
+    CRC32C crc = new CRC32C();
+    for (ByteBuffer buffer : payload.nioBuffers()) {
+      crc.update(buffer);
+    }
+    return (int) crc.getValue();
+  }
+
+  /**
+   * The payload of the entry, a slice of the page for a single page entry and a composite of the chunks for a continue
+   * entry. Null if the entry is deleted, a moved entry is read until it is released.
+   */
+  ByteBuf getEntryPayload(int entryOffset) {
+    if ((byteBuf.getUnsignedByte(entryOffset) & FLAG_DELETED) != 0) {
+      return null;
+    }
+    int flag = getFlag(entryOffset);
+    int size = flag == 3 ? byteBuf.getInt(entryOffset + ENTRY_LENGTH_OFFSET) : byteBuf.getUnsignedMedium(entryOffset + 1);
+    int nextEntryOffset = byteBuf.getInt(entryOffset + ENTRY_NEXT_OFFSET);
+
+    if (size <= 0 || flag < 1) {
+      return null;
+    }
+    ByteBuf sliceByteBuf = byteBuf.slice(entryOffset + ENTRY_HEADER_SIZE, size);
+    if (flag == 1 || flag == 3) {
+      // Single page or span entry
+      return sliceByteBuf;
+    }
+    CompositeByteBuf compositeByteBuf = Unpooled.compositeBuffer();
+    compositeByteBuf.addComponent(sliceByteBuf);
+    while (flag == 2 && nextEntryOffset != 0) {
+      if (compositeByteBuf.capacity() > size()) {
+        // only seen by an optimistic read racing a write, the chain is followed again under the lock
+        compositeByteBuf.release();
+        throw new IllegalStateException("Broken chunk chain of entry " + entryOffset + " in block segment " + id);
+      }
+      flag = byteBuf.getUnsignedByte(nextEntryOffset);
+      size = byteBuf.getUnsignedMedium(nextEntryOffset + 1);
+      compositeByteBuf.addComponent(byteBuf.slice(nextEntryOffset + ENTRY_HEADER_SIZE, size));
+      nextEntryOffset = byteBuf.getInt(nextEntryOffset + ENTRY_NEXT_OFFSET);
+    }
+    compositeByteBuf.writerIndex(compositeByteBuf.capacity());
+    return compositeByteBuf;
+  }
+
+  /**
+   * Release the chunk at the offset and all chunks after it, their space is given back to the page.
+   */
+  void releaseChunks(int chunkOffset) {
+    if (chunkOffset > 0 && getFlag(chunkOffset) == 3) {
+      releaseSpan(chunkOffset);
+      return;
+    }
+    while (chunkOffset > 0) {
+      int nextEntryOffset = byteBuf.getInt(chunkOffset + ENTRY_NEXT_OFFSET);
+      int capacity = getChunkCapacity(chunkOffset);
+      addUsedPageSize(chunkOffset, -(capacity + ENTRY_HEADER_SIZE));
+      byteBuf.setByte(chunkOffset, 0);
+      int pageOffset = getPageOffset(chunkOffset);
+      if (byteBuf.getInt(pageOffset) == 0) {
+        // the page is unused again, the next entry is written from its start
+        byteBuf.setInt(pageOffset + PAGE_FILL_OFFSET, 0);
+      } else if (getFillOffset(pageOffset) == chunkOffset + ENTRY_HEADER_SIZE + capacity) {
+        // the last entry of the page, its space is written again by the next entry of the page
+        byteBuf.setInt(pageOffset + PAGE_FILL_OFFSET, chunkOffset);
+      }
+      updateFreeSpace(getPageNumber(pageOffset));
+      chunkOffset = nextEntryOffset;
+    }
+  }
+
+  /**
+   * Release a span entry, the following pages become unused pages again.
+   */
+  private void releaseSpan(int entryOffset) {
+    int pageOffset = getPageOffset(entryOffset);
+    int firstPage = getPageNumber(pageOffset);
+    int spanPageNum = byteBuf.getInt(pageOffset + PAGE_SPAN_OFFSET);
+    byteBuf.setByte(entryOffset, 0);
+    byteBuf.setZero(pageOffset, PAGE_HEADER_SIZE);
+    for (int page = firstPage + 1; page < firstPage + spanPageNum; page++) {
+      // clear the payload where the page header and the first entry header are read
+      byteBuf.setZero(getPageOffsetByNumber(page), PAGE_HEADER_SIZE + ENTRY_HEADER_SIZE);
+    }
+    spannedPages.clear(firstPage + 1, firstPage + spanPageNum);
+    for (int page = firstPage; page < firstPage + spanPageNum; page++) {
+      updateFreeSpace(page);
+    }
+  }
+
+  int getChunkCapacity(int chunkOffset) {
+    int capacity = byteBuf.getInt(chunkOffset + ENTRY_CAPACITY_OFFSET);
+    return capacity > 0 ? capacity : byteBuf.getUnsignedMedium(chunkOffset + 1);
+  }
+
+  int getEntryCapacity(int entryOffset) {
+    int capacity = getChunkCapacity(entryOffset);
+    if (getFlag(entryOffset) == 2) {
+      int nextEntryOffset = byteBuf.getInt(entryOffset + ENTRY_NEXT_OFFSET);
+      while (nextEntryOffset != 0) {
+        capacity += getChunkCapacity(nextEntryOffset);
+        nextEntryOffset = byteBuf.getInt(nextEntryOffset + ENTRY_NEXT_OFFSET);
+      }
+    }
+    return capacity;
+  }
+
+  static int getPageOffset(int offset) {
+    return Math.floorDiv(offset - BLOCK_HEADER_SIZE, PAGE_SIZE) * PAGE_SIZE + BLOCK_HEADER_SIZE;
+  }
+
+  static int getNextPageOffset(int offset) {
+    return getPageOffset(offset) + PAGE_SIZE;
+  }
+
+  static int getPageOffsetByNumber(int pageNumber) {
+    return pageNumber * PAGE_SIZE + BLOCK_HEADER_SIZE;
+  }
+
+  static int getPageNumber(int offset) {
+    return Math.floorDiv(offset - BLOCK_HEADER_SIZE, PAGE_SIZE);
+  }
+
+  /**
+   * Whether the page is covered by a span entry after the first page of the entry.
+   */
+  boolean isSpanned(int offset) {
+    return spannedPages.get(getPageNumber(offset));
+  }
+
+  boolean isPageUsed(int pageOffset) {
+    return byteBuf.getInt(pageOffset) != 0 || isSpanned(pageOffset);
+  }
+
+  /**
+   * The used size of the page, a page covered by a span entry after its first page is fully used.
+   */
+  int getUsedPageSize(int offset) {
+    return isSpanned(offset) ? PAGE_SIZE : byteBuf.getInt(getPageOffset(offset));
+  }
+
+  void addUsedPageSize(int offset, int addSize) {
+    int pageIndex = getPageOffset(offset);
+    int newSize = byteBuf.getInt(pageIndex) + addSize;
+    byteBuf.setInt(pageIndex, newSize);
+  }
+
+  int getPageEntryNumber(int offset) {
+    int pageStartIndex = getPageOffset(offset);
+    if (byteBuf.getInt(pageStartIndex) == 0 || isSpanned(offset)) {
+      return 0;
+    }
+    int pageEndIndex = pageStartIndex + PAGE_SIZE;
+    int counter = 0;
+    int idx = pageStartIndex + PAGE_HEADER_SIZE;
+    while (idx + ENTRY_HEADER_SIZE <= pageEndIndex) {
+      int size = getChunkCapacity(idx);
+      if (size <= 0) {
+        break;
+      }
+      if (isLive(idx)) {
+        counter++;
+      }
+      idx = idx + ENTRY_HEADER_SIZE + size;
+    }
+    return counter;
+  }
+
+  /**
+   * The used size of the pages below the writer index, entry headers included, a page is counted up to its payload
+   * size.
+   */
+  long getUsedSize() {
+    long used = 0;
+    for (int page = getPageCount() - 1; page >= 0; page--) {
+      used += Math.min(getUsedPageSize(getPageOffsetByNumber(page)), PAGE_SIZE - PAGE_HEADER_SIZE);
+    }
+    return used;
+  }
+
+  /**
+   * Number of pages below the writer index.
+   */
+  int getPageCount() {
+    return Math.floorDiv(byteBuf.writerIndex() - BLOCK_HEADER_SIZE + PAGE_SIZE - 1, PAGE_SIZE);
+  }
+
+  /**
+   * The offsets of the live entries having a chunk in the page, retired entries are not included. Null if the page holds chunks written before the entry
+   * head offset was recorded, such entries can not be moved.
+   */
+  RoaringBitmap getPageEntryHeads(int pageOffset) {
+    RoaringBitmap heads = new RoaringBitmap();
+    if (byteBuf.getInt(pageOffset) == 0 || isSpanned(pageOffset)) {
+      return heads;
+    }
+    int pageEndIndex = pageOffset + PAGE_SIZE;
+    int idx = pageOffset + PAGE_HEADER_SIZE;
+    while (idx + ENTRY_HEADER_SIZE <= pageEndIndex) {
+      int capacity = byteBuf.getInt(idx + ENTRY_CAPACITY_OFFSET);
+      if (capacity <= 0) {
+        if (byteBuf.getUnsignedMedium(idx + 1) > 0) {
+          return null;
+        }
+        break;
+      }
+      if (byteBuf.getUnsignedByte(idx) > 0) {
+        int headOffset = byteBuf.getInt(idx + ENTRY_HEAD_OFFSET);
+        int head = headOffset == 0 ? idx : headOffset;
+        // a retired entry is not moved, its space is released once its readers are gone
+        if (isLive(head)) {
+          heads.add(head);
+        }
+      }
+      idx = idx + ENTRY_HEADER_SIZE + capacity;
+    }
+    return heads;
+  }
+
+  /**
+   * Whether an entry can be written in the range by the compaction: every page it covers is unused, except the page
+   * filled by the compaction up to the filled offset, and it ends before the limit offset.
+   *
+   * @param filledOffset the write index of the compaction in this segment, 0 if the compaction fills no page of it.
+   */
+  boolean isUnused(int entryOffset, int entryEnd, int limitOffset, int filledOffset) {
+    if (entryEnd > limitOffset) {
+      return false;
+    }
+    int fillingPage = filledOffset > 0 ? getPageOffset(filledOffset - 1) : -1;
+    for (int page = getPageOffset(entryOffset); page < entryEnd; page += PAGE_SIZE) {
+      if (page != fillingPage && isPageUsed(page)) {
+        return false;
+      }
+      if (page == fillingPage && entryOffset < filledOffset) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Whether no page of the segment holds an entry.
+   */
+  boolean isEmpty() {
+    for (int page = getPageCount() - 1; page >= 0; page--) {
+      if (isPageUsed(getPageOffsetByNumber(page))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Move the writer index back to the end of the last used page.
+   *
+   * @return whether the writer index moved.
+   */
+  boolean trimWriterIndex() {
+    int lastUsedPage = -1;
+    for (int page = getPageCount() - 1; page >= 0; page--) {
+      if (isPageUsed(getPageOffsetByNumber(page))) {
+        lastUsedPage = page;
+        break;
+      }
+    }
+    int wrtIdx = getPageOffsetByNumber(lastUsedPage + 1);
+    if (wrtIdx >= byteBuf.writerIndex()) {
+      return false;
+    }
+    setWriterIndex(wrtIdx);
+    return true;
+  }
+
+  void prettyDebug() {
+    int idx = BLOCK_HEADER_SIZE;
+    int endIdx = byteBuf.writerIndex();
+    log.info("segment: {}, wrtIdx: {}", id, byteBuf.getInt(4));
+    while (idx < endIdx) {
+      log.info("Page idx: {}, page available size: {}, entry num: {}", getPageNumber(idx), PAGE_SIZE - PAGE_HEADER_SIZE - getUsedPageSize(idx), getPageEntryNumber(idx));
+      idx += PAGE_SIZE;
+    }
+  }
+}
@@ -2,48 +2,387 @@ package org.apache.chronos.cluster.metastore;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
 import org.apache.chronos.cluster.meta.Offset;
 import org.apache.chronos.cluster.meta.serializer.OffsetSerializer;
 import org.apache.chronos.common.FileUtil;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.roaringbitmap.RoaringBitmap;
 
 /**
  * 可修改的内存映射方案
+ * <p>
+ * 文件布局：文件头(32 字节) | 根目录(512 个 long) | 目录页和记录页按分配顺序追加
+ * <p>
+ * |--- magic ---|--- metaDataVersion ---|--- maxMetaDataId ---|--- metaDataCounter ---|--- 文件已分配的长度 ---|--- 格式版本 ---|--- 保留 ---|
+ * <p>
+ * |--- 4 字节 ---|--- 4 字节 -------------|--- 4 字节 -----------|--- 4 字节 -------------|--- 8 字节 ----------------|--- 4 字节 -----|--- 4 字节 ---|
+ * <p>
+ * 记录(32 字节，按 32 字节对齐，不跨缓存行和操作系统页)：
+ * <p>
+ * |--- status ---|--- generation ---|--- checksum ---|--- offset ---|--- updated ---|--- blockId ---|--- length ---|
+ * <p>
+ * |--- 1 字节 ----|--- 3 字节 --------|--- 4 字节 ------|--- 8 字节 ----|--- 8 字节 -----|--- 4 字节 -----|--- 4 字节 ----|
+ * <p>
+ * generation 在每次写入记录时加一，checksum 是记录其余字段的哈希，读到 checksum 不一致的记录视为损坏的记录。
+ * <p>
+ * 记录按 id 分页，每页 4096 条记录。页号的高 9 位是根目录的下标，根目录指向目录页，低 9 位是目录页的下标，目录页指向记录页，
+ * 指针都是 64 位的文件位置，0 表示未分配。只有用到的 id 范围才分配目录页和记录页，所以稀疏或很大的 id 不会产生巨大的文件，
+ * id 可以用到 {@link Offset#MAX_META_DATA_ID}。目录常驻内存，查找一条记录只读一次映射。
+ * <p>
+ * 旧格式的文件在打开时迁移到当前格式：按 (id - 1) * Offset.TOTAL_SIZE 平铺的文件，以及格式版本为 0、记录为
+ * Offset.TOTAL_SIZE 字节的分页文件。迁移时旧文件改名为 .v1，迁移完成后删除，迁移中断后再次打开会重新迁移。
+ * <p>
+ * 文件按固定大小分片映射，分片 i 映射 [i * chunkSize, (i + 1) * chunkSize)，分片大小是 4096 的倍数，所以记录和目录项不会跨分片。
+ * 最后一个分片只映射用到的部分，从 64 KB 开始按两倍增长到 chunkSize，映射会扩展文件，所以空的索引文件只有 64 KB。
+ * 文件增长时追加映射新的分片，或者用更大的映射替换最后一个分片，被替换的映射保留到关闭，文件格式与分片大小无关。
+ * <p>
+ * 有效的 id 保存在内存的 RoaringBitmap 中，每 checkpointInterval 次修改和关闭时写入同目录的 .live 检查点文件，检查点记录了写入时的
+ * 版本号。打开时版本号一致则直接加载，否则（例如进程异常退出后还有未写入检查点的修改）扫描一次全部记录重建。版本号只在有效的 id
+ * 或记录改变时加一，删除不存在的 id 不会使检查点失效。已删除的 id 由 {@link #allocateId()} 重新分配，使文件保持紧凑。
+ * <p>
+ * 只有写入互斥。读取记录时先乐观读，读完后校验期间没有写入，校验失败时加读锁重读，读取不修改共享的锁状态。
+ * 分片和被替换的映射只在关闭时解除映射，所以乐观读不会访问已解除映射的内存，读到被替换的映射时
+ * 越界的读取加读锁重读。
  */
 public class DiskOffsetIndex implements IOffsetIndexStore {
 
   private final static Logger log = LogManager.getLogger(DiskOffsetIndex.class);
 
   private static final int DEFAULT_PAGE_SIZE = 4096 * 16;
-  private static final int FILE_HEADER_SIZE = 16;
+  // 64 MB
+  public static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+  // 两次检查点之间的修改次数，限制异常退出后检查点落后的程度，检查点落后时打开需要扫描全部记录
+  public static final int DEFAULT_CHECKPOINT_INTERVAL = 64 * 1024;
+  // 平铺布局
+  private static final int LEGACY_MAGIC = 0x19870712;
+  private static final int LEGACY_FILE_HEADER_SIZE = 16;
+  // 分页布局
+  private static final int MAGIC = 0x19870713;
+  // 0: 记录为 Offset.TOTAL_SIZE 字节，2: 记录为 RECORD_SIZE 字节
+  private static final int FORMAT_VERSION = 2;
+  private static final int FILE_HEADER_SIZE = 32;
+  private static final int FILE_END_OFFSET = 16;
+  private static final int FORMAT_VERSION_OFFSET = 24;
+  private static final int RECORD_SIZE = 32;
+  private static final int RECORD_CHECKSUM_OFFSET = 4;
+  private static final int RECORD_OFFSET_OFFSET = 8;
+  private static final int RECORD_UPDATED_OFFSET = 16;
+  private static final int RECORD_BLOCK_ID_OFFSET = 24;
+  private static final int GENERATION_MASK = 0xFFFFFF;
+  private static final int RECORD_PAGE_BITS = 12;
+  private static final int RECORD_PAGE_MASK = (1 << RECORD_PAGE_BITS) - 1;
+  private static final int RECORD_PAGE_SIZE = (1 << RECORD_PAGE_BITS) * RECORD_SIZE;
+  private static final int LEGACY_RECORD_PAGE_SIZE = (1 << RECORD_PAGE_BITS) * Offset.TOTAL_SIZE;
+  private static final int DIRECTORY_BITS = 9;
+  private static final int DIRECTORY_MASK = (1 << DIRECTORY_BITS) - 1;
+  private static final int DIRECTORY_SIZE = (1 << DIRECTORY_BITS) * 8;
+  private static final int DATA_START = FILE_HEADER_SIZE + DIRECTORY_SIZE;
+  private static final int READ_FOUND = 1;
+  private static final int READ_ABSENT = 0;
+  private static final int READ_RETRY = -1;
+  private static final String LIVE_SUFFIX = ".live";
+  private static final String LEGACY_SUFFIX = ".v1";
+  private final File liveFile;
   private final FileChannel fileChannel;
-  private MappedByteBuffer mappedBuffer;
-  private ByteBuf byteBuf;
-  private long fileSize;
-  private int maxMetaDataId;
-  private int metaDataVersion;
-  private int metaDataCounter;
-  private final ReadWriteLock readWriteLock;
+  private final int chunkSize;
+  private final int checkpointInterval;
+  // 上次写入检查点时的版本号
+  private int checkpointVersion;
+  // 只追加，增长时发布新的数组
+  private volatile MappedByteBuffer[] mappedBuffers;
+  private volatile ByteBuf[] byteBufs;
+  // 被更大的映射替换的最后一个分片，乐观读可能还在读，关闭时解除映射
+  private final List<MappedByteBuffer> replacedBuffers = new ArrayList<>();
+  private final List<ByteBuf> replacedByteBufs = new ArrayList<>();
+  // 上次刷盘后修改过的分片
+  private final BitSet dirtyChunks = new BitSet();
+  // 根目录指向的目录页位置
+  private final long[] directoryPositions = new long[1 << DIRECTORY_BITS];
+  // 每个目录页指向的记录页位置，目录页未分配时为 null
+  private final long[][] pagePositions = new long[1 << DIRECTORY_BITS][];
+  private long fileEnd;
+  // 文件头的计数只由持有写锁的线程修改，读取不加锁
+  private volatile int maxMetaDataId;
+  private volatile int metaDataVersion;
+  private volatile int metaDataCounter;
+  // 有效的 id
+  private final RoaringBitmap liveIds = new RoaringBitmap();
+  // 有效的 id 和已分配但还未写入的 id
+  private final RoaringBitmap allocatedIds = new RoaringBitmap();
+  private final StampedLock lock = new StampedLock();
 
   public DiskOffsetIndex(File file) throws IOException {
-    this.readWriteLock = new ReentrantReadWriteLock();
+    this(file, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * @param chunkSize 每个分片映射的大小，4096 的倍数，只影响映射，不影响文件格式
+   */
+  public DiskOffsetIndex(File file, int chunkSize) throws IOException {
+    this(file, chunkSize, DEFAULT_CHECKPOINT_INTERVAL);
+  }
+
+  /**
+   * @param checkpointInterval 两次检查点之间的修改次数
+   */
+  DiskOffsetIndex(File file, int chunkSize, int checkpointInterval) throws IOException {
+    if (chunkSize < DEFAULT_PAGE_SIZE || chunkSize % 4096 != 0) {
+      throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+    }
+    if (checkpointInterval <= 0) {
+      throw new IllegalArgumentException("Invalid checkpoint interval: " + checkpointInterval);
+    }
+    this.chunkSize = chunkSize;
+    this.checkpointInterval = checkpointInterval;
+    this.liveFile = new File(file.getPath() + LIVE_SUFFIX);
+    File legacyFile = prepareMigration(file);
     init(file);
     this.fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
-    this.fileSize = fileChannel.size();
-    this.mappedBuffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
-    this.byteBuf = Unpooled.wrappedBuffer(mappedBuffer);
-    this.metaDataVersion = byteBuf.getInt(4);
-    this.maxMetaDataId = byteBuf.getInt(8);
-    this.metaDataCounter = byteBuf.getInt(12);
+    this.mappedBuffers = new MappedByteBuffer[0];
+    this.byteBufs = new ByteBuf[0];
+    ensureCapacity(Math.max(fileChannel.size(), DEFAULT_PAGE_SIZE));
+    ByteBuf header = byteBufs[0];
+    this.metaDataVersion = header.getInt(4);
+    this.maxMetaDataId = header.getInt(8);
+    this.metaDataCounter = header.getInt(12);
+    this.fileEnd = header.getLong(FILE_END_OFFSET);
+    loadDirectory();
+    if (legacyFile != null) {
+      migrate(legacyFile);
+    }
+    loadLiveIds();
+  }
+
+  /**
+   * 旧格式的文件改名为 .v1 等待迁移，返回需要迁移的旧文件。上次迁移中断时丢弃未完成的新文件
+   */
+  private static File prepareMigration(File file) throws IOException {
+    File legacyFile = new File(file.getPath() + LEGACY_SUFFIX);
+    if (legacyFile.exists()) {
+      Files.deleteIfExists(file.toPath());
+      return legacyFile;
+    }
+    if (!file.exists()) {
+      return null;
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      int magic = raf.readInt();
+      raf.seek(FORMAT_VERSION_OFFSET);
+      if (magic != LEGACY_MAGIC && (magic != MAGIC || raf.readInt() == FORMAT_VERSION)) {
+        return null;
+      }
+    }
+    Files.move(file.toPath(), legacyFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    return legacyFile;
+  }
+
+  /**
+   * 把旧格式文件中有效的记录复制到当前格式，版本号保持不变。旧文件的记录按 4096 条一页读取，平铺布局的页是连续的，
+   * 分页布局的页由旧文件的目录找到
+   */
+  private void migrate(File legacyFile) throws IOException {
+    try (FileChannel legacyChannel = FileChannel.open(legacyFile.toPath(), StandardOpenOption.READ)) {
+      ByteBuf legacyHeader = readLegacy(legacyChannel, 0, DATA_START);
+      ByteBuf page = Unpooled.buffer(LEGACY_RECORD_PAGE_SIZE);
+      Offset holder = new Offset();
+      int copied = 0;
+      if (legacyHeader.getInt(0) == LEGACY_MAGIC) {
+        int legacyMaxId = legacyHeader.getInt(8);
+        for (int firstId = 1; firstId <= legacyMaxId; firstId += 1 << RECORD_PAGE_BITS) {
+          long pagePosition = (long) (firstId - 1) * Offset.TOTAL_SIZE + LEGACY_FILE_HEADER_SIZE;
+          copied += migratePage(legacyChannel, pagePosition, page, firstId, holder);
+        }
+      } else {
+        for (int root = 0; root < (1 << DIRECTORY_BITS); root++) {
+          long directoryPosition = legacyHeader.getLong(FILE_HEADER_SIZE + root * 8);
+          if (directoryPosition == 0) {
+            continue;
+          }
+          ByteBuf directory = readLegacy(legacyChannel, directoryPosition, DIRECTORY_SIZE);
+          for (int i = 0; i < (1 << DIRECTORY_BITS); i++) {
+            long pagePosition = directory.getLong(i * 8);
+            if (pagePosition != 0) {
+              int firstId = (((root << DIRECTORY_BITS) + i) << RECORD_PAGE_BITS) + 1;
+              copied += migratePage(legacyChannel, pagePosition, page, firstId, holder);
+            }
+          }
+        }
+      }
+      this.metaDataVersion = legacyHeader.getInt(4);
+      this.metaDataCounter = copied;
+      persist();
+      log.info("Meta index migrated to format version {}, records: {}, file: {}", FORMAT_VERSION, copied, legacyFile);
+    }
+    Files.delete(legacyFile.toPath());
+  }
+
+  /**
+   * 复制旧文件中一页的有效记录，返回复制的记录数
+   */
+  private int migratePage(FileChannel legacyChannel, long pagePosition, ByteBuf page, int firstId, Offset holder) throws IOException {
+    readFully(legacyChannel, page, pagePosition);
+    int copied = 0;
+    for (int i = 0; i <= RECORD_PAGE_MASK && firstId + i <= Offset.MAX_META_DATA_ID; i++) {
+      if (page.getUnsignedByte(i * Offset.TOTAL_SIZE) != Offset.STATUS_NORMAL) {
+        continue;
+      }
+      OffsetSerializer.INSTANCE.deserialize(page, i * Offset.TOTAL_SIZE, holder);
+      writeOffset(getOrAllocatePosition(firstId + i), holder);
+      maxMetaDataId = Math.max(maxMetaDataId, firstId + i);
+      copied++;
+    }
+    return copied;
+  }
+
+  private static ByteBuf readLegacy(FileChannel legacyChannel, long position, int length) throws IOException {
+    ByteBuf buf = Unpooled.buffer(length);
+    readFully(legacyChannel, buf, position);
+    return buf;
+  }
+
+  /**
+   * 从 position 读满 buf 的容量，超出文件末尾的部分填 0
+   */
+  private static void readFully(FileChannel channel, ByteBuf buf, long position) throws IOException {
+    buf.setZero(0, buf.capacity());
+    int read = 0;
+    while (read < buf.capacity()) {
+      int n = channel.read(buf.nioBuffer(read, buf.capacity() - read), position + read);
+      if (n < 0) {
+        break;
+      }
+      read += n;
+    }
+  }
+
+  /**
+   * 从根目录和目录页加载记录页的位置。异常退出时已分配的长度可能没有刷盘，以目录中最远的页为准
+   */
+  private void loadDirectory() {
+    for (int root = 0; root < directoryPositions.length; root++) {
+      long directoryPosition = readLong(FILE_HEADER_SIZE + (long) root * 8);
+      if (directoryPosition == 0) {
+        continue;
+      }
+      directoryPositions[root] = directoryPosition;
+      fileEnd = Math.max(fileEnd, directoryPosition + DIRECTORY_SIZE);
+      long[] pages = new long[1 << DIRECTORY_BITS];
+      for (int i = 0; i < pages.length; i++) {
+        pages[i] = readLong(directoryPosition + (long) i * 8);
+        if (pages[i] != 0) {
+          fileEnd = Math.max(fileEnd, pages[i] + RECORD_PAGE_SIZE);
+        }
+      }
+      pagePositions[root] = pages;
+    }
+  }
+
+  /**
+   * 加载有效 id 的检查点，检查点的版本号与文件头不一致时扫描全部记录重建
+   */
+  private void loadLiveIds() {
+    boolean loaded = false;
+    if (liveFile.exists()) {
+      try (DataInputStream in = new DataInputStream(Files.newInputStream(liveFile.toPath()))) {
+        if (in.readInt() == metaDataVersion) {
+          liveIds.deserialize(in);
+          loaded = true;
+          checkpointVersion = metaDataVersion;
+        }
+      } catch (IOException e) {
+        log.warn("Meta index live ids checkpoint is broken, rebuild it. file: {}", liveFile, e);
+        liveIds.clear();
+      }
+    }
+    if (!loaded) {
+      log.info("Meta index live ids checkpoint is stale, scan records. maxMetaDataId: {}", maxMetaDataId);
+      // 只扫描已分配的记录页
+      for (int page = 0; page < (1 << (DIRECTORY_BITS * 2)); page++) {
+        long[] pages = pagePositions[page >>> DIRECTORY_BITS];
+        if (pages == null) {
+          page |= DIRECTORY_MASK;
+          continue;
+        }
+        long pagePosition = pages[page & DIRECTORY_MASK];
+        if (pagePosition == 0) {
+          continue;
+        }
+        for (int i = 0; i <= RECORD_PAGE_MASK; i++) {
+          long position = pagePosition + (long) i * RECORD_SIZE;
+          if (getStatus(position) != Offset.STATUS_NORMAL) {
+            continue;
+          }
+          if (isIntact(position)) {
+            liveIds.add((page << RECORD_PAGE_BITS) + i + 1);
+          } else {
+            log.error("Meta index record is broken, id: {}", (page << RECORD_PAGE_BITS) + i + 1);
+          }
+        }
+      }
+    }
+    liveIds.runOptimize();
+    allocatedIds.or(liveIds);
+    this.metaDataCounter = liveIds.getCardinality();
+    this.maxMetaDataId = liveIds.isEmpty() ? 0 : liveIds.last();
+  }
+
+  /**
+   * 写入有效 id 的检查点
+   */
+  public void checkpoint() throws IOException {
+    long stamp = lock.writeLock();
+    try {
+      writeCheckpoint();
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * 距上次检查点的修改达到 checkpointInterval 时写入检查点，调用方持有写锁并已刷盘文件头
+   */
+  private void checkpointIfNeeded() throws IOException {
+    if (metaDataVersion - checkpointVersion >= checkpointInterval) {
+      writeCheckpoint();
+    }
+  }
+
+  /**
+   * 先写临时文件并刷盘再替换，替换后检查点的内容已经在磁盘上。替换本身丢失时打开的是旧的检查点，版本号不一致时扫描重建。
+   * 调用方持有写锁
+   */
+  private void writeCheckpoint() throws IOException {
+    File tmpFile = new File(liveFile.getPath() + ".tmp");
+    try (FileChannel tmpChannel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(tmpChannel)));
+      out.writeInt(metaDataVersion);
+      liveIds.serialize(out);
+      out.flush();
+      tmpChannel.force(true);
+    }
+    Files.move(tmpFile.toPath(), liveFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    checkpointVersion = metaDataVersion;
   }
 
   private void init(File file) throws IOException {
@@ -53,58 +392,231 @@ public class DiskOffsetIndex implements IOffsetIndexStore {
         // write file header
         raf.seek(0);
         // magic
-        raf.writeInt(0x19870712);
+        raf.writeInt(MAGIC);
         // file version
         raf.writeInt(0);
         // maxMetaDataId
         raf.writeInt(0);
         // metaDataCounter
         raf.writeInt(0);
+        // 已分配的长度，根目录之后
+        raf.writeLong(DATA_START);
+        // 格式版本
+        raf.writeInt(FORMAT_VERSION);
         raf.getFD().sync();
       }
     }
   }
 
-  private void expandSpaceIfNecessary(int actualWrtIndex) throws IOException {
-    readWriteLock.writeLock().lock();
-    try {
-      long availableSpace = fileSize - actualWrtIndex;
-      if (availableSpace < (DEFAULT_PAGE_SIZE >> 2)) {
-        log.info("Meta index file space not enough, try to expand. availableSpace: {}", availableSpace);
-        persist();
-        // 2. 解除当前内存映射
-        FileUtil.clean(mappedBuffer);
-        byteBuf.release();
-        // 3. 调整文件大小
-        fileSize += DEFAULT_PAGE_SIZE;
-        fileChannel.truncate(fileSize);
-        // 4. 重新建立内存映射
-        this.mappedBuffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
-        this.byteBuf = Unpooled.wrappedBuffer(mappedBuffer);
+  /**
+   * 映射直到覆盖 [0, end)：前面的分片映射完整的 chunkSize，最后一个分片按两倍增长。完整的分片保持不变，
+   * 最后一个分片不够时用更大的映射替换，调用方持有写锁
+   */
+  private void ensureCapacity(long end) throws IOException {
+    int chunkCount = byteBufs.length;
+    long mapped = chunkCount == 0 ? 0 : (long) (chunkCount - 1) * chunkSize + byteBufs[chunkCount - 1].capacity();
+    if (mapped >= end) {
+      return;
+    }
+    int newChunkCount = (int) Math.ceilDiv(end, (long) chunkSize);
+    MappedByteBuffer[] newMappedBuffers = Arrays.copyOf(mappedBuffers, newChunkCount);
+    ByteBuf[] newByteBufs = Arrays.copyOf(byteBufs, newChunkCount);
+    for (int i = Math.max(0, chunkCount - 1); i < newChunkCount; i++) {
+      int length = chunkSize;
+      if (i == newChunkCount - 1) {
+        length = getMappedLength(end - (long) i * chunkSize, i < chunkCount ? byteBufs[i].capacity() : 0);
       }
-    } finally {
-      readWriteLock.writeLock().unlock();
+      if (i < chunkCount) {
+        if (byteBufs[i].capacity() == length) {
+          continue;
+        }
+        replacedBuffers.add(mappedBuffers[i]);
+        replacedByteBufs.add(byteBufs[i]);
+      }
+      // 映射超出文件长度的部分时文件会被扩展
+      newMappedBuffers[i] = fileChannel.map(FileChannel.MapMode.READ_WRITE, (long) i * chunkSize, length);
+      newByteBufs[i] = Unpooled.wrappedBuffer(newMappedBuffers[i]);
+    }
+    if (chunkCount > 0) {
+      log.info("Meta index file expanded, mapped: {} -> {}", mapped, (long) (newChunkCount - 1) * chunkSize + newByteBufs[newChunkCount - 1].capacity());
+    }
+    this.mappedBuffers = newMappedBuffers;
+    this.byteBufs = newByteBufs;
+  }
+
+  /**
+   * 最后一个分片的映射长度，至少是 needed，从 DEFAULT_PAGE_SIZE 开始按两倍增长，不超过 chunkSize
+   */
+  private int getMappedLength(long needed, int current) {
+    long length = Math.max(DEFAULT_PAGE_SIZE, current * 2L);
+    while (length < needed) {
+      length *= 2;
+    }
+    return (int) Math.min(length, chunkSize);
+  }
+
+  /**
+   * 记录的文件位置，记录页未分配时返回 -1
+   */
+  private long findPosition(int metaDataId) {
+    if (metaDataId <= 0 || metaDataId > Offset.MAX_META_DATA_ID) {
+      return -1;
+    }
+    int page = (metaDataId - 1) >>> RECORD_PAGE_BITS;
+    long[] pages = pagePositions[page >>> DIRECTORY_BITS];
+    if (pages == null) {
+      return -1;
+    }
+    long pagePosition = pages[page & DIRECTORY_MASK];
+    return pagePosition == 0 ? -1 : pagePosition + (long) ((metaDataId - 1) & RECORD_PAGE_MASK) * RECORD_SIZE;
+  }
+
+  /**
+   * 记录的文件位置，按需分配目录页和记录页，调用方持有写锁
+   */
+  private long getOrAllocatePosition(int metaDataId) throws IOException {
+    long position = findPosition(metaDataId);
+    if (position >= 0) {
+      return position;
+    }
+    if (metaDataId <= 0 || metaDataId > Offset.MAX_META_DATA_ID) {
+      throw new IllegalArgumentException("Invalid meta data id: " + metaDataId);
+    }
+    int page = (metaDataId - 1) >>> RECORD_PAGE_BITS;
+    int root = page >>> DIRECTORY_BITS;
+    if (pagePositions[root] == null) {
+      long directoryPosition = allocate(DIRECTORY_SIZE);
+      writeLong(FILE_HEADER_SIZE + (long) root * 8, directoryPosition);
+      directoryPositions[root] = directoryPosition;
+      pagePositions[root] = new long[1 << DIRECTORY_BITS];
+    }
+    long pagePosition = allocate(RECORD_PAGE_SIZE);
+    writeLong(directoryPositions[root] + (long) (page & DIRECTORY_MASK) * 8, pagePosition);
+    pagePositions[root][page & DIRECTORY_MASK] = pagePosition;
+    return findPosition(metaDataId);
+  }
+
+  /**
+   * 在文件末尾分配一段清零的空间，异常退出前分配过的空间可能残留旧数据
+   */
+  private long allocate(int size) throws IOException {
+    long position = fileEnd;
+    fileEnd += size;
+    ensureCapacity(fileEnd);
+    long idx = position;
+    int left = size;
+    while (left > 0) {
+      int length = Math.min(left, chunkSize - getChunkIndex(idx));
+      getChunk(idx).setZero(getChunkIndex(idx), length);
+      dirtyChunks.set((int) (idx / chunkSize));
+      idx += length;
+      left -= length;
     }
+    return position;
+  }
+
+  private ByteBuf getChunk(long position) {
+    return byteBufs[(int) (position / chunkSize)];
+  }
+
+  private int getChunkIndex(long position) {
+    return (int) (position % chunkSize);
+  }
+
+  private long readLong(long position) {
+    return getChunk(position).getLong(getChunkIndex(position));
+  }
+
+  private void writeLong(long position, long value) {
+    getChunk(position).setLong(getChunkIndex(position), value);
+    dirtyChunks.set((int) (position / chunkSize));
+  }
+
+  /**
+   * 记录的状态，位置为 -1（记录页未分配）时为 STATUS_NULL
+   */
+  private int getStatus(long position) {
+    if (position < 0) {
+      return Offset.STATUS_NULL;
+    }
+    return getChunk(position).getUnsignedByte(getChunkIndex(position));
+  }
+
+  private void setStatus(long position, int status) {
+    getChunk(position).setByte(getChunkIndex(position), status);
+    dirtyChunks.set((int) (position / chunkSize));
+  }
+
+  /**
+   * 写入一条有效的记录，generation 加一
+   */
+  private void writeOffset(long position, Offset offset) {
+    ByteBuf chunk = getChunk(position);
+    int index = getChunkIndex(position);
+    int header = (Offset.STATUS_NORMAL << 24) | ((chunk.getInt(index) + 1) & GENERATION_MASK);
+    long blockIdAndLength = ((long) offset.getBlockId() << 32) | (offset.getLength() & 0xFFFFFFFFL);
+    chunk.setLong(index + RECORD_OFFSET_OFFSET, offset.getOffset());
+    chunk.setLong(index + RECORD_UPDATED_OFFSET, offset.getUpdated());
+    chunk.setLong(index + RECORD_BLOCK_ID_OFFSET, blockIdAndLength);
+    chunk.setInt(index + RECORD_CHECKSUM_OFFSET, checksum(header, offset.getOffset(), offset.getUpdated(), blockIdAndLength));
+    chunk.setInt(index, header);
+    dirtyChunks.set((int) (position / chunkSize));
+  }
+
+  private boolean isIntact(long position) {
+    ByteBuf chunk = getChunk(position);
+    int index = getChunkIndex(position);
+    return chunk.getInt(index + RECORD_CHECKSUM_OFFSET) == checksum(chunk.getInt(index), chunk.getLong(index + RECORD_OFFSET_OFFSET),
+        chunk.getLong(index + RECORD_UPDATED_OFFSET), chunk.getLong(index + RECORD_BLOCK_ID_OFFSET));
+  }
+
+  /**
+   * 记录其余字段的哈希，用于发现写了一半或损坏的记录
+   */
+  private static int checksum(int header, long offset, long updated, long blockIdAndLength) {
+    long hash = (header * 0x9E3779B97F4A7C15L) ^ offset;
+    hash = (hash * 0xBF58476D1CE4E5B9L) ^ updated;
+    hash = (hash * 0x94D049BB133111EBL) ^ blockIdAndLength;
+    hash *= 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ (hash >>> 32));
   }
 
   private void persist() throws IOException {
-    byteBuf.setInt(4, metaDataVersion);
-    byteBuf.setInt(8, maxMetaDataId);
-    byteBuf.setInt(12, metaDataCounter);
-    // 强制将修改刷到磁盘
-    mappedBuffer.force();
+    ByteBuf header = byteBufs[0];
+    header.setInt(4, metaDataVersion);
+    header.setInt(8, maxMetaDataId);
+    header.setInt(12, metaDataCounter);
+    header.setLong(FILE_END_OFFSET, fileEnd);
+    dirtyChunks.set(0);
+    // 强制将修改刷到磁盘，只刷修改过的分片
+    for (int i = dirtyChunks.nextSetBit(0); i >= 0; i = dirtyChunks.nextSetBit(i + 1)) {
+      mappedBuffers[i].force();
+    }
+    dirtyChunks.clear();
     // 如果是重要数据，确保元数据也持久化
     fileChannel.force(true);
   }
 
   public void close() throws IOException {
-    if (byteBuf != null) {
+    if (byteBufs.length > 0) {
+      checkpoint();
+    }
+    for (ByteBuf byteBuf : byteBufs) {
+      byteBuf.release();
+    }
+    for (ByteBuf byteBuf : replacedByteBufs) {
       byteBuf.release();
     }
-    if (mappedBuffer != null) {
+    for (MappedByteBuffer mappedBuffer : mappedBuffers) {
       FileUtil.clean(mappedBuffer); // 清理内存映射
-      mappedBuffer = null;
     }
+    for (MappedByteBuffer mappedBuffer : replacedBuffers) {
+      FileUtil.clean(mappedBuffer);
+    }
+    replacedByteBufs.clear();
+    replacedBuffers.clear();
+    byteBufs = new ByteBuf[0];
+    mappedBuffers = new MappedByteBuffer[0];
     if (fileChannel != null) {
       fileChannel.close();
     }
@@ -112,108 +624,369 @@ public class DiskOffsetIndex implements IOffsetIndexStore {
 
   @Override
   public void upsertOffset(int metaDataId, Offset offset) throws IOException {
-    readWriteLock.writeLock().lock();
+    long stamp = lock.writeLock();
     try {
-      int wtx = (metaDataId - 1) * Offset.TOTAL_SIZE + FILE_HEADER_SIZE;
-      expandSpaceIfNecessary(wtx + Offset.TOTAL_SIZE);
+      long wtx = getOrAllocatePosition(metaDataId);
       if (maxMetaDataId < metaDataId) {
         this.maxMetaDataId = metaDataId;
       }
-      int status = byteBuf.getUnsignedByte(wtx);
+      int status = getStatus(wtx);
       if (status != Offset.STATUS_NORMAL) {
         this.metaDataCounter++;
       }
       this.metaDataVersion++;
-      OffsetSerializer.INSTANCE.serialize(byteBuf.slice(wtx, Offset.TOTAL_SIZE).writerIndex(0), offset);
+      writeOffset(wtx, offset);
+      liveIds.add(metaDataId);
+      allocatedIds.add(metaDataId);
       persist();
+      checkpointIfNeeded();
     } finally {
-      readWriteLock.writeLock().unlock();
+      lock.unlockWrite(stamp);
     }
   }
 
   @Override
-  public Offset getOffset(int metaDataId) {
-    if (maxMetaDataId < metaDataId) {
-      return null;
+  public void upsertOffsets(int[] metaDataIds, Offset[] offsets) throws IOException {
+    if (metaDataIds.length != offsets.length) {
+      throw new IllegalArgumentException("Ids and offsets length mismatch: " + metaDataIds.length + ", " + offsets.length);
     }
-    readWriteLock.readLock().lock();
+    if (metaDataIds.length == 0) {
+      return;
+    }
+    // 写入前校验整批，避免中途失败时只写入了一部分
+    for (int i = 0; i < metaDataIds.length; i++) {
+      if (metaDataIds[i] <= 0 || metaDataIds[i] > Offset.MAX_META_DATA_ID) {
+        throw new IllegalArgumentException("Invalid meta data id: " + metaDataIds[i]);
+      }
+      if (offsets[i] == null) {
+        throw new IllegalArgumentException("Offset cannot be null, meta data id: " + metaDataIds[i]);
+      }
+    }
+    long stamp = lock.writeLock();
     try {
-      int rdx = (metaDataId - 1) * Offset.TOTAL_SIZE + FILE_HEADER_SIZE;
-      int status = byteBuf.getUnsignedByte(rdx);
-      if (status == Offset.STATUS_NORMAL) {
-        return OffsetSerializer.INSTANCE.deserialize(byteBuf.slice(rdx, Offset.TOTAL_SIZE).readerIndex(0));
-      } else {
-        return null;
+      // 先分配全部记录的位置，空间不足时还没有写入任何记录
+      long[] positions = new long[metaDataIds.length];
+      for (int i = 0; i < metaDataIds.length; i++) {
+        positions[i] = getOrAllocatePosition(metaDataIds[i]);
+      }
+      for (int i = 0; i < metaDataIds.length; i++) {
+        long wtx = positions[i];
+        if (maxMetaDataId < metaDataIds[i]) {
+          this.maxMetaDataId = metaDataIds[i];
+        }
+        int status = getStatus(wtx);
+        if (status != Offset.STATUS_NORMAL) {
+          this.metaDataCounter++;
+        }
+        writeOffset(wtx, offsets[i]);
+        liveIds.add(metaDataIds[i]);
+        allocatedIds.add(metaDataIds[i]);
+      }
+      this.metaDataVersion++;
+      persist();
+      checkpointIfNeeded();
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * @return 池化的 Offset，由调用方回收，记录不存在时返回 null
+   */
+  @Override
+  public Offset getOffset(int metaDataId) {
+    Offset offset = Offset.create();
+    if (getOffset(metaDataId, offset)) {
+      return offset;
+    }
+    offset.recycle();
+    return null;
+  }
+
+  @Override
+  public boolean getOffset(int metaDataId, Offset holder) {
+    if (metaDataId <= 0 || maxMetaDataId < metaDataId) {
+      return false;
+    }
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      try {
+        int result = readOffset(metaDataId, holder, stamp);
+        if (result != READ_RETRY) {
+          return result == READ_FOUND;
+        }
+      } catch (RuntimeException e) {
+        // 与写入并发时读到的目录和分片可能不一致，加读锁重读
       }
+    }
+    stamp = lock.readLock();
+    try {
+      return readOffset(metaDataId, holder, 0) == READ_FOUND;
     } finally {
-      readWriteLock.readLock().unlock();
+      lock.unlockRead(stamp);
     }
   }
 
+  /**
+   * 读取记录到 holder。乐观读时先读到局部变量，校验通过后才写入 holder，所以 holder 不会看到不一致的记录。
+   * checksum 不一致的记录视为不存在
+   *
+   * @param stamp 乐观读的 stamp，持有读锁时为 0
+   * @return READ_FOUND，READ_ABSENT 时 holder 不变，乐观读校验失败时返回 READ_RETRY
+   */
+  private int readOffset(int metaDataId, Offset holder, long stamp) {
+    long position = findPosition(metaDataId);
+    if (position < 0) {
+      return stamp != 0 && !lock.validate(stamp) ? READ_RETRY : READ_ABSENT;
+    }
+    // 记录按 32 字节对齐，每个字段都是一次对齐的读取
+    ByteBuf chunk = getChunk(position);
+    int index = getChunkIndex(position);
+    int header = chunk.getInt(index);
+    int checksum = chunk.getInt(index + RECORD_CHECKSUM_OFFSET);
+    long offset = chunk.getLong(index + RECORD_OFFSET_OFFSET);
+    long updated = chunk.getLong(index + RECORD_UPDATED_OFFSET);
+    long blockIdAndLength = chunk.getLong(index + RECORD_BLOCK_ID_OFFSET);
+    if (stamp != 0 && !lock.validate(stamp)) {
+      return READ_RETRY;
+    }
+    if (header >>> 24 != Offset.STATUS_NORMAL) {
+      return READ_ABSENT;
+    }
+    if (checksum != checksum(header, offset, updated, blockIdAndLength)) {
+      log.error("Meta index record is broken, id: {}", metaDataId);
+      return READ_ABSENT;
+    }
+    holder.setStatus((byte) Offset.STATUS_NORMAL);
+    holder.setBlockId((int) (blockIdAndLength >>> 32));
+    holder.setOffset(offset);
+    holder.setLength((int) blockIdAndLength);
+    holder.setUpdated(updated);
+    return READ_FOUND;
+  }
+
   @Override
   public void removeOffset(int metaDataId) throws IOException {
     if (maxMetaDataId < metaDataId) {
       return;
     }
-    readWriteLock.writeLock().lock();
+    long stamp = lock.writeLock();
     try {
-      this.metaDataVersion++;
-      int idx = (metaDataId - 1) * Offset.TOTAL_SIZE + FILE_HEADER_SIZE;
-      int status = byteBuf.getUnsignedByte(idx);
-      if (status == Offset.STATUS_NORMAL) {
-        this.metaDataCounter--;
+      allocatedIds.remove(metaDataId);
+      if (!removeLive(metaDataId)) {
+        return;
       }
-      byteBuf.setByte(idx, Offset.STATUS_DELETED);
+      this.metaDataVersion++;
       if (maxMetaDataId == metaDataId) {
         findMaxMetaDataId();
       }
       persist();
+      checkpointIfNeeded();
     } finally {
-      readWriteLock.writeLock().unlock();
+      lock.unlockWrite(stamp);
     }
   }
 
+  @Override
+  public void removeOffsets(int[] metaDataIds) throws IOException {
+    if (metaDataIds.length == 0) {
+      return;
+    }
+    long stamp = lock.writeLock();
+    try {
+      boolean removed = false;
+      for (int metaDataId : metaDataIds) {
+        allocatedIds.remove(metaDataId);
+        removed |= removeLive(metaDataId);
+      }
+      if (!removed) {
+        return;
+      }
+      this.metaDataVersion++;
+      findMaxMetaDataId();
+      persist();
+      checkpointIfNeeded();
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * 删除一条有效的记录，调用方持有写锁
+   *
+   * @return id 是否有效，无效的 id 不修改文件
+   */
+  private boolean removeLive(int metaDataId) {
+    if (!liveIds.contains(metaDataId)) {
+      return false;
+    }
+    long idx = findPosition(metaDataId);
+    if (getStatus(idx) == Offset.STATUS_NORMAL) {
+      setStatus(idx, Offset.STATUS_DELETED);
+    }
+    this.metaDataCounter--;
+    liveIds.remove(metaDataId);
+    return true;
+  }
+
   @Override
   public int getMetaDataVersion() {
-    readWriteLock.readLock().lock();
+    return this.metaDataVersion;
+  }
+
+  @Override
+  public int getMaxMetaDataId() {
+    return this.maxMetaDataId;
+  }
+
+  @Override
+  public int getSize() {
+    return this.metaDataCounter;
+  }
+
+  private void findMaxMetaDataId() {
+    this.maxMetaDataId = liveIds.isEmpty() ? 0 : liveIds.last();
+  }
+
+  /**
+   * 分配一个 id，优先复用已删除的最小 id，分配的 id 在写入前不会被再次分配
+   */
+  @Override
+  public int allocateId() {
+    long stamp = lock.writeLock();
     try {
-      return this.metaDataVersion;
+      long id = allocatedIds.nextAbsentValue(1);
+      if (id > Offset.MAX_META_DATA_ID) {
+        throw new IllegalStateException("No meta data id available");
+      }
+      allocatedIds.add((int) id);
+      return (int) id;
     } finally {
-      readWriteLock.readLock().unlock();
+      lock.unlockWrite(stamp);
     }
   }
 
+  /**
+   * 有效 id 的快照，按 id 升序
+   */
   @Override
-  public synchronized int getMaxMetaDataId() {
-    readWriteLock.readLock().lock();
+  public RoaringBitmap getLiveIds() {
+    long stamp = lock.readLock();
     try {
-      return this.maxMetaDataId;
+      return liveIds.clone();
     } finally {
-      readWriteLock.readLock().unlock();
+      lock.unlockRead(stamp);
     }
   }
 
   @Override
-  public synchronized int getSize() {
-    readWriteLock.readLock().lock();
+  public Spliterator<OffsetIndexEntry> spliterator() {
+    long stamp = lock.readLock();
     try {
-      return this.metaDataCounter;
+      return new OffsetSpliterator(1, maxMetaDataId + 1, metaDataCounter);
     } finally {
-      readWriteLock.readLock().unlock();
+      lock.unlockRead(stamp);
     }
   }
 
-  private void findMaxMetaDataId() {
-    int tmpId = this.maxMetaDataId;
-    tmpId--;
-    while (tmpId > 0) {
-      int idx = (tmpId - 1) * Offset.TOTAL_SIZE + FILE_HEADER_SIZE;
-      int status = byteBuf.getUnsignedByte(idx);
-      if (status == Offset.STATUS_NORMAL) {
-        break;
+  /**
+   * 不小于 metaDataId 且所在记录页已分配的第一个 id，没有时返回 Integer.MAX_VALUE，调用方持有读锁或乐观读
+   */
+  private int nextAllocatedId(int metaDataId) {
+    int page = (metaDataId - 1) >>> RECORD_PAGE_BITS;
+    while (page < (1 << (DIRECTORY_BITS * 2))) {
+      long[] pages = pagePositions[page >>> DIRECTORY_BITS];
+      if (pages == null) {
+        page = (page | DIRECTORY_MASK) + 1;
+      } else if (pages[page & DIRECTORY_MASK] == 0) {
+        page++;
+      } else {
+        return Math.max(metaDataId, (page << RECORD_PAGE_BITS) + 1);
+      }
+    }
+    return Integer.MAX_VALUE;
+  }
+
+  /**
+   * 扫描 [nextId, endId) 的记录，按记录页的边界拆分，跳过未分配的记录页。每条记录乐观读入复用的 entry，回调在锁外执行，
+   * 所以回调中可以写索引
+   */
+  private class OffsetSpliterator implements Spliterator<OffsetIndexEntry> {
+
+    private final OffsetIndexEntry entry = new OffsetIndexEntry();
+    private int nextId;
+    private final int endId;
+    private long estimate;
+
+    OffsetSpliterator(int nextId, int endId, long estimate) {
+      this.nextId = nextId;
+      this.endId = endId;
+      this.estimate = estimate;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super OffsetIndexEntry> action) {
+      while (nextId < endId) {
+        int id = -1;
+        int result = READ_RETRY;
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+          try {
+            id = nextAllocatedId(nextId);
+            if (id < endId) {
+              result = readOffset(id, entry.getOffset(), stamp);
+            } else if (lock.validate(stamp)) {
+              result = READ_ABSENT;
+            }
+          } catch (RuntimeException e) {
+            // 与写入并发时读到的目录和分片可能不一致，加读锁重读
+            result = READ_RETRY;
+          }
+        }
+        if (result == READ_RETRY) {
+          stamp = lock.readLock();
+          try {
+            id = nextAllocatedId(nextId);
+            result = id < endId ? readOffset(id, entry.getOffset(), 0) : READ_ABSENT;
+          } finally {
+            lock.unlockRead(stamp);
+          }
+        }
+        if (id >= endId) {
+          nextId = endId;
+          break;
+        }
+        nextId = id + 1;
+        if (result == READ_FOUND) {
+          entry.setMetaDataId(id);
+          action.accept(entry);
+          return true;
+        }
       }
-      tmpId--;
+      return false;
+    }
+
+    @Override
+    public Spliterator<OffsetIndexEntry> trySplit() {
+      // 在中点所在记录页的起始处拆分，不足一页时不拆分
+      int mid = ((((nextId - 1) + (endId - nextId) / 2) >>> RECORD_PAGE_BITS) << RECORD_PAGE_BITS) + 1;
+      if (mid <= nextId || mid >= endId) {
+        return null;
+      }
+      estimate >>>= 1;
+      OffsetSpliterator prefix = new OffsetSpliterator(nextId, mid, estimate);
+      this.nextId = mid;
+      return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+      return estimate;
+    }
+
+    @Override
+    public int characteristics() {
+      return ORDERED | DISTINCT | NONNULL | CONCURRENT;
     }
-    this.maxMetaDataId = tmpId;
   }
 }
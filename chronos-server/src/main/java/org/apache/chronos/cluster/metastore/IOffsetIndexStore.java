@@ -1,8 +1,10 @@
 package org.apache.chronos.cluster.metastore;
 
 import java.io.IOException;
+import java.util.Spliterator;
 import java.util.concurrent.ExecutionException;
 import org.apache.chronos.cluster.meta.Offset;
+import org.roaringbitmap.RoaringBitmap;
 
 public interface IOffsetIndexStore {
 
@@ -10,11 +12,44 @@ public interface IOffsetIndexStore {
 
   Offset getOffset(int metaDataId) throws ExecutionException;
 
+  /**
+   * 读取到调用方持有的 holder 中，不分配对象
+   *
+   * @return 记录不存在或已删除时返回 false，holder 不变
+   */
+  boolean getOffset(int metaDataId, Offset holder);
+
   void removeOffset(int metaDataId) throws IOException;
 
+  /**
+   * 批量写入，整批只刷盘一次，版本号只增加一次
+   */
+  void upsertOffsets(int[] metaDataIds, Offset[] offsets) throws IOException;
+
+  /**
+   * 批量删除，整批只刷盘一次，版本号只增加一次
+   */
+  void removeOffsets(int[] metaDataIds) throws IOException;
+
   int getMetaDataVersion();
 
   int getMaxMetaDataId();
 
   int getSize();
+
+  /**
+   * 分配一个未使用的 id，优先复用已删除的 id
+   */
+  int allocateId();
+
+  /**
+   * 有效 id 的快照，按 id 升序
+   */
+  RoaringBitmap getLiveIds();
+
+  /**
+   * 按 id 升序扫描有效的记录，可按 id 范围拆分并行扫描。记录复用同一个 {@link OffsetIndexEntry}，不分配对象，
+   * 扫描期间的写入可能被看到也可能不被看到
+   */
+  Spliterator<OffsetIndexEntry> spliterator();
 }
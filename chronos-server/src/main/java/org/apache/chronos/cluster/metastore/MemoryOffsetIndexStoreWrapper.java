@@ -1,43 +1,92 @@
 package org.apache.chronos.cluster.metastore;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import java.io.IOException;
+import java.util.Spliterator;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
 import org.apache.chronos.cluster.meta.Offset;
+import org.roaringbitmap.RoaringBitmap;
 
 public class MemoryOffsetIndexStoreWrapper implements IOffsetIndexStore {
 
+  // 32 MB, about 1M offsets
+  public static final long DEFAULT_CACHE_BYTES = 32L * 1024 * 1024;
   private final DiskOffsetIndex diskOffsetIndex;
-  private final LoadingCache<Integer, Offset> cache;
+  private final OffsetCache cache;
+  // orders the write through of concurrent writes of the same id
+  private final Object writeLock = new Object();
 
   public MemoryOffsetIndexStoreWrapper(DiskOffsetIndex diskOffsetIndex) {
+    this(diskOffsetIndex, DEFAULT_CACHE_BYTES);
+  }
+
+  /**
+   * @param cacheBytes memory used by the offset cache.
+   */
+  public MemoryOffsetIndexStoreWrapper(DiskOffsetIndex diskOffsetIndex, long cacheBytes) {
     this.diskOffsetIndex = diskOffsetIndex;
-    cache = CacheBuilder.newBuilder().expireAfterWrite(24, TimeUnit.HOURS).maximumSize(100_0000L).build(new CacheLoader<Integer, Offset>() {
-      @Override
-      public Offset load(Integer key) throws Exception {
-        return diskOffsetIndex.getOffset(key);
-      }
-    });
+    this.cache = new OffsetCache(cacheBytes);
   }
 
   @Override
   public void upsertOffset(int metaDataId, Offset offset) throws IOException {
-    cache.invalidate(metaDataId);
-    diskOffsetIndex.upsertOffset(metaDataId, offset);
+    synchronized (writeLock) {
+      diskOffsetIndex.upsertOffset(metaDataId, offset);
+      cache.put(metaDataId, offset);
+    }
+  }
+
+  @Override
+  public void upsertOffsets(int[] metaDataIds, Offset[] offsets) throws IOException {
+    synchronized (writeLock) {
+      diskOffsetIndex.upsertOffsets(metaDataIds, offsets);
+      for (int i = 0; i < metaDataIds.length; i++) {
+        cache.put(metaDataIds[i], offsets[i]);
+      }
+    }
   }
 
+  /**
+   * @return a pooled offset the caller recycles, null if there is no offset for the id.
+   */
   @Override
   public Offset getOffset(int metaDataId) throws ExecutionException {
-    return cache.get(metaDataId);
+    Offset offset = Offset.create();
+    if (getOffset(metaDataId, offset)) {
+      return offset;
+    }
+    offset.recycle();
+    return null;
+  }
+
+  @Override
+  public boolean getOffset(int metaDataId, Offset holder) {
+    if (cache.get(metaDataId, holder)) {
+      return true;
+    }
+    long stamp = cache.stamp(metaDataId);
+    if (!diskOffsetIndex.getOffset(metaDataId, holder)) {
+      return false;
+    }
+    cache.fill(metaDataId, holder, stamp);
+    return true;
   }
 
   @Override
   public void removeOffset(int metaDataId) throws IOException {
-    cache.invalidate(metaDataId);
-    diskOffsetIndex.removeOffset(metaDataId);
+    synchronized (writeLock) {
+      diskOffsetIndex.removeOffset(metaDataId);
+      cache.remove(metaDataId);
+    }
+  }
+
+  @Override
+  public void removeOffsets(int[] metaDataIds) throws IOException {
+    synchronized (writeLock) {
+      diskOffsetIndex.removeOffsets(metaDataIds);
+      for (int metaDataId : metaDataIds) {
+        cache.remove(metaDataId);
+      }
+    }
   }
 
   @Override
@@ -54,4 +103,22 @@ public class MemoryOffsetIndexStoreWrapper implements IOffsetIndexStore {
   public int getSize() {
     return diskOffsetIndex.getSize();
   }
+
+  @Override
+  public int allocateId() {
+    return diskOffsetIndex.allocateId();
+  }
+
+  @Override
+  public RoaringBitmap getLiveIds() {
+    return diskOffsetIndex.getLiveIds();
+  }
+
+  /**
+   * Scans the index directly, the records scanned are not cached.
+   */
+  @Override
+  public Spliterator<OffsetIndexEntry> spliterator() {
+    return diskOffsetIndex.spliterator();
+  }
 }
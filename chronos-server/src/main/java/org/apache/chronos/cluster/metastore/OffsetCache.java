@@ -0,0 +1,262 @@
+package org.apache.chronos.cluster.metastore;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.apache.chronos.cluster.meta.Offset;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A cache of offsets keyed by the primitive meta data id, the records are stored in flat arrays so a lookup allocates
+ * nothing and the cache holds no object per entry.
+ * <p>
+ * The cache is set associative: an id is hashed to a set of {@link #WAYS} slots and evicts within its set by CLOCK, a
+ * slot read since the hand last passed it gets a second chance. Only normal offsets are cached, a slot holds the block
+ * id, the length, the offset and the update time of the record.
+ * <p>
+ * The cache is written through: {@link #put(int, Offset)} and {@link #remove(int)} are called after the index is
+ * written. A miss is filled by {@link #fill(int, Offset, long)} with the stamp taken before the index was read, the
+ * fill is dropped when the set was written since, so a fill never replaces a newer record with an older one.
+ * <p>
+ * Writers of a set hold a striped lock. Readers take no lock: every set has a sequence that is odd while the set is
+ * written, a hit is returned only when the sequence did not change while the slot was read, otherwise the read is
+ * retried under the lock. The reference bit is set by readers without the lock, a lost bit only costs a second chance.
+ */
+class OffsetCache {
+
+  private final static Logger log = LogManager.getLogger(OffsetCache.class);
+
+  static final int WAYS = 8;
+  // key + 3 longs of record + reference bit
+  static final int SLOT_BYTES = 4 + 3 * 8 + 1;
+  // the largest power of two number of sets whose record array, 3 longs per slot, still fits in an int length
+  static final int MAX_SETS = Integer.highestOneBit(Integer.MAX_VALUE / (WAYS * 3));
+  private static final int MAX_LOCK_STRIPES = 256;
+
+  private final int setMask;
+  private final int[] keys;
+  private final long[] records;
+  private final boolean[] referenced;
+  private final byte[] hands;
+  // number of writes of every set, a fill is dropped when the set was written after its stamp
+  private final long[] stamps;
+  // sequence of every set, odd while a writer writes the set
+  private final AtomicLongArray sequences;
+  private final Object[] locks;
+  private final int lockMask;
+
+  /**
+   * @param capacityBytes memory used by the cache, rounded down to a power of two number of sets and capped at
+   * {@link #MAX_SETS} sets.
+   */
+  OffsetCache(long capacityBytes) {
+    int sets = getSetCount(capacityBytes);
+    this.setMask = sets - 1;
+    this.keys = new int[sets * WAYS];
+    this.records = new long[sets * WAYS * 3];
+    this.referenced = new boolean[sets * WAYS];
+    this.hands = new byte[sets];
+    this.stamps = new long[sets];
+    this.sequences = new AtomicLongArray(sets);
+    int stripes = Math.min(sets, MAX_LOCK_STRIPES);
+    this.locks = new Object[stripes];
+    for (int i = 0; i < stripes; i++) {
+      locks[i] = new Object();
+    }
+    this.lockMask = stripes - 1;
+  }
+
+  /**
+   * The number of sets for the capacity, at least one and at most {@link #MAX_SETS}.
+   */
+  static int getSetCount(long capacityBytes) {
+    long sets = Math.max(WAYS, capacityBytes / SLOT_BYTES) / WAYS;
+    if (sets > MAX_SETS) {
+      log.warn("Offset cache capacity {} bytes exceeds the maximum of {} bytes, capped", capacityBytes,
+          (long) MAX_SETS * WAYS * SLOT_BYTES);
+      return MAX_SETS;
+    }
+    return Integer.highestOneBit((int) sets);
+  }
+
+  int getCapacity() {
+    return keys.length;
+  }
+
+  private int getSet(int metaDataId) {
+    int hash = metaDataId * 0x9E3779B9;
+    return (hash ^ (hash >>> 16)) & setMask;
+  }
+
+  /**
+   * The slot of the id in the set, -1 if the id is not cached. The caller holds the lock of the set or validates
+   * the read with the sequence of the set.
+   */
+  private int findSlot(int set, int metaDataId) {
+    int base = set * WAYS;
+    for (int slot = base; slot < base + WAYS; slot++) {
+      if (keys[slot] == metaDataId) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return whether the id is cached, the holder is filled with its record.
+   */
+  boolean get(int metaDataId, Offset holder) {
+    if (metaDataId <= 0) {
+      // 0 marks a free slot
+      return false;
+    }
+    int set = getSet(metaDataId);
+    long sequence = sequences.get(set);
+    if ((sequence & 1) == 0) {
+      int slot = findSlot(set, metaDataId);
+      long blockIdAndLength = 0;
+      long offset = 0;
+      long updated = 0;
+      if (slot >= 0) {
+        blockIdAndLength = records[slot * 3];
+        offset = records[slot * 3 + 1];
+        updated = records[slot * 3 + 2];
+      }
+      // the reads of the set are done before the sequence is read again
+      VarHandle.acquireFence();
+      if (sequences.get(set) == sequence) {
+        if (slot < 0) {
+          return false;
+        }
+        if (!referenced[slot]) {
+          referenced[slot] = true;
+        }
+        fillHolder(holder, blockIdAndLength, offset, updated);
+        return true;
+      }
+    }
+    // a writer wrote the set while it was read
+    synchronized (locks[set & lockMask]) {
+      int slot = findSlot(set, metaDataId);
+      if (slot < 0) {
+        return false;
+      }
+      referenced[slot] = true;
+      fillHolder(holder, records[slot * 3], records[slot * 3 + 1], records[slot * 3 + 2]);
+      return true;
+    }
+  }
+
+  private static void fillHolder(Offset holder, long blockIdAndLength, long offset, long updated) {
+    holder.setStatus((byte) Offset.STATUS_NORMAL);
+    holder.setBlockId((int) (blockIdAndLength >>> 32));
+    holder.setLength((int) blockIdAndLength);
+    holder.setOffset(offset);
+    holder.setUpdated(updated);
+  }
+
+  /**
+   * The stamp of the set of the id, taken before the index is read for a fill.
+   */
+  long stamp(int metaDataId) {
+    int set = getSet(metaDataId);
+    synchronized (locks[set & lockMask]) {
+      return stamps[set];
+    }
+  }
+
+  /**
+   * Cache a record read from the index after a miss, unless the set was written since the stamp was taken.
+   */
+  void fill(int metaDataId, Offset offset, long stamp) {
+    if (metaDataId <= 0) {
+      return;
+    }
+    int set = getSet(metaDataId);
+    synchronized (locks[set & lockMask]) {
+      if (stamps[set] != stamp || findSlot(set, metaDataId) >= 0) {
+        return;
+      }
+      long sequence = beginWrite(set);
+      write(evict(set), metaDataId, offset);
+      sequences.set(set, sequence + 2);
+    }
+  }
+
+  /**
+   * Write through a record written in the index.
+   */
+  void put(int metaDataId, Offset offset) {
+    if (metaDataId <= 0) {
+      return;
+    }
+    int set = getSet(metaDataId);
+    synchronized (locks[set & lockMask]) {
+      stamps[set]++;
+      long sequence = beginWrite(set);
+      int slot = findSlot(set, metaDataId);
+      write(slot >= 0 ? slot : evict(set), metaDataId, offset);
+      sequences.set(set, sequence + 2);
+    }
+  }
+
+  /**
+   * Remove a record removed from the index.
+   */
+  void remove(int metaDataId) {
+    int set = getSet(metaDataId);
+    synchronized (locks[set & lockMask]) {
+      stamps[set]++;
+      int slot = findSlot(set, metaDataId);
+      if (slot >= 0) {
+        long sequence = beginWrite(set);
+        keys[slot] = 0;
+        referenced[slot] = false;
+        sequences.set(set, sequence + 2);
+      }
+    }
+  }
+
+  /**
+   * Mark the set as written, the caller holds the lock of the set and sets the sequence to the returned one plus two
+   * after the write.
+   */
+  private long beginWrite(int set) {
+    long sequence = sequences.get(set);
+    sequences.set(set, sequence + 1);
+    // the writes of the set are not seen before the odd sequence
+    VarHandle.storeStoreFence();
+    return sequence;
+  }
+
+  private void write(int slot, int metaDataId, Offset offset) {
+    keys[slot] = metaDataId;
+    referenced[slot] = false;
+    records[slot * 3] = ((long) offset.getBlockId() << 32) | (offset.getLength() & 0xFFFFFFFFL);
+    records[slot * 3 + 1] = offset.getOffset();
+    records[slot * 3 + 2] = offset.getUpdated();
+  }
+
+  /**
+   * A free slot of the set, or the slot evicted by the CLOCK hand of the set.
+   */
+  private int evict(int set) {
+    int base = set * WAYS;
+    for (int slot = base; slot < base + WAYS; slot++) {
+      if (keys[slot] == 0) {
+        return slot;
+      }
+    }
+    int hand = hands[set];
+    while (true) {
+      int slot = base + hand;
+      hand = (hand + 1) % WAYS;
+      if (referenced[slot]) {
+        referenced[slot] = false;
+      } else {
+        hands[set] = (byte) hand;
+        return slot;
+      }
+    }
+  }
+}
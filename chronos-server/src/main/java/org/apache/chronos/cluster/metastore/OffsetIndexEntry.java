@@ -0,0 +1,25 @@
+package org.apache.chronos.cluster.metastore;
+
+import org.apache.chronos.cluster.meta.Offset;
+
+/**
+ * 扫描索引时的一条记录，由 {@link IOffsetIndexStore#spliterator()} 复用，每个 Spliterator 只有一个实例，
+ * 回调返回后内容会被下一条记录覆盖，需要保留时调用方自行复制
+ */
+public class OffsetIndexEntry {
+
+  private int metaDataId;
+  private final Offset offset = new Offset();
+
+  public int getMetaDataId() {
+    return metaDataId;
+  }
+
+  void setMetaDataId(int metaDataId) {
+    this.metaDataId = metaDataId;
+  }
+
+  public Offset getOffset() {
+    return offset;
+  }
+}
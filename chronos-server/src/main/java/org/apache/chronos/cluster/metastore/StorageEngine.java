@@ -5,6 +5,7 @@ import io.vertx.core.Future;
 import io.vertx.core.Vertx;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Collection;
 import java.util.List;
 import org.apache.chronos.cluster.meta.IMetaData;
@@ -16,11 +17,17 @@ public class StorageEngine implements IStorageEngine {
   private final Context context;
   private final Vertx vertx;
   private final IOffsetIndexStore offsetIndexStore;
+  private final TagsIndexChannel tagsIndex;
+  private final TagDictionary tagDictionary;
 
   public StorageEngine(Vertx vertx, Context context) throws IOException {
     this.context = context;
     this.vertx = vertx;
-    this.offsetIndexStore = new MemoryOffsetIndexStoreWrapper(new DiskOffsetIndex(new File(CfgUtil.getString(ChronosConfig.CFG_META_STORAGE_PATH, context.config()))));
+    this.offsetIndexStore = new MemoryOffsetIndexStoreWrapper(new DiskOffsetIndex(new File(CfgUtil.getString(ChronosConfig.CFG_META_STORAGE_PATH, context.config())),
+        CfgUtil.getInteger(ChronosConfig.CFG_META_STORAGE_CHUNK_SIZE, context.config())), CfgUtil.getLong(ChronosConfig.CFG_META_OFFSET_CACHE_SIZE, context.config()));
+    this.tagsIndex = new TagsIndexChannel(CfgUtil.getString(ChronosConfig.CFG_META_STORAGE_PATH, context.config()), this,
+        CfgUtil.getInteger(ChronosConfig.CFG_META_TAGS_INDEX_SHARDS, context.config()), CfgUtil.getInteger(ChronosConfig.CFG_META_TAGS_INDEX_CAPACITY, context.config()));
+    this.tagDictionary = new TagDictionary(CfgUtil.getString(ChronosConfig.CFG_META_STORAGE_PATH, context.config()));
   }
 
   @Override
@@ -53,17 +60,30 @@ public class StorageEngine implements IStorageEngine {
 
   @Override
   public void save(IMetaData metaData) {
-
+    resolveTagIds(metaData);
   }
 
   @Override
   public void save(Collection<IMetaData> metaData) {
-
+    for (IMetaData data : metaData) {
+      resolveTagIds(data);
+    }
   }
 
   @Override
   public void update(IMetaData metaData) {
+    resolveTagIds(metaData);
+  }
 
+  /**
+   * 序列化前解析标签的 ID，序列化只写已解析的 ID，不修改记录也不访问磁盘
+   */
+  private void resolveTagIds(IMetaData metaData) {
+    try {
+      tagDictionary.resolveTagIds(metaData);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
   }
 
   @Override
@@ -0,0 +1,148 @@
+package org.apache.chronos.cluster.metastore;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.apache.chronos.common.FileUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * 存放超过槽位长度的标签的 UTF-8 字节，只追加不修改。索引槽位保存标签在文件中的偏移和长度，扩容时新旧表共用同一份数据。
+ * <p>
+ * 写入由 {@link TagsIndexChannel} 的写锁保护。文件空间不足时按倍数扩大并重新映射，旧的映射不主动释放，乐观读的查询可能还在读取，
+ * 由 GC 解除映射。删除的标签不回收空间。
+ * <p>
+ * 文件在追加第一个标签时创建，没有长标签的分片没有 arena 文件。
+ */
+class TagArena {
+
+  private final static Logger log = LogManager.getLogger(TagArena.class);
+
+  private static final int MAGIC = 0x54414741;
+  private static final int FORMAT_VERSION = 1;
+  // 文件头：魔数、格式版本、已使用的末尾位置
+  private static final int HEADER_SIZE = 16;
+  private static final int VERSION_OFFSET = 4;
+  private static final int END_OFFSET = 8;
+  private static final int INITIAL_SIZE = 64 * 1024;
+
+  private final Path path;
+  // 文件创建前为 null
+  private FileChannel fileChannel;
+  private MappedByteBuffer mappedByteBuffer;
+  private volatile ByteBuf byteBuf;
+
+  TagArena(Path path) throws IOException {
+    this.path = path;
+    if (Files.exists(path)) {
+      open();
+    }
+  }
+
+  /**
+   * 打开文件，文件不存在或为空时创建
+   */
+  private void open() throws IOException {
+    FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+    this.fileChannel = fileChannel;
+    try {
+      long size = fileChannel.size();
+      if (size == 0) {
+        map(INITIAL_SIZE);
+        byteBuf.setInt(0, MAGIC);
+        byteBuf.setInt(VERSION_OFFSET, FORMAT_VERSION);
+        byteBuf.setLong(END_OFFSET, HEADER_SIZE);
+        log.info("Created new tag arena file: {}", path.toAbsolutePath());
+      } else {
+        if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+          throw new IOException("Corrupted tag arena file, size: " + size);
+        }
+        map(size);
+        int version = byteBuf.getInt(VERSION_OFFSET);
+        long end = byteBuf.getLong(END_OFFSET);
+        if (byteBuf.getInt(0) != MAGIC || version != FORMAT_VERSION || end < HEADER_SIZE || end > size) {
+          throw new IOException("Corrupted tag arena file, version: " + version + ", end: " + end + ", size: " + size);
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      fileChannel.close();
+      this.fileChannel = null;
+      this.mappedByteBuffer = null;
+      this.byteBuf = null;
+      throw e;
+    }
+  }
+
+  private void map(long size) throws IOException {
+    // 映射时文件扩展到新的大小
+    mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    byteBuf = Unpooled.wrappedBuffer(mappedByteBuffer);
+  }
+
+  /**
+   * 追加标签字节，调用方持有写锁
+   *
+   * @return 标签在文件中的偏移
+   */
+  int append(byte[] bytes, int length) throws IOException {
+    if (fileChannel == null) {
+      open();
+    }
+    ByteBuf current = byteBuf;
+    long end = current.getLong(END_OFFSET);
+    long needSize = end + length;
+    if (needSize > current.capacity()) {
+      long newSize = Math.max((long) current.capacity() * 2, needSize);
+      if (newSize > Integer.MAX_VALUE) {
+        if (needSize > Integer.MAX_VALUE) {
+          throw new MemMapSpaceExceedException("Tag arena size " + needSize + " exceeds the maximum allowed MappedByteBuffer size");
+        }
+        newSize = Integer.MAX_VALUE;
+      }
+      map(newSize);
+      current = byteBuf;
+    }
+    current.setBytes((int) end, bytes, 0, length);
+    current.setLong(END_OFFSET, needSize);
+    return (int) end;
+  }
+
+  /**
+   * 比较文件中的标签与给定字节，调用方持有读锁或乐观读
+   */
+  boolean equals(int offset, byte[] bytes, int length) {
+    ByteBuf current = byteBuf;
+    for (int i = 0; i < length; i++) {
+      if (current.getByte(offset + i) != bytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  void read(int offset, byte[] bytes, int length) {
+    byteBuf.getBytes(offset, bytes, 0, length);
+  }
+
+  void force() throws IOException {
+    if (fileChannel == null) {
+      return;
+    }
+    mappedByteBuffer.force();
+    fileChannel.force(true);
+  }
+
+  void close() throws IOException {
+    if (fileChannel == null) {
+      return;
+    }
+    fileChannel.close();
+    FileUtil.clean(mappedByteBuffer);
+  }
+}
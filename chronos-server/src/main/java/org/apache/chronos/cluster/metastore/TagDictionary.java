@@ -0,0 +1,279 @@
+package org.apache.chronos.cluster.metastore;
+
+import com.apache.chronos.protocol.codec.CodecUtil;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.chronos.cluster.meta.IMetaData;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * 全局标签字典，为每个不同的标签分配从 0 开始的连续 int ID，元数据记录中只保存标签 ID。
+ * <p>
+ * 字典与 {@link TagsIndexChannel} 放在同一目录，文件 TAGS.DICT 按 ID 顺序追加变长编码的标签，第 n 条记录即 ID 为 n 的标签，
+ * 标签一旦分配 ID 不再改变。打开时读入全部标签，末尾不完整的记录是写入中断留下的，截掉后继续追加。
+ * <p>
+ * 新分配的 ID 在标签同步到磁盘之后才返回，使用该 ID 的记录落盘时字典中一定已有对应的标签；批量分配时一批只同步一次。
+ * 追加失败时文件截回追加前的位置，不在文件中间留下无法解析的字节。
+ * <p>
+ * 查询不加锁：标签到 ID 用 ConcurrentHashMap，ID 到标签用数组，先写数组再发布数量，读到的数量之内的标签都可见。分配 ID 互斥。
+ */
+public class TagDictionary {
+
+  private final static Logger log = LogManager.getLogger(TagDictionary.class);
+
+  private static final String TAG_DICTIONARY_FILE = "TAGS.DICT";
+  // 标签 ID 按变长 int 编码，最大 2^30 - 1
+  private static final int MAX_SIZE = 1 << 30;
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final FileChannel fileChannel;
+  private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+  private volatile String[] tags = new String[INITIAL_CAPACITY];
+  private volatile int size;
+
+  public TagDictionary(String filePath) throws IOException {
+    Path path = Path.of(filePath, TAG_DICTIONARY_FILE);
+    this.fileChannel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+    try {
+      load(path);
+    } catch (IOException | RuntimeException e) {
+      fileChannel.close();
+      throw e;
+    }
+  }
+
+  private void load(Path path) throws IOException {
+    long fileSize = fileChannel.size();
+    if (fileSize > Integer.MAX_VALUE) {
+      throw new IOException("Tag dictionary file is too large: " + fileSize);
+    }
+    ByteBuf byteBuf = Unpooled.buffer((int) fileSize);
+    ByteBuffer buffer = byteBuf.nioBuffer(0, (int) fileSize);
+    while (buffer.hasRemaining()) {
+      if (fileChannel.read(buffer, buffer.position()) < 0) {
+        break;
+      }
+    }
+    byteBuf.writerIndex(buffer.position());
+    int end = 0;
+    while (byteBuf.isReadable()) {
+      int length = readLength(byteBuf);
+      if (length <= 0 || byteBuf.readableBytes() < length) {
+        break;
+      }
+      String tag = byteBuf.readCharSequence(length, StandardCharsets.UTF_8).toString();
+      add(tag);
+      end = byteBuf.readerIndex();
+    }
+    if (end < fileSize) {
+      log.warn("Truncated incomplete tag dictionary record: {}, size: {}, valid: {}", path.toAbsolutePath(), fileSize, end);
+      fileChannel.truncate(end);
+    }
+    fileChannel.position(end);
+    log.info("Loaded tag dictionary: {}, {} tags", path.toAbsolutePath(), size);
+  }
+
+  /**
+   * 读取记录的长度，剩余字节不足以放下长度时返回 -1
+   */
+  private static int readLength(ByteBuf byteBuf) {
+    int first = byteBuf.getUnsignedByte(byteBuf.readerIndex());
+    if (byteBuf.readableBytes() < (first >>> 6) + 1) {
+      return -1;
+    }
+    return CodecUtil.readVarInt(byteBuf);
+  }
+
+  /**
+   * 在内存中添加标签，调用方持有锁或在加载时调用
+   */
+  private int add(String tag) {
+    int id = size;
+    String[] current = tags;
+    if (id == current.length) {
+      current = Arrays.copyOf(current, current.length * 2);
+      tags = current;
+    }
+    current[id] = tag;
+    size = id + 1;
+    ids.put(tag, id);
+    return id;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return 标签的 ID，标签不在字典中时返回 -1
+   */
+  public int getId(String tag) {
+    Integer id = tag == null ? null : ids.get(tag);
+    return id == null ? -1 : id;
+  }
+
+  /**
+   * @return ID 对应的标签，ID 未分配时返回 null
+   */
+  public String getTag(int id) {
+    if (id < 0 || id >= size) {
+      return null;
+    }
+    return tags[id];
+  }
+
+  /**
+   * 获取标签的 ID，标签不在字典中时分配新的 ID 并追加到文件，返回前新的标签已同步到磁盘。该方法是线程安全的。
+   */
+  public int getOrCreateId(String tag) throws IOException {
+    checkTag(tag);
+    Integer id = ids.get(tag);
+    if (id != null) {
+      return id;
+    }
+    return getOrCreateIds(List.of(tag))[0];
+  }
+
+  /**
+   * 批量获取标签的 ID，顺序与标签一致，不在字典中的标签分配新的 ID，一批新的标签只同步一次磁盘。该方法是线程安全的。
+   */
+  public int[] getOrCreateIds(List<String> tags) throws IOException {
+    int[] result = new int[tags.size()];
+    boolean missing = false;
+    for (int i = 0; i < result.length; i++) {
+      String tag = tags.get(i);
+      checkTag(tag);
+      Integer id = ids.get(tag);
+      result[i] = id == null ? -1 : id;
+      missing |= id == null;
+    }
+    if (!missing) {
+      return result;
+    }
+    synchronized (this) {
+      // 新的标签先追加并同步，之后才发布，其他线程拿到的 ID 都已落盘
+      List<String> created = new ArrayList<>();
+      Map<String, Integer> pending = new HashMap<>();
+      for (int i = 0; i < result.length; i++) {
+        if (result[i] >= 0) {
+          continue;
+        }
+        String tag = tags.get(i);
+        Integer id = ids.get(tag);
+        if (id == null) {
+          id = pending.get(tag);
+        }
+        if (id == null) {
+          if (size + created.size() == MAX_SIZE) {
+            throw new IllegalStateException("Tag dictionary is full, size: " + size);
+          }
+          id = size + created.size();
+          pending.put(tag, id);
+          created.add(tag);
+        }
+        result[i] = id;
+      }
+      if (!created.isEmpty()) {
+        append(created);
+        for (String tag : created) {
+          add(tag);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * 写入记录前解析记录中标签的 ID，已解析时不变。新的标签分配 ID 并同步到磁盘，所以只在写入路径上调用，序列化不再访问磁盘。
+   *
+   * @throws IllegalArgumentException 有空的标签
+   */
+  public void resolveTagIds(IMetaData metaData) throws IOException {
+    List<String> tags = metaData.getTags();
+    if (tags == null || tags.isEmpty()) {
+      metaData.setTagIds(null);
+      return;
+    }
+    int[] tagIds = metaData.getTagIds();
+    if (tagIds != null && tagIds.length == tags.size()) {
+      return;
+    }
+    metaData.setTagIds(getOrCreateIds(tags));
+  }
+
+  private static void checkTag(String tag) {
+    if (tag == null || tag.isEmpty()) {
+      throw new IllegalArgumentException("Tag cannot be empty");
+    }
+  }
+
+  /**
+   * 追加标签并同步到磁盘，调用方持有锁。失败时截回追加前的位置。
+   */
+  private void append(List<String> created) throws IOException {
+    ByteBuf records = Unpooled.buffer();
+    for (String tag : created) {
+      CodecUtil.writeString(records, tag);
+    }
+    long position = fileChannel.position();
+    try {
+      ByteBuffer buffer = records.nioBuffer();
+      while (buffer.hasRemaining()) {
+        fileChannel.write(buffer);
+      }
+      fileChannel.force(true);
+    } catch (IOException | RuntimeException e) {
+      try {
+        fileChannel.truncate(position);
+        fileChannel.position(position);
+      } catch (IOException suppressed) {
+        e.addSuppressed(suppressed);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * 批量获取 ID 对应的标签，顺序与 ID 一致
+   *
+   * @throws IllegalArgumentException ID 未分配
+   */
+  public List<String> getTags(int[] tagIds) {
+    List<String> result = new ArrayList<>(tagIds.length);
+    for (int tagId : tagIds) {
+      String tag = getTag(tagId);
+      if (tag == null) {
+        throw new IllegalArgumentException("Unknown tag id: " + tagId);
+      }
+      result.add(tag);
+    }
+    return result;
+  }
+
+  /**
+   * 强制将追加的标签同步到磁盘。
+   */
+  public void force() throws IOException {
+    fileChannel.force(true);
+  }
+
+  public void close() throws IOException {
+    if (fileChannel.isOpen()) {
+      fileChannel.force(true);
+      fileChannel.close();
+    }
+  }
+}
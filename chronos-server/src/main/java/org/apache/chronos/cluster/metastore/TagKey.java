@@ -0,0 +1,93 @@
+package org.apache.chronos.cluster.metastore;
+
+import org.apache.commons.codec.digest.XXHash32;
+
+/**
+ * 线程本地的标签编码，保存标签的 UTF-8 字节和哈希值，避免每次查询分配字节数组
+ */
+final class TagKey {
+
+  // 标签 UTF-8 编码后的最大字节数
+  static final int MAX_TAG_LENGTH = 1024;
+  // 使用 ThreadLocal 缓存标签编码和哈希实例，查询不分配对象并保证线程隔离
+  static final ThreadLocal<TagKey> LOCAL = ThreadLocal.withInitial(TagKey::new);
+
+  final byte[] bytes = new byte[MAX_TAG_LENGTH];
+  private final XXHash32 xxHash = new XXHash32(0);
+  int length;
+  int hash;
+  // 长标签在 arena 中的偏移，还没有写入 arena 时为 -1
+  int arenaOffset = -1;
+
+  /**
+   * 把标签按 UTF-8 编码并计算哈希
+   *
+   * @return 标签为空或编码后超过 MAX_TAG_LENGTH 字节时返回 false
+   */
+  boolean encode(String tag) {
+    if (!encodeBytes(tag)) {
+      return false;
+    }
+    hash();
+    return true;
+  }
+
+  /**
+   * 把标签按 UTF-8 编码，与 String.getBytes 的结果相同，不成对的代理字符编码为 '?'，不计算哈希
+   */
+  boolean encodeBytes(String tag) {
+    arenaOffset = -1;
+    if (tag.length() > MAX_TAG_LENGTH) {
+      return false;
+    }
+    int len = 0;
+    for (int i = 0; i < tag.length(); i++) {
+      int c = tag.charAt(i);
+      if (Character.isSurrogate((char) c)) {
+        if (Character.isHighSurrogate((char) c) && i + 1 < tag.length() && Character.isLowSurrogate(tag.charAt(i + 1))) {
+          c = Character.toCodePoint((char) c, tag.charAt(++i));
+        } else {
+          c = '?';
+        }
+      }
+      if (c < 0x80) {
+        if (len + 1 > MAX_TAG_LENGTH) {
+          return false;
+        }
+        bytes[len++] = (byte) c;
+      } else if (c < 0x800) {
+        if (len + 2 > MAX_TAG_LENGTH) {
+          return false;
+        }
+        bytes[len++] = (byte) (0xC0 | c >> 6);
+        bytes[len++] = (byte) (0x80 | c & 0x3F);
+      } else if (c < 0x10000) {
+        if (len + 3 > MAX_TAG_LENGTH) {
+          return false;
+        }
+        bytes[len++] = (byte) (0xE0 | c >> 12);
+        bytes[len++] = (byte) (0x80 | c >> 6 & 0x3F);
+        bytes[len++] = (byte) (0x80 | c & 0x3F);
+      } else {
+        if (len + 4 > MAX_TAG_LENGTH) {
+          return false;
+        }
+        bytes[len++] = (byte) (0xF0 | c >> 18);
+        bytes[len++] = (byte) (0x80 | c >> 12 & 0x3F);
+        bytes[len++] = (byte) (0x80 | c >> 6 & 0x3F);
+        bytes[len++] = (byte) (0x80 | c & 0x3F);
+      }
+    }
+    if (len == 0) {
+      return false;
+    }
+    length = len;
+    return true;
+  }
+
+  void hash() {
+    xxHash.reset();
+    xxHash.update(bytes, 0, length);
+    hash = (int) xxHash.getValue();
+  }
+}
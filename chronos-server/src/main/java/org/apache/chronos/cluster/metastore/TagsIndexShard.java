@@ -0,0 +1,862 @@
+package org.apache.chronos.cluster.metastore;
+
+import com.apache.chronos.protocol.codec.CodecUtil;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.StampedLock;
+import org.apache.chronos.common.FileUtil;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * {@link TagsIndexChannel} 的一个分片，标签到块地址的磁盘哈希索引，布局参考 SwissTable。每个分片有自己的文件、锁和容量，独立扩容。
+ * <p>
+ * 文件由文件头、控制字节区和槽位区组成。每个槽位对应一个控制字节：0 为空，1 为删除标记，最高位为 1 时表示已占用，低 7
+ * 位是标签哈希的指纹。8 个控制字节为一组，查询时读取一个 long，用 SWAR 一次比较整组的指纹，只有指纹相同的槽位才比较
+ * 标签的 UTF-8 字节。标签编码到线程本地的字节数组，查询不分配对象，未命中时只读控制字节所在的缓存行。
+ * <p>
+ * 超过 {@link #INLINE_TAG_LENGTH} 字节的标签存放在 {@link TagArena} 中，槽位只保存完整的 32 位哈希、标签长度和在 arena
+ * 中的偏移，探测仍然只读固定大小的槽位，哈希和长度都相同时才读取 arena。
+ * <p>
+ * 内存中另有块地址到标签哈希的 {@link AddressIndex}，条目被移动时按哈希直接探测指向旧地址的槽位。它在分片第一次收到移动时扫描一次表
+ * 建立，之后随写入维护，所以打开分片不扫描表，从不压缩的存储也不占用它的内存。
+ */
+class TagsIndexShard {
+
+  private final static Logger log = LogManager.getLogger(TagsIndexShard.class);
+  private final Path indexPath;
+  private final Path tempIndexPath;
+  private final Path arenaPath;
+  // 新建或迁移旧格式时的条目数
+  private final int initialSize;
+  // 预留的条目数，第一次容量不足时直接扩容到这个大小，空的分片不占用预留的空间
+  private final int reservedSize;
+
+  // --- 常量定义，取代魔术数字 ---
+  static final String INDEX_FILE_SUFFIX = ".IDX";
+  private static final String INDEX_FILE_TMP_SUFFIX = ".IDX.TMP";
+  private static final String ARENA_FILE_SUFFIX = ".ARENA";
+  private static final int CAPACITY_UNIT = 10000; // 以万为单位
+  // 定义目标负载因子阈值 (例如 50%)
+  private static final double LOAD_FACTOR_THRESHOLD = 0.25;
+  private static final int INLINE_TAG_LENGTH = 19; // 直接存放在槽位中的标签的最大字节数
+  // 每次写入顺带迁移的槽位数
+  private static final int WRITE_MIGRATION_SLOTS = 64;
+  // 后台任务每批迁移的槽位数，每批之间释放锁
+  private static final int BACKGROUND_MIGRATION_SLOTS = 4096;
+
+  // 文件头：魔数、格式版本、槽位数、条目数、删除标记数
+  private static final int MAGIC = 0x54414753;
+  private static final int FORMAT_VERSION = 2;
+  private static final int HEADER_SIZE = 64;
+  private static final int VERSION_OFFSET = 4;
+  private static final int CAPACITY_OFFSET = 8;
+  private static final int SIZE_OFFSET = 12;
+  private static final int TOMBSTONES_OFFSET = 16;
+  // 槽位：块ID、块内偏移、标签字节数、标签的 UTF-8 字节，槽位区按缓存行对齐，一个缓存行两个槽位
+  private static final int SLOT_SIZE = 32;
+  private static final int BLOCK_ID_OFFSET = 0;
+  private static final int BLOCK_OFFSET_OFFSET = 4;
+  private static final int TAG_LENGTH_OFFSET = 8;
+  private static final int TAG_BYTES_OFFSET = 9;
+  // 长标签的槽位：标签字节数处为 LONG_TAG，之后是 arena 中的偏移、标签字节数和完整的哈希
+  private static final int LONG_TAG = 0xFF;
+  private static final int ARENA_OFFSET_OFFSET = 12;
+  private static final int ARENA_LENGTH_OFFSET = 16;
+  private static final int TAG_HASH_OFFSET = 20;
+  private static final int CACHE_LINE_SIZE = 64;
+  // 控制字节
+  private static final int GROUP_SIZE = 8;
+  private static final byte CTRL_EMPTY = 0;
+  private static final byte CTRL_DELETED = 1;
+  private static final int CTRL_FULL = 0x80;
+  private static final int FINGERPRINT_MASK = 0x7F;
+  private static final long LOW_BITS = 0x0101010101010101L;
+  private static final long HIGH_BITS = 0x8080808080808080L;
+
+  // 旧格式没有文件头，每个桶 10 个 32 字节槽位：状态、块ID、块内偏移、变长编码的标签
+  private static final int LEGACY_ENTRY_SIZE = 32;
+  private static final int LEGACY_BLOCK_ID_OFFSET = 4;
+  private static final int LEGACY_BLOCK_OFFSET_OFFSET = 8;
+  private static final int LEGACY_TAG_STRING_OFFSET = 12;
+  private static final int LEGACY_EXISTS_STATUS = 1;
+
+  // 迁移条目时使用，写入和后台迁移互斥，可共用
+  private final TagKey migrationKey = new TagKey();
+  // 只有写入互斥，查询先乐观读，校验失败时再加读锁
+  private final StampedLock lock = new StampedLock();
+  // 长标签，新旧表共用
+  private TagArena arena;
+  // 当前表，扩容完成时替换
+  private volatile Table table;
+  // 正在进行的扩容，没有扩容时为 null
+  private Expansion expansion;
+  // 后台迁移线程，各分片共用
+  private final ExecutorService migrationExecutor;
+  // 块地址到标签哈希，由写锁保护，第一次移动条目前为 null
+  private AddressIndex addressIndex;
+
+  /**
+   * @param name 分片的文件名前缀，文件名为 name.IDX 和 name.ARENA
+   * @param initialSize 新建分片时的条目数
+   * @param reservedSize 预留的条目数，容量第一次不足时扩容到这个大小
+   */
+  TagsIndexShard(String filePath, String name, int initialSize, int reservedSize, ExecutorService migrationExecutor) throws IOException {
+    this.indexPath = Path.of(filePath, name + INDEX_FILE_SUFFIX);
+    this.tempIndexPath = Path.of(filePath, name + INDEX_FILE_TMP_SUFFIX);
+    this.arenaPath = Path.of(filePath, name + ARENA_FILE_SUFFIX);
+    this.initialSize = initialSize;
+    this.reservedSize = reservedSize;
+    this.migrationExecutor = migrationExecutor;
+    this.init();
+  }
+
+  /**
+   * 初始化索引文件和内存映射。旧格式的文件重新写入新格式。
+   */
+  private void init() throws IOException {
+    arena = new TagArena(arenaPath);
+
+    if (!Files.exists(indexPath)) {
+      table = Table.create(indexPath, getExpectedCapacity(initialSize), arena);
+      log.info("Created new index file: {} with size {}", indexPath.toAbsolutePath(), table.byteBuf.capacity());
+      return;
+    }
+    if (Files.deleteIfExists(tempIndexPath)) {
+      // 上次扩容或格式迁移没有完成，旧表是完整的，丢弃未完成的新表
+      log.warn("Discarded unfinished index expansion: {}", indexPath.toAbsolutePath());
+    }
+    FileChannel fileChannel = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      if (fileChannel.size() >= HEADER_SIZE && Table.readMagic(fileChannel) == MAGIC) {
+        table = Table.open(fileChannel, arena);
+        log.info("Opened existing index file: {}", indexPath.toAbsolutePath());
+        return;
+      }
+    } catch (IOException | RuntimeException e) {
+      fileChannel.close();
+      throw e;
+    }
+    fileChannel.close();
+    table = migrateLegacy();
+  }
+
+  /**
+   * 扫描当前表，建立块地址到标签哈希的反向索引，调用方持有写锁。扩容期间旧表仍是完整的，只扫描旧表
+   */
+  private AddressIndex loadAddressIndex() {
+    AddressIndex loaded = new AddressIndex();
+    Table current = table;
+    for (int slot = 0; slot < current.capacity; slot++) {
+      if (current.isFull(slot)) {
+        current.loadKey(slot, migrationKey);
+        loaded.add(current.getAddress(slot), migrationKey.hash);
+      }
+    }
+    return loaded;
+  }
+
+  /**
+   * 把没有文件头的旧格式文件重新写入新格式。新表先写到临时文件，完成后替换旧文件，中断时旧文件保持不变。
+   */
+  private Table migrateLegacy() throws IOException {
+    Table migrated;
+    try (FileChannel legacyChannel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+      MappedByteBuffer legacyBuffer = legacyChannel.map(FileChannel.MapMode.READ_ONLY, 0, legacyChannel.size());
+      ByteBuf legacy = Unpooled.wrappedBuffer(legacyBuffer);
+      int end = legacy.capacity() / LEGACY_ENTRY_SIZE * LEGACY_ENTRY_SIZE;
+      int count = 0;
+      for (int pos = 0; pos < end; pos += LEGACY_ENTRY_SIZE) {
+        if (legacy.getUnsignedByte(pos) == LEGACY_EXISTS_STATUS) {
+          count++;
+        }
+      }
+      migrated = Table.create(tempIndexPath, getExpectedCapacity(Math.max(count, initialSize)), arena);
+      try {
+        for (int pos = 0; pos < end; pos += LEGACY_ENTRY_SIZE) {
+          if (legacy.getUnsignedByte(pos) != LEGACY_EXISTS_STATUS) {
+            continue;
+          }
+          String tag = CodecUtil.getString(legacy, pos + LEGACY_TAG_STRING_OFFSET);
+          if (tag == null || !migrationKey.encode(tag)) {
+            log.warn("Skipped invalid legacy index entry at {}: {}", pos, tag);
+            continue;
+          }
+          migrated.put(migrationKey, legacy.getInt(pos + LEGACY_BLOCK_ID_OFFSET), legacy.getInt(pos + LEGACY_BLOCK_OFFSET_OFFSET));
+        }
+        migrated.force();
+      } catch (IOException | RuntimeException e) {
+        migrated.close();
+        Files.deleteIfExists(tempIndexPath);
+        throw e;
+      } finally {
+        FileUtil.clean(legacyBuffer);
+      }
+    }
+    Files.move(tempIndexPath, indexPath, StandardCopyOption.REPLACE_EXISTING);
+    log.info("Migrated legacy index file: {}, {} entries", indexPath.toAbsolutePath(), migrated.getSize());
+    return migrated;
+  }
+
+  /**
+   * 计算预期的槽位数。
+   */
+  int getExpectedCapacity(int dataSize) {
+    int currentDataSize = dataSize; // 当前实际数据量
+    if (currentDataSize < 1) {
+      currentDataSize = 1;
+    }
+
+    // 计算理论上所需的最小容量（例如 2000条数据 -> 8000）
+    long minNeededCapacity = (long) Math.ceil(currentDataSize / LOAD_FACTOR_THRESHOLD);
+
+    // 将最小所需容量向上取整到最接近的 CAPACITY_UNIT (10000) 的倍数，也是控制字节组大小的倍数
+    // 例如 4000 -> 10000; 12000 -> 20000; 105000 -> 110000
+    long alignedCapacity = (minNeededCapacity + CAPACITY_UNIT - 1) / CAPACITY_UNIT * CAPACITY_UNIT;
+
+    // 如果对齐后的容量小于当前文件已有的容量，则保持不变，防止缩容
+    Table current = table;
+    if (current != null && alignedCapacity < current.capacity) {
+      alignedCapacity = current.capacity;
+    }
+    // --- 增加上限检查 ---
+    long expectedSize = alignedCapacity * (SLOT_SIZE + 1) + HEADER_SIZE + CACHE_LINE_SIZE;
+    if (expectedSize > Integer.MAX_VALUE) {
+      log.error("Index file size calculation exceeded the MappedByteBuffer limit. Calculated size: {} bytes, Max limit: {} bytes.", expectedSize, Integer.MAX_VALUE);
+      throw new MemMapSpaceExceedException("Index file size exceeds the maximum allowed MappedByteBuffer size (approx 2GB). Cannot allocate file.");
+    }
+    return (int) alignedCapacity;
+  }
+
+  /**
+   * 添加索引条目，标签已编码。该方法是线程安全的。
+   */
+  void put(TagKey key, int blockId, int blockOffset) throws IOException {
+    long stamp = lock.writeLock();
+    try {
+      // 检查并处理扩容
+      checkIndexFileCapacity();
+      if (addressIndex != null) {
+        int slot = table.find(key);
+        if (slot >= 0) {
+          addressIndex.remove(table.getAddress(slot), key.hash);
+        }
+        addressIndex.add(BlockChannel.toAddress(blockId, blockOffset), key.hash);
+      }
+      table.put(key, blockId, blockOffset);
+      if (expansion != null) {
+        // 扩容期间两张表都写，旧表始终是完整的
+        expansion.table.put(key, blockId, blockOffset);
+        migrate(WRITE_MIGRATION_SLOTS);
+      }
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * 移除索引条目，标签已编码。该方法是线程安全的。
+   */
+  void remove(TagKey key) throws IOException {
+    long stamp = lock.writeLock();
+    try {
+      checkIndexFileCapacity(); // 依然需要检查容量，删除标记过多时重建
+      if (addressIndex != null) {
+        int slot = table.find(key);
+        if (slot >= 0) {
+          addressIndex.remove(table.getAddress(slot), key.hash);
+        }
+      }
+      table.remove(key);
+      if (expansion != null) {
+        expansion.table.remove(key);
+        migrate(WRITE_MIGRATION_SLOTS);
+      }
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * 获取已编码的标签对应的块ID和偏移量。该方法是线程安全的，查询不加锁，与写入并发时才加读锁重读。
+   */
+  Pair<Integer, Integer> get(TagKey key) {
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      try {
+        Pair<Integer, Integer> blockOffset = findBlockOffset(key);
+        if (lock.validate(stamp)) {
+          return blockOffset;
+        }
+      } catch (RuntimeException e) {
+        // 与写入或扩容并发时可能读到不一致的条目，加读锁重读
+      }
+    }
+    stamp = lock.readLock();
+    try {
+      return findBlockOffset(key);
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * 批量查找属于该分片的标签。整批查询只做一次乐观读，校验失败时加一次读锁重读。
+   *
+   * @param probes from 到 to 之间是待查标签的下标，查询时高 32 位换成起始组并排序，按文件中的位置顺序访问映射
+   */
+  void get(String[] tags, int[] hashes, long[] probes, int from, int to, BlockOffsets blockOffsets) {
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      try {
+        findBlockOffsets(tags, hashes, probes, from, to, blockOffsets);
+        if (lock.validate(stamp)) {
+          return;
+        }
+      } catch (RuntimeException e) {
+        // 与写入或扩容并发时可能读到不一致的条目，加读锁重读
+      }
+    }
+    stamp = lock.readLock();
+    try {
+      findBlockOffsets(tags, hashes, probes, from, to, blockOffsets);
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * 按起始组的顺序在当前表中查找一批标签，调用方持有读锁或乐观读
+   */
+  private void findBlockOffsets(String[] tags, int[] hashes, long[] probes, int from, int to, BlockOffsets blockOffsets) {
+    Table current = table;
+    for (int i = from; i < to; i++) {
+      int index = (int) probes[i];
+      probes[i] = (long) current.getFirstGroup(hashes[index]) << 32 | index;
+    }
+    Arrays.sort(probes, from, to);
+    TagKey key = TagKey.LOCAL.get();
+    for (int i = from; i < to; i++) {
+      int index = (int) probes[i];
+      // 编码结果与计算哈希时相同，不再重复计算哈希
+      key.encodeBytes(tags[index]);
+      key.hash = hashes[index];
+      int slot = current.find(key);
+      if (slot < 0) {
+        blockOffsets.setAbsent(index);
+      } else {
+        blockOffsets.set(index, current.getBlockId(slot), current.getBlockOffset(slot));
+      }
+    }
+  }
+
+  /**
+   * 在当前表中查找标签，调用方持有读锁或乐观读。乐观读时读到的条目可能不一致，由调用方校验。
+   */
+  private Pair<Integer, Integer> findBlockOffset(TagKey key) {
+    Table current = table;
+    int slot = current.find(key);
+    if (slot < 0) {
+      return null; // Not found
+    }
+    return Pair.of(current.getBlockId(slot), current.getBlockOffset(slot));
+  }
+
+  /**
+   * BlockCompactor 移动条目后，将指向旧地址的索引条目改为新地址，块ID即段ID。该方法是线程安全的。
+   * <p>
+   * 按反向索引找出指向旧地址的标签哈希，只探测这些哈希的槽位，耗时与移动的条目数成正比，与索引大小无关。新旧地址不重叠。
+   * 第一次移动时先扫描一次表建立反向索引。
+   */
+  void onRelocated(long[] oldAddresses, long[] newAddresses, int size) {
+    long stamp = lock.writeLock();
+    try {
+      if (addressIndex == null) {
+        addressIndex = loadAddressIndex();
+      }
+      for (int i = 0; i < size; i++) {
+        for (int hash : addressIndex.get(oldAddresses[i])) {
+          table.relocate(hash, oldAddresses[i], newAddresses[i]);
+          if (expansion != null) {
+            expansion.table.relocate(hash, oldAddresses[i], newAddresses[i]);
+          }
+          addressIndex.remove(oldAddresses[i], hash);
+          addressIndex.add(newAddresses[i], hash);
+        }
+      }
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * 检查索引文件容量，容量不足或删除标记过多时开始扩容。扩容进行中时不再检查，完成后由下一次写入检查
+   */
+  private void checkIndexFileCapacity() throws IOException {
+    if (expansion != null) {
+      return;
+    }
+    Table current = table;
+    int expectedCapacity = getExpectedCapacity(current.getSize() + 1);
+    if (expectedCapacity > current.capacity) {
+      expectedCapacity = Math.max(expectedCapacity, getExpectedCapacity(reservedSize));
+    }
+    // 删除标记不结束探测，占用超过一半时按相同容量重建以清除删除标记
+    if (expectedCapacity > current.capacity || (long) (current.getSize() + current.getTombstones()) * 2 > current.capacity) {
+      startExpansion(expectedCapacity);
+    }
+  }
+
+  /**
+   * 开始增量扩容，调用方持有写锁。只创建并映射新表，条目由之后的每次写入和后台任务分批迁移，所以写锁只短暂持有。
+   * <p>
+   * 扩容期间旧表仍是当前表，查询只读旧表。写入同时修改两张表，所以旧表始终完整，迁移时覆盖新表中已有的条目也不会丢失更新。
+   * 迁移完成后新表替换旧表，迁移中断时重新打开会删除未完成的新表，之后重新扩容。
+   */
+  private void startExpansion(int newCapacity) throws IOException {
+    Table current = table;
+    log.warn("Index file capacity insufficient. Current capacity: {} size: {} tombstones: {}, Expected capacity: {}. Triggering expansion...",
+        current.capacity, current.getSize(), current.getTombstones(), newCapacity);
+
+    this.expansion = new Expansion(Table.create(tempIndexPath, newCapacity, arena));
+    migrationExecutor.execute(this::migrateInBackground);
+  }
+
+  /**
+   * 后台分批迁移直到完成。迁移只写新表，查询不读新表，所以迁移时持有读锁，只与写入互斥，不让乐观读失效
+   */
+  private void migrateInBackground() {
+    boolean done = false;
+    while (!done) {
+      long stamp = lock.readLock();
+      try {
+        if (expansion == null) {
+          return;
+        }
+        done = migrateSlots(BACKGROUND_MIGRATION_SLOTS);
+      } catch (IOException | RuntimeException e) {
+        log.error("Index expansion failed", e);
+        return;
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+    long stamp = lock.writeLock();
+    try {
+      if (expansion != null) {
+        finishExpansion();
+      }
+    } catch (IOException e) {
+      log.error("Index expansion failed", e);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * 写入时迁移一批条目，迁移完成时替换旧表，调用方持有写锁
+   */
+  private void migrate(int slots) throws IOException {
+    if (migrateSlots(slots)) {
+      finishExpansion();
+    }
+  }
+
+  /**
+   * 把旧表中从迁移位置开始的一批槽位写入新表，调用方持有读锁或写锁
+   *
+   * @return 旧表是否已全部迁移
+   */
+  private boolean migrateSlots(int slots) throws IOException {
+    Table current = table;
+    int end = Math.min(current.capacity, expansion.cursor + slots);
+    for (int slot = expansion.cursor; slot < end; slot++) {
+      if (current.isFull(slot)) {
+        current.loadKey(slot, migrationKey);
+        expansion.table.put(migrationKey, current.getBlockId(slot), current.getBlockOffset(slot));
+      }
+    }
+    expansion.cursor = end;
+    return end >= current.capacity;
+  }
+
+  /**
+   * 新表替换旧表，调用方持有写锁。旧的 MappedByteBuffer 不主动释放，乐观读的查询可能还在读取，由 GC 解除映射
+   */
+  private void finishExpansion() throws IOException {
+    Table finished = expansion.table;
+    arena.force();
+    finished.force();
+    table.fileChannel.close();
+    Files.move(tempIndexPath, indexPath, StandardCopyOption.REPLACE_EXISTING);
+    table = finished;
+    expansion = null;
+    log.info("Index expansion complete. New capacity: {}", finished.capacity);
+  }
+
+  /**
+   * 是否正在扩容
+   */
+  boolean isExpanding() {
+    long stamp = lock.readLock();
+    try {
+      return expansion != null;
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * 关闭分片，调用方先停止后台迁移线程
+   */
+  void close() throws IOException {
+    long stamp = lock.writeLock();
+    try {
+      if (expansion != null) {
+        // 未完成的新表在下次打开时删除
+        expansion.table.close();
+        expansion = null;
+      }
+      if (table != null) {
+        table.close();
+        table = null;
+      }
+      if (arena != null) {
+        arena.close();
+        arena = null;
+      }
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * 一个映射到内存的哈希表文件。槽位按哈希值的高位分组，组内 8 个槽位的控制字节连续存放，冲突时线性探测下一组，
+   * 探测到含空槽位的组即停止。
+   */
+  private static final class Table {
+
+    private final FileChannel fileChannel;
+    private final MappedByteBuffer mappedByteBuffer;
+    private final ByteBuf byteBuf;
+    // 槽位数，是 GROUP_SIZE 的倍数
+    private final int capacity;
+    private final int groupCount;
+    private final int slotStart;
+    private final TagArena arena;
+
+    private Table(FileChannel fileChannel, int capacity, TagArena arena) throws IOException {
+      this.fileChannel = fileChannel;
+      this.arena = arena;
+      this.mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize(capacity));
+      this.byteBuf = Unpooled.wrappedBuffer(mappedByteBuffer);
+      this.capacity = capacity;
+      this.groupCount = capacity / GROUP_SIZE;
+      this.slotStart = slotStart(capacity);
+    }
+
+    private static int slotStart(int capacity) {
+      return (HEADER_SIZE + capacity + CACHE_LINE_SIZE - 1) / CACHE_LINE_SIZE * CACHE_LINE_SIZE;
+    }
+
+    static long fileSize(int capacity) {
+      return slotStart(capacity) + (long) capacity * SLOT_SIZE;
+    }
+
+    /**
+     * 创建空表，映射时文件扩展到表的大小，新映射的区域全为 0，即所有槽位为空
+     */
+    static Table create(Path path, int capacity, TagArena arena) throws IOException {
+      FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+          StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+      try {
+        Table table = new Table(fileChannel, capacity, arena);
+        table.byteBuf.setInt(0, MAGIC);
+        table.byteBuf.setInt(VERSION_OFFSET, FORMAT_VERSION);
+        table.byteBuf.setInt(CAPACITY_OFFSET, capacity);
+        table.force(); // 强制写入磁盘，确保空间分配生效
+        return table;
+      } catch (IOException | RuntimeException e) {
+        fileChannel.close();
+        Files.deleteIfExists(path);
+        throw e;
+      }
+    }
+
+    static int readMagic(FileChannel fileChannel) throws IOException {
+      return readHeader(fileChannel).getInt(0);
+    }
+
+    /**
+     * 按位置读取文件头，只读一次的文件头不映射，映射要等 GC 才解除
+     */
+    private static ByteBuffer readHeader(FileChannel fileChannel) throws IOException {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      while (header.hasRemaining()) {
+        if (fileChannel.read(header, header.position()) < 0) {
+          throw new EOFException("Index file is shorter than its header, size: " + fileChannel.size());
+        }
+      }
+      return header;
+    }
+
+    static Table open(FileChannel fileChannel, TagArena arena) throws IOException {
+      ByteBuffer header = readHeader(fileChannel);
+      int version = header.getInt(VERSION_OFFSET);
+      int capacity = header.getInt(CAPACITY_OFFSET);
+      if (version != FORMAT_VERSION) {
+        throw new IOException("Unsupported index format version: " + version);
+      }
+      if (capacity <= 0 || capacity % GROUP_SIZE != 0 || fileChannel.size() < fileSize(capacity)) {
+        throw new IOException("Corrupted index file, capacity: " + capacity + ", size: " + fileChannel.size());
+      }
+      return new Table(fileChannel, capacity, arena);
+    }
+
+    int getSize() {
+      return byteBuf.getInt(SIZE_OFFSET);
+    }
+
+    int getTombstones() {
+      return byteBuf.getInt(TOMBSTONES_OFFSET);
+    }
+
+    private long getGroupControl(int group) {
+      return byteBuf.getLongLE(HEADER_SIZE + group * GROUP_SIZE);
+    }
+
+    private int slotPosition(int slot) {
+      return slotStart + slot * SLOT_SIZE;
+    }
+
+    boolean isFull(int slot) {
+      return (byteBuf.getByte(HEADER_SIZE + slot) & CTRL_FULL) != 0;
+    }
+
+    int getBlockId(int slot) {
+      return byteBuf.getInt(slotPosition(slot) + BLOCK_ID_OFFSET);
+    }
+
+    int getBlockOffset(int slot) {
+      return byteBuf.getInt(slotPosition(slot) + BLOCK_OFFSET_OFFSET);
+    }
+
+    long getAddress(int slot) {
+      return BlockChannel.toAddress(getBlockId(slot), getBlockOffset(slot));
+    }
+
+    /**
+     * 读出槽位中的标签字节并计算哈希
+     */
+    void loadKey(int slot, TagKey key) {
+      int pos = slotPosition(slot);
+      int length = byteBuf.getUnsignedByte(pos + TAG_LENGTH_OFFSET);
+      if (length == LONG_TAG) {
+        // 长标签沿用原来在 arena 中的位置，不重复追加
+        key.length = byteBuf.getInt(pos + ARENA_LENGTH_OFFSET);
+        key.arenaOffset = byteBuf.getInt(pos + ARENA_OFFSET_OFFSET);
+        arena.read(key.arenaOffset, key.bytes, key.length);
+      } else {
+        key.length = length;
+        key.arenaOffset = -1;
+        byteBuf.getBytes(pos + TAG_BYTES_OFFSET, key.bytes, 0, length);
+      }
+      key.hash();
+    }
+
+    private int getFirstGroup(int hash) {
+      // 低 7 位用作指纹，分组使用其余的位
+      return Integer.remainderUnsigned(hash >>> 7, groupCount);
+    }
+
+    /**
+     * 查找标签所在的槽位
+     *
+     * @return 槽位号，不存在时返回 -1
+     */
+    int find(TagKey key) {
+      long pattern = (CTRL_FULL | key.hash & FINGERPRINT_MASK) * LOW_BITS;
+      int group = getFirstGroup(key.hash);
+      for (int probe = 0; probe < groupCount; probe++) {
+        long control = getGroupControl(group);
+        // 指纹相同的控制字节，借位可能带来误报，由比较标签排除
+        long matches = matchZeroBytes(control ^ pattern);
+        while (matches != 0) {
+          int slot = group * GROUP_SIZE + (Long.numberOfTrailingZeros(matches) >>> 3);
+          if (tagEquals(slot, key)) {
+            return slot;
+          }
+          matches &= matches - 1;
+        }
+        if (matchZeroBytes(control) != 0) {
+          return -1;
+        }
+        group = group + 1 == groupCount ? 0 : group + 1;
+      }
+      return -1;
+    }
+
+    private boolean tagEquals(int slot, TagKey key) {
+      int pos = slotPosition(slot);
+      int length = byteBuf.getUnsignedByte(pos + TAG_LENGTH_OFFSET);
+      if (length == LONG_TAG) {
+        return key.length > INLINE_TAG_LENGTH && byteBuf.getInt(pos + TAG_HASH_OFFSET) == key.hash
+            && byteBuf.getInt(pos + ARENA_LENGTH_OFFSET) == key.length
+            && arena.equals(byteBuf.getInt(pos + ARENA_OFFSET_OFFSET), key.bytes, key.length);
+      }
+      if (length != key.length) {
+        return false;
+      }
+      pos += TAG_BYTES_OFFSET;
+      for (int i = 0; i < key.length; i++) {
+        if (byteBuf.getByte(pos + i) != key.bytes[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * 写入或更新条目，调用方持有写锁。先写槽位再写控制字节
+     */
+    void put(TagKey key, int blockId, int blockOffset) throws IOException {
+      int slot = find(key);
+      if (slot < 0) {
+        slot = findInsertSlot(key.hash);
+        int pos = slotPosition(slot);
+        if (key.length > INLINE_TAG_LENGTH) {
+          if (key.arenaOffset < 0) {
+            key.arenaOffset = arena.append(key.bytes, key.length);
+          }
+          byteBuf.setByte(pos + TAG_LENGTH_OFFSET, LONG_TAG);
+          byteBuf.setInt(pos + ARENA_OFFSET_OFFSET, key.arenaOffset);
+          byteBuf.setInt(pos + ARENA_LENGTH_OFFSET, key.length);
+          byteBuf.setInt(pos + TAG_HASH_OFFSET, key.hash);
+        } else {
+          byteBuf.setByte(pos + TAG_LENGTH_OFFSET, key.length);
+          byteBuf.setBytes(pos + TAG_BYTES_OFFSET, key.bytes, 0, key.length);
+        }
+        if (byteBuf.getByte(HEADER_SIZE + slot) == CTRL_DELETED) {
+          byteBuf.setInt(TOMBSTONES_OFFSET, getTombstones() - 1);
+        }
+        byteBuf.setInt(SIZE_OFFSET, getSize() + 1);
+        setSlotAddress(slot, blockId, blockOffset);
+        byteBuf.setByte(HEADER_SIZE + slot, CTRL_FULL | key.hash & FINGERPRINT_MASK);
+      } else {
+        setSlotAddress(slot, blockId, blockOffset);
+      }
+    }
+
+    private void setSlotAddress(int slot, int blockId, int blockOffset) {
+      int pos = slotPosition(slot);
+      byteBuf.setInt(pos + BLOCK_ID_OFFSET, blockId);
+      byteBuf.setInt(pos + BLOCK_OFFSET_OFFSET, blockOffset);
+    }
+
+    /**
+     * 探测序列上第一个空槽位或删除标记
+     */
+    private int findInsertSlot(int hash) {
+      int group = getFirstGroup(hash);
+      for (int probe = 0; probe < groupCount; probe++) {
+        long control = getGroupControl(group);
+        // 两个结果中最低的标记位都没有误报
+        long available = matchZeroBytes(control) | matchZeroBytes(control ^ CTRL_DELETED * LOW_BITS);
+        if (available != 0) {
+          return group * GROUP_SIZE + (Long.numberOfTrailingZeros(available) >>> 3);
+        }
+        group = group + 1 == groupCount ? 0 : group + 1;
+      }
+      throw new IllegalStateException("Tags index is full, capacity: " + capacity);
+    }
+
+    /**
+     * 删除条目，调用方持有写锁。组内还有空槽位时，探测不会越过该组，可直接置空，否则留下删除标记
+     */
+    void remove(TagKey key) {
+      int slot = find(key);
+      if (slot < 0) {
+        return;
+      }
+      if (matchZeroBytes(getGroupControl(slot / GROUP_SIZE)) != 0) {
+        byteBuf.setByte(HEADER_SIZE + slot, CTRL_EMPTY);
+      } else {
+        byteBuf.setByte(HEADER_SIZE + slot, CTRL_DELETED);
+        byteBuf.setInt(TOMBSTONES_OFFSET, getTombstones() + 1);
+      }
+      byteBuf.setInt(SIZE_OFFSET, getSize() - 1);
+      byteBuf.setZero(slotPosition(slot), SLOT_SIZE);
+    }
+
+    /**
+     * 把哈希为 hash 且指向旧地址的槽位改为新地址，调用方持有写锁。只比较指纹和地址，不比较标签，指纹相同且指向同一地址的
+     * 其他标签也一并修改，它们同样需要改为新地址
+     */
+    void relocate(int hash, long oldAddress, long newAddress) {
+      long pattern = (CTRL_FULL | hash & FINGERPRINT_MASK) * LOW_BITS;
+      int group = getFirstGroup(hash);
+      for (int probe = 0; probe < groupCount; probe++) {
+        long control = getGroupControl(group);
+        long matches = matchZeroBytes(control ^ pattern);
+        while (matches != 0) {
+          int slot = group * GROUP_SIZE + (Long.numberOfTrailingZeros(matches) >>> 3);
+          // 借位误报的槽位可能为空，空槽位的地址已清零，地址比较前先确认已占用
+          if (isFull(slot) && getAddress(slot) == oldAddress) {
+            setSlotAddress(slot, BlockChannel.getSegmentId(newAddress), BlockChannel.getSegmentOffset(newAddress));
+          }
+          matches &= matches - 1;
+        }
+        if (matchZeroBytes(control) != 0) {
+          return;
+        }
+        group = group + 1 == groupCount ? 0 : group + 1;
+      }
+    }
+
+    /**
+     * 强制将内存中的变更同步到磁盘。
+     */
+    void force() throws IOException {
+      mappedByteBuffer.force();
+      fileChannel.force(true);
+    }
+
+    void close() throws IOException {
+      fileChannel.close();
+      FileUtil.clean(mappedByteBuffer);
+    }
+
+    /**
+     * 值为 0 的字节最高位置 1。最低的标记位一定准确，更高的标记位可能因借位误报
+     */
+    private static long matchZeroBytes(long word) {
+      return (word - LOW_BITS) & ~word & HIGH_BITS;
+    }
+  }
+
+  /**
+   * 扩容中的新表和迁移位置
+   */
+  private static class Expansion {
+
+    private final Table table;
+    // 旧表中小于该槽位号的槽位已迁移
+    private int cursor;
+
+    Expansion(Table table) {
+      this.table = table;
+    }
+  }
+}
@@ -5,7 +5,14 @@ public enum ChronosConfig {
   CFG_MANAGER_PORT("CHRONOS_MANAGER_PORT", "chronos.manager.port", "8911"),
   CFG_ENV_MANAGER_REUSE_PORT("CHRONOS_MANAGER_REUSE_PORT", "chronos.manager.reusePort", "true"),
   CFG_META_STORAGE_PATH("CHRONOS_META_STORAGE_PATH", "chronos.meta.storage.path", "./data/metaStore"),
-  CFG_META_TAGS_INDEX_CAPACITY("CFG_META_TAGS_INDEX_CAPACITY", "cfg.meta.tags.index.capacity", "1000000"),
+  // bytes, 64 MB
+  CFG_META_STORAGE_CHUNK_SIZE("CHRONOS_META_STORAGE_CHUNK_SIZE", "chronos.meta.storage.chunkSize", "67108864"),
+  // bytes, 32 MB
+  CFG_META_OFFSET_CACHE_SIZE("CHRONOS_META_OFFSET_CACHE_SIZE", "chronos.meta.storage.offsetCacheSize", "33554432"),
+  // expected number of tags when the tags index is created
+  CFG_META_TAGS_INDEX_CAPACITY("CHRONOS_META_TAGS_INDEX_CAPACITY", "chronos.meta.tags.index.capacity", "1000000"),
+  // shards of the tags index when it is created, rounded up to a power of two
+  CFG_META_TAGS_INDEX_SHARDS("CHRONOS_META_TAGS_INDEX_SHARDS", "chronos.meta.tags.index.shards", "16"),
   // G bytes
   ;
   private String envKey;
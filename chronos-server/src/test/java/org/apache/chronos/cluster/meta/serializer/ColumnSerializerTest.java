@@ -1,33 +1,44 @@
 package org.apache.chronos.cluster.meta.serializer;
 
+import com.apache.chronos.protocol.codec.CodecUtil;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
+import java.nio.file.Path;
+import java.util.List;
 import org.apache.chronos.cluster.meta.Column;
 import org.apache.chronos.cluster.meta.ValueType;
+import org.apache.chronos.cluster.metastore.TagDictionary;
 import org.apache.commons.lang3.RandomUtils;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 class ColumnSerializerTest {
 
+  @TempDir
+  private Path path;
+
   @Test
-  public void test() {
+  public void test() throws Exception {
+    TagDictionary tagDictionary = new TagDictionary(path.toString());
+    ColumnSerializer serializer = new ColumnSerializer(tagDictionary);
     Column column = Column.create();
     column.setId(RandomUtils.secure().randomInt() >>> 2);
     column.setCreatedAt(RandomUtils.secure().randomLong() >>> 3);
     column.setUpdatedAt(RandomUtils.secure().randomLong() >>> 3);
     column.setCode(new String(RandomUtils.secure().randomBytes(10)));
     column.setValueType(ValueType.BYTE);
-    column.setTags(Lists.newArrayList(Long.toString(RandomUtils.secure().randomLong())));
+    column.setTags(Lists.newArrayList(Long.toString(RandomUtils.secure().randomLong()), "datacenter=eu-west-1a"));
     column.setAttrs(Maps.newHashMap());
     column.getAttrs().put(Long.toString(RandomUtils.secure().randomLong()), Long.toString(RandomUtils.secure().randomLong()));
 
     ByteBuf buf = ByteBufAllocator.DEFAULT.buffer();
-    ColumnSerializer.INSTANCE.serialize(buf, column);
+    tagDictionary.resolveTagIds(column);
+    serializer.serialize(buf, column);
 
-    Column newColumn = ColumnSerializer.INSTANCE.deserialize(buf);
+    Column newColumn = serializer.deserialize(buf);
 
     Assertions.assertEquals(column.getId(), newColumn.getId());
     Assertions.assertEquals(column.getCreatedAt(), newColumn.getCreatedAt());
@@ -35,10 +46,100 @@ class ColumnSerializerTest {
     Assertions.assertEquals(column.getCode(), newColumn.getCode());
     Assertions.assertEquals(column.getValueType(), newColumn.getValueType());
     Assertions.assertEquals(column.getTags(), newColumn.getTags());
+    Assertions.assertArrayEquals(new int[]{0, 1}, newColumn.getTagIds());
+    Assertions.assertEquals(2, tagDictionary.size());
     Assertions.assertEquals(column.getAttrs(), newColumn.getAttrs());
 
     column.recycle();
     newColumn.recycle();
+    buf.release();
+    tagDictionary.close();
   }
 
-}
\ No newline at end of file
+  @Test
+  public void testTags() throws Exception {
+    TagDictionary tagDictionary = new TagDictionary(path.toString());
+    ColumnSerializer serializer = new ColumnSerializer(tagDictionary);
+    Column column = Column.create();
+    column.setCode("code");
+    column.setValueType(ValueType.BYTE);
+    List<String> tags = Lists.newArrayList("host=a", "rack=r1");
+    column.setTags(tags);
+
+    // the ids are resolved before the record is written, the serializer does not touch the record
+    ByteBuf buf = ByteBufAllocator.DEFAULT.buffer();
+    Assertions.assertThrows(IllegalStateException.class, () -> serializer.serialize(buf, column));
+    Assertions.assertEquals(0, tagDictionary.size());
+    tagDictionary.resolveTagIds(column);
+    int[] tagIds = column.getTagIds();
+    buf.clear();
+    serializer.serialize(buf, column);
+    Assertions.assertSame(tags, column.getTags());
+    Assertions.assertSame(tagIds, column.getTagIds());
+    Column newColumn = serializer.deserialize(buf);
+    Assertions.assertEquals(tags, newColumn.getTags());
+    Assertions.assertArrayEquals(new int[]{0, 1}, newColumn.getTagIds());
+
+    // new tags of a deserialized column replace its ids
+    newColumn.setTags(Lists.newArrayList("host=b"));
+    Assertions.assertNull(newColumn.getTagIds());
+    tagDictionary.resolveTagIds(newColumn);
+    buf.clear();
+    serializer.serialize(buf, newColumn);
+    Column updated = serializer.deserialize(buf);
+    Assertions.assertEquals(Lists.newArrayList("host=b"), updated.getTags());
+    Assertions.assertArrayEquals(new int[]{2}, updated.getTagIds());
+
+    // empty tags are rejected, not dropped
+    column.setTags(Lists.newArrayList("", "host=a"));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> tagDictionary.resolveTagIds(column));
+    Assertions.assertEquals(3, tagDictionary.size());
+
+    column.setTags(null);
+    tagDictionary.resolveTagIds(column);
+    buf.clear();
+    serializer.serialize(buf, column);
+    Assertions.assertNull(serializer.deserialize(buf).getTags());
+
+    column.recycle();
+    newColumn.recycle();
+    updated.recycle();
+    buf.release();
+    tagDictionary.close();
+  }
+
+  @Test
+  public void testLegacyRecord() throws Exception {
+    TagDictionary tagDictionary = new TagDictionary(path.toString());
+    ColumnSerializer serializer = new ColumnSerializer(tagDictionary);
+    // a record written before the tags were stored as ids
+    ByteBuf buf = ByteBufAllocator.DEFAULT.buffer();
+    CodecUtil.writeVarInt(buf, 7);
+    CodecUtil.writeVarLong(buf, 1);
+    CodecUtil.writeVarLong(buf, 2);
+    buf.writeByte(ValueType.BYTE.getValue());
+    CodecUtil.writeString(buf, "code");
+    CodecUtil.writeList(buf, Lists.newArrayList("host=a", "rack=r1"));
+    CodecUtil.writeMap(buf, Maps.newHashMap());
+
+    Column column = serializer.deserialize(buf);
+    Assertions.assertEquals(7, column.getId());
+    Assertions.assertEquals("code", column.getCode());
+    Assertions.assertEquals(Lists.newArrayList("host=a", "rack=r1"), column.getTags());
+    Assertions.assertNull(column.getTagIds());
+    Assertions.assertEquals(0, buf.readableBytes());
+
+    // written again in the current format
+    tagDictionary.resolveTagIds(column);
+    buf.clear();
+    serializer.serialize(buf, column);
+    Column rewritten = serializer.deserialize(buf);
+    Assertions.assertEquals(column.getTags(), rewritten.getTags());
+    Assertions.assertArrayEquals(new int[]{0, 1}, rewritten.getTagIds());
+
+    column.recycle();
+    rewritten.recycle();
+    buf.release();
+    tagDictionary.close();
+  }
+}
@@ -1,33 +1,43 @@
 package org.apache.chronos.cluster.meta.serializer;
 
+import com.apache.chronos.protocol.codec.CodecUtil;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
+import java.nio.file.Path;
 import org.apache.chronos.cluster.meta.MultiplyColumn;
 import org.apache.chronos.cluster.meta.ValueType;
+import org.apache.chronos.cluster.metastore.TagDictionary;
 import org.apache.commons.lang3.RandomUtils;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 class MultiplyColumnSerializerTest {
 
+  @TempDir
+  private Path path;
+
   @Test
-  public void test() {
+  public void test() throws Exception {
+    TagDictionary tagDictionary = new TagDictionary(path.toString());
+    MultiplyColumnSerializer serializer = new MultiplyColumnSerializer(tagDictionary);
     MultiplyColumn column = MultiplyColumn.create();
     column.setId(RandomUtils.secure().randomInt() >>> 2);
     column.setCreatedAt(RandomUtils.secure().randomLong() >>> 3);
     column.setUpdatedAt(RandomUtils.secure().randomLong() >>> 3);
     column.setCodes(Lists.newArrayList(new String(RandomUtils.secure().randomBytes(10))));
     column.setTypes(Lists.newArrayList(ValueType.BYTE));
-    column.setTags(Lists.newArrayList(Long.toString(RandomUtils.secure().randomLong())));
+    column.setTags(Lists.newArrayList(Long.toString(RandomUtils.secure().randomLong()), "datacenter=eu-west-1a"));
     column.setAttrs(Maps.newHashMap());
     column.getAttrs().put(Long.toString(RandomUtils.secure().randomLong()), Long.toString(RandomUtils.secure().randomLong()));
 
     ByteBuf buf = ByteBufAllocator.DEFAULT.buffer();
-    MultiplyColumnSerializer.INSTANCE.serialize(buf, column);
+    tagDictionary.resolveTagIds(column);
+    serializer.serialize(buf, column);
 
-    MultiplyColumn newColumn = MultiplyColumnSerializer.INSTANCE.deserialize(buf);
+    MultiplyColumn newColumn = serializer.deserialize(buf);
 
     Assertions.assertEquals(column.getId(), newColumn.getId());
     Assertions.assertEquals(column.getCreatedAt(), newColumn.getCreatedAt());
@@ -35,9 +45,46 @@ class MultiplyColumnSerializerTest {
     Assertions.assertEquals(column.getCodes(), newColumn.getCodes());
     Assertions.assertEquals(column.getTypes(), newColumn.getTypes());
     Assertions.assertEquals(column.getTags(), newColumn.getTags());
+    Assertions.assertEquals("datacenter=eu-west-1a", newColumn.getTags().get(1));
+    Assertions.assertArrayEquals(new int[]{0, 1}, newColumn.getTagIds());
+    Assertions.assertEquals(2, tagDictionary.size());
     Assertions.assertEquals(column.getAttrs(), newColumn.getAttrs());
 
+    // new tags of a deserialized column replace its ids
+    newColumn.setTags(Lists.newArrayList("host=b"));
+    Assertions.assertThrows(IllegalStateException.class, () -> serializer.serialize(buf, newColumn));
+    tagDictionary.resolveTagIds(newColumn);
+    buf.clear();
+    serializer.serialize(buf, newColumn);
+    MultiplyColumn updated = serializer.deserialize(buf);
+    Assertions.assertEquals(Lists.newArrayList("host=b"), updated.getTags());
+    Assertions.assertArrayEquals(new int[]{2}, updated.getTagIds());
+    updated.recycle();
+
+    // empty tags are rejected, not dropped
+    column.setTags(Lists.newArrayList("host=c", ""));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> tagDictionary.resolveTagIds(column));
+
+    // a record written before the tags were stored as ids
+    buf.clear();
+    buf.writeInt(9);
+    buf.writeLong(1);
+    buf.writeLong(2);
+    CodecUtil.writeList(buf, Lists.newArrayList("host=a"));
+    CodecUtil.writeList(buf, Lists.newArrayList("code"));
+    buf.writeByte(0);
+    CodecUtil.writeMap(buf, Maps.newHashMap());
+    MultiplyColumn legacy = serializer.deserialize(buf);
+    Assertions.assertEquals(9, legacy.getId());
+    Assertions.assertEquals(Lists.newArrayList("host=a"), legacy.getTags());
+    Assertions.assertNull(legacy.getTagIds());
+    Assertions.assertEquals(Lists.newArrayList("code"), legacy.getCodes());
+    Assertions.assertEquals(0, buf.readableBytes());
+    legacy.recycle();
+
     column.recycle();
     newColumn.recycle();
+    buf.release();
+    tagDictionary.close();
   }
 }
\ No newline at end of file
@@ -7,11 +7,17 @@ import io.netty.buffer.ByteBufOutputStream;
 import io.netty.buffer.ByteBufUtil;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 import org.roaringbitmap.RoaringBitmap;
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
 
 class BlockChannelTest {
 
@@ -34,21 +40,21 @@ class BlockChannelTest {
     Assertions.assertEquals(channel.getPageEntryNumber(32 + 16 + 100), 0);
 
     RoaringBitmap roaringBitmap = createOnePageMap(10000);
-    int idx = channel.addRoaringBitmap(100, roaringBitmap);
+    long idx = channel.addRoaringBitmap(100, roaringBitmap);
 
     RoaringBitmap newMap = channel.getRoaringBitmap(idx);
     Assertions.assertEquals(newMap, roaringBitmap);
 
 
     RoaringBitmap roaringBitmap1 = createOnePageMap(10000);
-    int idx1 = channel.addRoaringBitmap(100, roaringBitmap1);
+    long idx1 = channel.addRoaringBitmap(100, roaringBitmap1);
 
     RoaringBitmap newMap1 = channel.getRoaringBitmap(idx1);
     Assertions.assertEquals(newMap1, roaringBitmap1);
 
     RoaringBitmap roaringBitmap2 = createOnePageMap(1000000);
 //    testSeirial(roaringBitmap2);
-    int idx2 = channel.addRoaringBitmap(100, roaringBitmap2);
+    long idx2 = channel.addRoaringBitmap(100, roaringBitmap2);
 
     RoaringBitmap newMap2 = channel.getRoaringBitmap(idx2);
 //    Assertions.assertEquals(newMap2, roaringBitmap2);
@@ -64,6 +70,502 @@ class BlockChannelTest {
     channel.prettyDebug();
   }
 
+  @Test
+  public void testUpdate() throws Exception {
+    BlockChannel channel = new BlockChannel(path.toFile().getAbsolutePath() + File.separator + "test.bitmap");
+
+    // single page entry, shrink in place
+    long idx = channel.addRoaringBitmap(100, createSparseMap(10000));
+    RoaringBitmap smaller = createSparseMap(100);
+    Assertions.assertEquals(idx, channel.updateRoaringBitmap(idx, smaller));
+    Assertions.assertEquals(smaller, channel.getRoaringBitmap(idx));
+
+    // grow back within the original capacity
+    RoaringBitmap larger = createSparseMap(9000);
+    Assertions.assertEquals(idx, channel.updateRoaringBitmap(idx, larger));
+    Assertions.assertEquals(larger, channel.getRoaringBitmap(idx));
+
+    // exceed the capacity, the entry is relocated
+    RoaringBitmap relocated = createSparseMap(20000);
+    long newIdx = channel.updateRoaringBitmap(idx, relocated);
+    Assertions.assertNotEquals(idx, newIdx);
+    Assertions.assertEquals(relocated, channel.getRoaringBitmap(newIdx));
+
+    // continue entry, shrink in place and release the tail chunks
+    long multiIdx = channel.addRoaringBitmap(101, createSparseMap(200000));
+    int pageEntryNumber = channel.getPageEntryNumber(multiIdx + 128 * 1024);
+    RoaringBitmap shrunk = createSparseMap(100);
+    Assertions.assertEquals(multiIdx, channel.updateRoaringBitmap(multiIdx, shrunk));
+    Assertions.assertEquals(shrunk, channel.getRoaringBitmap(multiIdx));
+    Assertions.assertEquals(pageEntryNumber - 1, channel.getPageEntryNumber(multiIdx + 128 * 1024));
+    Assertions.assertEquals(createSparseMap(20000), channel.getRoaringBitmap(newIdx));
+  }
+
+  @Test
+  public void testDelete() throws Exception {
+    BlockChannel channel = new BlockChannel(path.toFile().getAbsolutePath() + File.separator + "test.bitmap");
+
+    long idx = channel.addRoaringBitmap(100, createSparseMap(1000));
+    long multiIdx = channel.addRoaringBitmap(101, createSparseMap(200000));
+    int usedPageSize = channel.getUsedPageSize(idx);
+
+    channel.deleteRoaringBitmap(multiIdx);
+    Assertions.assertNull(channel.getRoaringBitmap(multiIdx));
+    Assertions.assertEquals(0, channel.getUsedPageSize(multiIdx + 128 * 1024));
+    Assertions.assertEquals(1, channel.getPageEntryNumber(idx));
+    Assertions.assertTrue(channel.getUsedPageSize(idx) < usedPageSize);
+    Assertions.assertEquals(createSparseMap(1000), channel.getRoaringBitmap(idx));
+
+    // deleting twice does nothing
+    channel.deleteRoaringBitmap(multiIdx);
+    channel.deleteRoaringBitmap(idx);
+    Assertions.assertNull(channel.getRoaringBitmap(idx));
+    Assertions.assertEquals(0, channel.getUsedPageSize(idx));
+  }
+
+  @Test
+  public void testSegments() throws Exception {
+    String filePath = path.toFile().getAbsolutePath() + File.separator + "test.bitmap";
+    // 4 pages per segment, about 5 entries of 40 KB per segment
+    BlockChannel channel = new BlockChannel(filePath, 4);
+    long[] addresses = new long[20];
+    for (int i = 0; i < addresses.length; i++) {
+      addresses[i] = channel.addRoaringBitmap(i, createSparseMap(20000 + i));
+    }
+    Assertions.assertTrue(channel.getSegmentCount() > 1);
+    Assertions.assertEquals(0, BlockChannel.getSegmentId(addresses[0]));
+    Assertions.assertEquals(channel.getSegmentCount() - 1, BlockChannel.getSegmentId(addresses[addresses.length - 1]));
+    Assertions.assertTrue(new File(filePath + ".1").exists());
+
+    // an entry larger than a segment can not be stored
+    Assertions.assertThrows(MemMapSpaceExceedException.class, () -> channel.addRoaringBitmap(100, createSparseMap(400000)));
+
+    // update and delete in a later segment
+    long address = addresses[addresses.length - 1];
+    Assertions.assertEquals(address, channel.updateRoaringBitmap(address, createSparseMap(100)));
+    channel.deleteRoaringBitmap(addresses[addresses.length - 2]);
+    int segmentCount = channel.getSegmentCount();
+    channel.close();
+
+    // the segments are found again when the block is reopened
+    BlockChannel reopened = new BlockChannel(filePath, 4);
+    Assertions.assertEquals(segmentCount, reopened.getSegmentCount());
+    for (int i = 0; i < addresses.length - 2; i++) {
+      Assertions.assertEquals(createSparseMap(20000 + i), reopened.getRoaringBitmap(addresses[i]));
+    }
+    Assertions.assertNull(reopened.getRoaringBitmap(addresses[addresses.length - 2]));
+    Assertions.assertEquals(createSparseMap(100), reopened.getRoaringBitmap(address));
+    reopened.close();
+  }
+
+  @Test
+  public void testImmutableRoaringBitmap() throws Exception {
+    String filePath = path.toFile().getAbsolutePath() + File.separator + "test.bitmap";
+    BlockChannel channel = new BlockChannel(filePath);
+    long chained = channel.addRoaringBitmap(100, createSparseMap(200000));
+    channel.setContiguousAllocation(true);
+    long small = channel.addRoaringBitmap(101, createSparseMap(1000));
+    long span = channel.addRoaringBitmap(102, createSparseMap(200000));
+    long after = channel.addRoaringBitmap(103, createSparseMap(1000));
+
+    // a span entry starts on a new page, the next small entry fills the free space of a page before it
+    Assertions.assertEquals(channel.getPageOffset(span) + 16, span);
+    Assertions.assertTrue(after < span);
+    Assertions.assertEquals(128 * 1024, channel.getUsedPageSize(span + 128 * 1024));
+    Assertions.assertEquals(0, channel.getPageEntryNumber(span + 128 * 1024));
+
+    try (BlockPin pin = channel.pin()) {
+      ImmutableRoaringBitmap view = channel.getImmutableRoaringBitmap(span, pin);
+      Assertions.assertEquals(createSparseMap(200000), view.toRoaringBitmap());
+      Assertions.assertEquals(createSparseMap(200000), channel.getRoaringBitmap(span));
+      Assertions.assertEquals(createSparseMap(1000), channel.getImmutableRoaringBitmap(small, pin).toRoaringBitmap());
+      Assertions.assertEquals(createSparseMap(200000), channel.getImmutableRoaringBitmap(chained, pin).toRoaringBitmap());
+      Assertions.assertEquals(1000, ImmutableRoaringBitmap.andCardinality(view, channel.getImmutableRoaringBitmap(after, pin)));
+
+      // a view is stable while its pin is open, an update fitting in the entry is written as a new entry
+      ImmutableRoaringBitmap smallView = channel.getImmutableRoaringBitmap(small, pin);
+      long updated = channel.updateRoaringBitmap(small, createSparseMap(10));
+      Assertions.assertNotEquals(small, updated);
+      Assertions.assertEquals(createSparseMap(1000), smallView.toRoaringBitmap());
+      Assertions.assertEquals(createSparseMap(10), channel.getImmutableRoaringBitmap(updated, pin).toRoaringBitmap());
+      channel.deleteRoaringBitmap(chained);
+      Assertions.assertEquals(createSparseMap(200000), view.toRoaringBitmap());
+    }
+    // a pin of another channel or a closed pin is rejected
+    BlockPin closedPin = channel.pin();
+    closedPin.close();
+    Assertions.assertThrows(IllegalStateException.class, () -> channel.getImmutableRoaringBitmap(span, closedPin));
+
+    // in place update of a span entry once no pin holds a view
+    Assertions.assertEquals(span, channel.updateRoaringBitmap(span, createSparseMap(150000)));
+    try (BlockPin pin = channel.pin()) {
+      Assertions.assertEquals(createSparseMap(150000), channel.getImmutableRoaringBitmap(span, pin).toRoaringBitmap());
+    }
+    channel.close();
+
+    // the pages covered by the span entry are found again when the block is reopened
+    BlockChannel reopened = new BlockChannel(filePath);
+    Assertions.assertEquals(128 * 1024, reopened.getUsedPageSize(span + 128 * 1024));
+    Assertions.assertEquals(createSparseMap(1000), reopened.getRoaringBitmap(after));
+    reopened.deleteRoaringBitmap(span);
+    try (BlockPin pin = reopened.pin()) {
+      Assertions.assertNull(reopened.getImmutableRoaringBitmap(span, pin));
+      Assertions.assertThrows(IllegalArgumentException.class, () -> reopened.getImmutableRoaringBitmap(after, closedPin));
+    }
+    Assertions.assertEquals(0, reopened.getUsedPageSize(span));
+    Assertions.assertEquals(0, reopened.getUsedPageSize(span + 128 * 1024));
+    reopened.close();
+  }
+
+  @Test
+  public void testCompression() throws Exception {
+    String filePath = path.toFile().getAbsolutePath() + File.separator + "test.bitmap";
+    BlockChannel channel = new BlockChannel(filePath);
+    channel.setCompressionThreshold(1024);
+    RoaringBitmap dense = createDenseMap(1000000);
+    long compressed = channel.addRoaringBitmap(100, dense);
+    long small = channel.addRoaringBitmap(101, createSparseMap(100));
+
+    // the dense bitmap is stored in a fraction of its serialized size
+    Assertions.assertTrue(channel.getEntryCapacity(compressed) < dense.serializedSizeInBytes() / 10);
+    Assertions.assertEquals(dense, channel.getRoaringBitmap(compressed));
+    try (BlockPin pin = channel.pin()) {
+      Assertions.assertEquals(dense, channel.getImmutableRoaringBitmap(compressed, pin).toRoaringBitmap());
+      Assertions.assertEquals(createSparseMap(100), channel.getImmutableRoaringBitmap(small, pin).toRoaringBitmap());
+    }
+
+    // in place update with a bitmap below the threshold, the entry is written uncompressed
+    Assertions.assertEquals(compressed, channel.updateRoaringBitmap(compressed, createSparseMap(10)));
+    Assertions.assertEquals(createSparseMap(10), channel.getRoaringBitmap(compressed));
+    long relocated = channel.updateRoaringBitmap(small, createDenseMap(100000));
+    channel.close();
+
+    BlockChannel reopened = new BlockChannel(filePath);
+    Assertions.assertEquals(createSparseMap(10), reopened.getRoaringBitmap(compressed));
+    Assertions.assertEquals(createDenseMap(100000), reopened.getRoaringBitmap(relocated));
+    reopened.close();
+  }
+
+  @Test
+  public void testRecovery() throws Exception {
+    String filePath = path.toFile().getAbsolutePath() + File.separator + "test.bitmap";
+    BlockChannel channel = new BlockChannel(filePath);
+    long a = channel.addRoaringBitmap(100, createSparseMap(1000));
+    long b = channel.addRoaringBitmap(101, createSparseMap(2000));
+    long chained = channel.addRoaringBitmap(102, createSparseMap(200000));
+    channel.close();
+
+    // a block written before the checksums has no checkpoint, the checksums are computed when it is opened
+    try (RandomAccessFile file = new RandomAccessFile(filePath, "rw")) {
+      file.seek(8);
+      file.writeInt(0);
+      file.seek(a + 20);
+      file.writeInt(0);
+    }
+    channel = new BlockChannel(filePath);
+    Assertions.assertEquals(createSparseMap(1000), channel.getRoaringBitmap(a));
+    Assertions.assertEquals(createSparseMap(2000), channel.getRoaringBitmap(b));
+    Assertions.assertEquals(createSparseMap(200000), channel.getRoaringBitmap(chained));
+    channel.close();
+
+    // an entry torn after the checkpoint is released, the other entries after the checkpoint are kept
+    try (RandomAccessFile file = new RandomAccessFile(filePath, "rw")) {
+      file.seek(b + 32 + 10);
+      int value = file.read();
+      file.seek(b + 32 + 10);
+      file.write(value ^ 0xFF);
+      file.seek(8);
+      file.writeInt(32);
+    }
+    channel = new BlockChannel(filePath);
+    Assertions.assertNull(channel.getRoaringBitmap(b));
+    Assertions.assertEquals(createSparseMap(1000), channel.getRoaringBitmap(a));
+    Assertions.assertEquals(createSparseMap(200000), channel.getRoaringBitmap(chained));
+    Assertions.assertEquals(2, channel.getPageEntryNumber(a));
+    channel.close();
+  }
+
+  @Test
+  public void testMetrics() throws Exception {
+    String filePath = path.toFile().getAbsolutePath() + File.separator + "test.bitmap";
+    BlockChannel channel = new BlockChannel(filePath);
+    long single = channel.addRoaringBitmap(100, createSparseMap(1000));
+    long chained = channel.addRoaringBitmap(101, createSparseMap(200000));
+    BlockChannelMetrics metrics = channel.getMetrics();
+    Assertions.assertEquals(2, metrics.getEntriesWritten());
+    Assertions.assertEquals(createSparseMap(1000).serializedSizeInBytes() + createSparseMap(200000).serializedSizeInBytes(), metrics.getBytesWritten());
+    Assertions.assertEquals(2, metrics.getForceNanos().getCount());
+
+    channel.getRoaringBitmap(single);
+    try (BlockPin pin = channel.pin()) {
+      channel.getImmutableRoaringBitmap(chained, pin);
+    }
+    Assertions.assertEquals(2, metrics.getEntriesRead());
+    Assertions.assertEquals(metrics.getBytesWritten(), metrics.getBytesRead());
+    // the chained entry has 4 chunks
+    Assertions.assertEquals(3, metrics.getContinuationHops().getSum());
+    Assertions.assertEquals(3, metrics.getContinuationHops().getMax());
+    Assertions.assertEquals(0, metrics.getContinuationHops().getPercentile(50));
+    Assertions.assertEquals(3, metrics.getContinuationHops().getPercentile(100));
+
+    double ratio = channel.getFragmentationRatio();
+    Assertions.assertTrue(ratio > 0 && ratio < 0.5);
+    channel.deleteRoaringBitmap(chained);
+    Assertions.assertTrue(channel.getFragmentationRatio() > 0.9);
+    channel.close();
+  }
+
+  @Test
+  public void testFreeSpace() throws Exception {
+    String filePath = path.toFile().getAbsolutePath() + File.separator + "test.bitmap";
+    BlockChannel channel = new BlockChannel(filePath);
+    // about 100 KB and 120 KB, each one in its own page
+    long a = channel.addRoaringBitmap(1, createSparseMap(50000));
+    long b = channel.addRoaringBitmap(2, createSparseMap(60000));
+    Assertions.assertEquals(channel.getPageOffset(a) + 128 * 1024, channel.getPageOffset(b));
+    Assertions.assertEquals(1, channel.getPageEntryNumber(a));
+
+    // a small entry goes to the page with the smallest free space large enough
+    long c = channel.addRoaringBitmap(3, createSparseMap(2000));
+    Assertions.assertEquals(channel.getPageOffset(b), channel.getPageOffset(c));
+    long d = channel.addRoaringBitmap(4, createSparseMap(10000));
+    Assertions.assertEquals(channel.getPageOffset(a), channel.getPageOffset(d));
+    // no page has enough free space left
+    long e = channel.addRoaringBitmap(5, createSparseMap(20000));
+    Assertions.assertEquals(channel.getPageOffset(b) + 128 * 1024, channel.getPageOffset(e));
+    int pageCount = channel.getPageCount();
+
+    // an emptied page is written again instead of growing the file
+    channel.deleteRoaringBitmap(a);
+    channel.deleteRoaringBitmap(d);
+    long f = channel.addRoaringBitmap(6, createSparseMap(60000));
+    Assertions.assertEquals(channel.getPageOffset(a), channel.getPageOffset(f));
+    Assertions.assertEquals(pageCount, channel.getPageCount());
+    channel.close();
+
+    // the free space is found again when the block is reopened
+    BlockChannel reopened = new BlockChannel(filePath);
+    long g = reopened.addRoaringBitmap(7, createSparseMap(20000));
+    Assertions.assertEquals(reopened.getPageOffset(e), reopened.getPageOffset(g));
+    Assertions.assertEquals(createSparseMap(60000), reopened.getRoaringBitmap(f));
+    Assertions.assertEquals(createSparseMap(20000), reopened.getRoaringBitmap(e));
+    Assertions.assertEquals(createSparseMap(2000), reopened.getRoaringBitmap(c));
+    Assertions.assertEquals(createSparseMap(20000), reopened.getRoaringBitmap(g));
+    reopened.close();
+  }
+
+  @Test
+  public void testAddBatch() throws Exception {
+    String filePath = path.toFile().getAbsolutePath() + File.separator + "test.bitmap";
+    BlockChannel channel = new BlockChannel(filePath, 4);
+    Map<Integer, RoaringBitmap> bitmaps = new LinkedHashMap<>();
+    for (int i = 0; i < 100; i++) {
+      bitmaps.put(i, createSparseMap(100 * i + 1));
+    }
+    long[] addresses = channel.addRoaringBitmaps(bitmaps);
+    Assertions.assertEquals(bitmaps.size(), addresses.length);
+    Assertions.assertTrue(channel.getSegmentCount() > 1);
+    for (int i = 0; i < addresses.length; i++) {
+      Assertions.assertEquals(bitmaps.get(i), channel.getRoaringBitmap(addresses[i]));
+    }
+
+    // a bitmap larger than a segment fails the batch, the entries written by the batch are deleted
+    int pageCount = channel.getPageCount();
+    Map<Integer, RoaringBitmap> failed = new LinkedHashMap<>();
+    failed.put(200, createSparseMap(1000));
+    failed.put(201, createSparseMap(400000));
+    Assertions.assertThrows(MemMapSpaceExceedException.class, () -> channel.addRoaringBitmaps(failed));
+    long address = channel.addRoaringBitmap(200, createSparseMap(1000));
+    Assertions.assertEquals(createSparseMap(1000), channel.getRoaringBitmap(address));
+    Assertions.assertEquals(pageCount, channel.getPageCount());
+    channel.close();
+
+    BlockChannel reopened = new BlockChannel(filePath, 4);
+    for (int i = 0; i < addresses.length; i++) {
+      Assertions.assertEquals(bitmaps.get(i), reopened.getRoaringBitmap(addresses[i]));
+    }
+    reopened.close();
+  }
+
+  @Test
+  public void testGenerations() throws Exception {
+    String filePath = path.toFile().getAbsolutePath() + File.separator + "test.bitmap";
+    BlockChannel channel = new BlockChannel(filePath, 4);
+    long first = channel.addRoaringBitmap(0, createSparseMap(20000));
+
+    // readers keep reading while the block grows
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    AtomicBoolean running = new AtomicBoolean(true);
+    Thread reader = new Thread(() -> {
+      try {
+        while (running.get()) {
+          Assertions.assertEquals(20000, channel.getRoaringBitmap(first).getCardinality());
+        }
+      } catch (Throwable e) {
+        failure.set(e);
+      }
+    });
+    reader.start();
+    long[] addresses = new long[20];
+    for (int i = 0; i < addresses.length; i++) {
+      addresses[i] = channel.addRoaringBitmap(i, createSparseMap(20000 + i));
+    }
+    running.set(false);
+    reader.join();
+    Assertions.assertNull(failure.get());
+    Assertions.assertTrue(channel.getSegmentCount() > 1);
+
+    // the deleted entries and their segments are kept while a pin taken before the view is held
+    long last = addresses[addresses.length - 1];
+    int segmentCount = channel.getSegmentCount();
+    try (BlockPin pin = channel.pin()) {
+      ImmutableRoaringBitmap view = channel.getImmutableRoaringBitmap(last, pin);
+      for (long address : addresses) {
+        if (BlockChannel.getSegmentId(address) > 0) {
+          channel.deleteRoaringBitmap(address);
+        }
+      }
+      channel.trimChannelFile();
+      Assertions.assertEquals(segmentCount, channel.getSegmentCount());
+      Assertions.assertTrue(channel.getRetiredCount() > 0);
+      Assertions.assertNull(channel.getRoaringBitmap(last));
+      Assertions.assertEquals(createSparseMap(20000 + addresses.length - 1), view.toRoaringBitmap());
+    }
+    // released and removed once the pin is closed
+    channel.trimChannelFile();
+    Assertions.assertEquals(1, channel.getSegmentCount());
+    Assertions.assertFalse(new File(filePath + ".1").exists());
+    Assertions.assertEquals(0, channel.getRetiredCount());
+
+    // the block grows again
+    long added = channel.addRoaringBitmap(100, createSparseMap(200000));
+    Assertions.assertTrue(BlockChannel.getSegmentId(added) > 0);
+    Assertions.assertEquals(createSparseMap(200000), channel.getRoaringBitmap(added));
+    channel.close();
+  }
+
+  @Test
+  public void testRetired() throws Exception {
+    String filePath = path.toFile().getAbsolutePath() + File.separator + "test.bitmap";
+    BlockChannel channel = new BlockChannel(filePath);
+    long a = channel.addRoaringBitmap(1, createSparseMap(50000));
+    long b = channel.addRoaringBitmap(2, createSparseMap(1000));
+
+    long moved;
+    long c;
+    try (BlockPin pin = channel.pin()) {
+      // a deleted entry is not read, its space is not reused while the pin is held
+      channel.deleteRoaringBitmap(a);
+      Assertions.assertNull(channel.getRoaringBitmap(a));
+      c = channel.addRoaringBitmap(3, createSparseMap(50000));
+      Assertions.assertNotEquals(channel.getPageOffset(a), channel.getPageOffset(c));
+      Assertions.assertEquals(1, channel.getRetiredCount());
+
+      // a moved entry is still read at its old address, updating or deleting it by the old address fails
+      moved = channel.updateRoaringBitmap(b, createSparseMap(20000));
+      Assertions.assertNotEquals(b, moved);
+      Assertions.assertEquals(createSparseMap(1000), channel.getRoaringBitmap(b));
+      Assertions.assertEquals(createSparseMap(20000), channel.getRoaringBitmap(moved));
+      Assertions.assertThrows(IllegalStateException.class, () -> channel.updateRoaringBitmap(b, createSparseMap(10)));
+      Assertions.assertThrows(IllegalStateException.class, () -> channel.deleteRoaringBitmap(b));
+      Assertions.assertEquals(0, channel.getPageEntryNumber(a));
+    }
+
+    // released by the next write once the pin is closed, the space is reused
+    channel.trimChannelFile();
+    Assertions.assertEquals(0, channel.getRetiredCount());
+    Assertions.assertNull(channel.getRoaringBitmap(b));
+    long d = channel.addRoaringBitmap(4, createSparseMap(50000));
+    Assertions.assertEquals(channel.getPageOffset(a), channel.getPageOffset(d));
+
+    // an entry retired when the channel is closed is released when it is opened again
+    BlockPin pin = channel.pin();
+    channel.deleteRoaringBitmap(c);
+    pin.close();
+    channel.close();
+    BlockChannel reopened = new BlockChannel(filePath);
+    Assertions.assertNull(reopened.getRoaringBitmap(c));
+    Assertions.assertEquals(0, reopened.getUsedPageSize(c));
+    Assertions.assertEquals(createSparseMap(20000), reopened.getRoaringBitmap(moved));
+    Assertions.assertEquals(createSparseMap(50000), reopened.getRoaringBitmap(d));
+    reopened.close();
+  }
+
+  @Test
+  public void testClose() throws Exception {
+    String filePath = path.toFile().getAbsolutePath() + File.separator + "test.bitmap";
+    BlockChannel channel = new BlockChannel(filePath);
+    channel.setContiguousAllocation(true);
+    long single = channel.addRoaringBitmap(100, createSparseMap(1000));
+    long span = channel.addRoaringBitmap(101, createSparseMap(200000));
+
+    // readers racing the close see the bitmap or a closed channel, never an unmapped page
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread[] readers = new Thread[4];
+    for (int i = 0; i < readers.length; i++) {
+      readers[i] = new Thread(() -> {
+        try {
+          while (true) {
+            Assertions.assertEquals(1000, channel.getRoaringBitmap(single).getCardinality());
+            // the view is read under a pin, close waits for it
+            try (BlockPin pin = channel.pin()) {
+              Assertions.assertEquals(200000, channel.getImmutableRoaringBitmap(span, pin).getCardinality());
+            }
+          }
+        } catch (IllegalStateException e) {
+          // closed
+        } catch (Throwable e) {
+          failure.set(e);
+        }
+      });
+      readers[i].start();
+    }
+    Thread.sleep(50);
+    channel.close();
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    Assertions.assertNull(failure.get());
+    Assertions.assertThrows(IllegalStateException.class, () -> channel.getRoaringBitmap(single));
+    Assertions.assertThrows(IllegalStateException.class, () -> channel.addRoaringBitmap(102, createSparseMap(10)));
+    // closing twice does nothing
+    channel.close();
+
+    // close waits for an open pin
+    BlockChannel reopened = new BlockChannel(filePath);
+    BlockPin pin = reopened.pin();
+    Thread closer = new Thread(() -> {
+      try {
+        reopened.close();
+      } catch (IOException e) {
+        failure.set(e);
+      }
+    });
+    closer.start();
+    closer.join(100);
+    Assertions.assertTrue(closer.isAlive());
+    pin.close();
+    closer.join();
+    Assertions.assertNull(failure.get());
+  }
+
+  private RoaringBitmap createDenseMap(int num) {
+    RoaringBitmap roaringBitmap = new RoaringBitmap();
+    for (int i = 0; i < num; i++) {
+      roaringBitmap.add(i * 2);
+    }
+    return roaringBitmap;
+  }
+
+  private RoaringBitmap createSparseMap(int num) {
+    RoaringBitmap roaringBitmap = new RoaringBitmap();
+    for (int i = 0; i < num; i++) {
+      // 17 keeps every container an array container, so the serialized size is about 2 bytes per value
+      roaringBitmap.add(i * 17);
+    }
+    return roaringBitmap;
+  }
+
   private RoaringBitmap createOnePageMap(int max) {
     RoaringBitmap roaringBitmap = new RoaringBitmap();
     for (int i = 0; i < max; i++) {
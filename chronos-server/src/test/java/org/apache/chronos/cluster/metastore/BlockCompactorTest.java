@@ -0,0 +1,167 @@
+package org.apache.chronos.cluster.metastore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.roaringbitmap.RoaringBitmap;
+
+class BlockCompactorTest {
+
+  @TempDir
+  private Path path;
+
+  @Test
+  public void testCompact() throws Exception {
+    BlockChannel channel = new BlockChannel(path.toFile().getAbsolutePath() + File.separator + "test.bitmap");
+    Map<Long, RoaringBitmap> kept = new LinkedHashMap<>();
+    long[] offsets = new long[30];
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = channel.addRoaringBitmap(i, createSparseMap(20000 + i));
+    }
+    // the first pages become unused, the last ones sparse
+    for (int i = 0; i < offsets.length; i++) {
+      if (i >= 10 && i % 4 == 0) {
+        kept.put(offsets[i], createSparseMap(20000 + i));
+      } else {
+        channel.deleteRoaringBitmap(offsets[i]);
+      }
+    }
+    int pageCount = channel.getPageCount();
+
+    Map<Long, Long> relocated = new HashMap<>();
+    BlockCompactor compactor = new BlockCompactor(channel, (oldAddresses, newAddresses, size) -> {
+      // the listener does not hold the block lock, a lookup of another thread taking the read lock goes on
+      try {
+        CompletableFuture.runAsync(channel::getFragmentationRatio).get(10, TimeUnit.SECONDS);
+      } catch (Exception e) {
+        throw new IOException(e);
+      }
+      for (int i = 0; i < size; i++) {
+        relocated.put(oldAddresses[i], newAddresses[i]);
+      }
+    }, Long.MAX_VALUE);
+
+    Assertions.assertTrue(compactor.compact() > 0);
+    Assertions.assertFalse(relocated.isEmpty());
+    Assertions.assertTrue(channel.getPageCount() < pageCount);
+    for (Map.Entry<Long, RoaringBitmap> entry : kept.entrySet()) {
+      long offset = relocated.getOrDefault(entry.getKey(), entry.getKey());
+      Assertions.assertEquals(entry.getValue(), channel.getRoaringBitmap(offset));
+    }
+
+    // entries added after the compaction do not overwrite the moved ones
+    RoaringBitmap added = createSparseMap(30000);
+    long addedOffset = channel.addRoaringBitmap(100, added);
+    Assertions.assertEquals(added, channel.getRoaringBitmap(addedOffset));
+    for (Map.Entry<Long, RoaringBitmap> entry : kept.entrySet()) {
+      long offset = relocated.getOrDefault(entry.getKey(), entry.getKey());
+      Assertions.assertEquals(entry.getValue(), channel.getRoaringBitmap(offset));
+    }
+    compactor.close();
+  }
+
+  @Test
+  public void testCompactSegments() throws Exception {
+    String filePath = path.toFile().getAbsolutePath() + File.separator + "test.bitmap";
+    BlockChannel channel = new BlockChannel(filePath, 4);
+    Map<Long, RoaringBitmap> kept = new LinkedHashMap<>();
+    long[] addresses = new long[30];
+    for (int i = 0; i < addresses.length; i++) {
+      addresses[i] = channel.addRoaringBitmap(i, createSparseMap(20000 + i));
+    }
+    for (int i = 0; i < addresses.length; i++) {
+      if (i >= 10 && i % 4 == 0) {
+        kept.put(addresses[i], createSparseMap(20000 + i));
+      } else {
+        channel.deleteRoaringBitmap(addresses[i]);
+      }
+    }
+    int segmentCount = channel.getSegmentCount();
+
+    Map<Long, Long> relocated = new HashMap<>();
+    BlockCompactor compactor = new BlockCompactor(channel, (oldAddresses, newAddresses, size) -> {
+      for (int i = 0; i < size; i++) {
+        relocated.put(oldAddresses[i], newAddresses[i]);
+      }
+    }, Long.MAX_VALUE);
+
+    Assertions.assertTrue(compactor.compact() > 0);
+    // the kept entries are moved to the first segments and the emptied segments are removed
+    Assertions.assertTrue(channel.getSegmentCount() < segmentCount);
+    Assertions.assertFalse(new File(filePath + "." + (segmentCount - 1)).exists());
+    for (Map.Entry<Long, RoaringBitmap> entry : kept.entrySet()) {
+      long address = relocated.getOrDefault(entry.getKey(), entry.getKey());
+      Assertions.assertTrue(BlockChannel.getSegmentId(address) < channel.getSegmentCount());
+      Assertions.assertEquals(entry.getValue(), channel.getRoaringBitmap(address));
+    }
+    compactor.close();
+    channel.close();
+  }
+
+  @Test
+  public void testSkipPageWithoutRoom() throws Exception {
+    BlockChannel channel = new BlockChannel(path.toFile().getAbsolutePath() + File.separator + "test.bitmap");
+    // one page each: a kept page, a free page, then sparse pages of 10K, 30K, 50K and 40K + 20K entries, the fillers
+    // are deleted once all pages are laid out
+    int[][] pages = {{62000}, {}, {5000}, {15000}, {25000}, {20000, 10000}};
+    Map<Long, RoaringBitmap> kept = new LinkedHashMap<>();
+    long[] pageEntries = new long[pages.length];
+    List<Long> fillers = new ArrayList<>();
+    for (int page = 0; page < pages.length; page++) {
+      int filled = 0;
+      for (int num : pages[page]) {
+        RoaringBitmap bitmap = createSparseMap(num);
+        long address = channel.addRoaringBitmap(page, bitmap);
+        kept.put(address, bitmap);
+        pageEntries[page] = address;
+        filled += num;
+      }
+      if (filled < 62000) {
+        fillers.add(channel.addRoaringBitmap(page, createSparseMap(62000 - filled)));
+      }
+    }
+    for (long filler : fillers) {
+      channel.deleteRoaringBitmap(filler);
+    }
+    for (int page = 2; page < pages.length; page++) {
+      Assertions.assertEquals(page, BlockChannel.getSegmentOffset(pageEntries[page]) / BlockChannel.PAGE_SIZE);
+    }
+
+    Map<Long, Long> relocated = new HashMap<>();
+    BlockCompactor compactor = new BlockCompactor(channel, (oldAddresses, newAddresses, size) -> {
+      for (int i = 0; i < size; i++) {
+        relocated.put(oldAddresses[i], newAddresses[i]);
+      }
+    }, Long.MAX_VALUE);
+
+    // the 30K entry no longer fits in the free page, the 10K entry before it still does
+    Assertions.assertEquals(4, compactor.compact());
+    Assertions.assertFalse(relocated.containsKey(pageEntries[3]));
+    Assertions.assertTrue(relocated.containsKey(pageEntries[2]));
+    Assertions.assertEquals(1, BlockChannel.getSegmentOffset(relocated.get(pageEntries[2])) / BlockChannel.PAGE_SIZE);
+    for (Map.Entry<Long, RoaringBitmap> entry : kept.entrySet()) {
+      long address = relocated.getOrDefault(entry.getKey(), entry.getKey());
+      Assertions.assertEquals(entry.getValue(), channel.getRoaringBitmap(address));
+    }
+    compactor.close();
+    channel.close();
+  }
+
+  private RoaringBitmap createSparseMap(int num) {
+    RoaringBitmap roaringBitmap = new RoaringBitmap();
+    for (int i = 0; i < num; i++) {
+      roaringBitmap.add(i * 17);
+    }
+    return roaringBitmap;
+  }
+}
@@ -1,10 +1,19 @@
 package org.apache.chronos.cluster.metastore;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.StreamSupport;
 import org.apache.chronos.cluster.meta.Offset;
 import org.apache.chronos.cluster.meta.OffsetTest;
+import org.apache.chronos.cluster.meta.serializer.OffsetSerializer;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
@@ -47,4 +56,380 @@ class DiskOffsetIndexTest {
     offset3New = diskOffsetIndex.getOffset(101);
     Assertions.assertNull(offset3New);
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testBatch() throws IOException {
+    DiskOffsetIndex diskOffsetIndex = new DiskOffsetIndex(new File(path.toFile().getAbsolutePath() + File.separator + "/test.db"));
+
+    int num = 5000;
+    int[] ids = new int[num];
+    Offset[] offsets = new Offset[num];
+    for (int i = 0; i < num; i++) {
+      ids[i] = i + 1;
+      offsets[i] = OffsetTest.create();
+    }
+    // the file is expanded once for the whole batch
+    diskOffsetIndex.upsertOffsets(ids, offsets);
+    Assertions.assertEquals(1, diskOffsetIndex.getMetaDataVersion());
+    Assertions.assertEquals(num, diskOffsetIndex.getSize());
+    Assertions.assertEquals(num, diskOffsetIndex.getMaxMetaDataId());
+    OffsetTest.assertEquals(offsets[0], diskOffsetIndex.getOffset(1));
+    OffsetTest.assertEquals(offsets[num - 1], diskOffsetIndex.getOffset(num));
+
+    // updating existing ids does not change the size
+    diskOffsetIndex.upsertOffsets(new int[]{1, 2}, new Offset[]{offsets[2], offsets[3]});
+    Assertions.assertEquals(2, diskOffsetIndex.getMetaDataVersion());
+    Assertions.assertEquals(num, diskOffsetIndex.getSize());
+    OffsetTest.assertEquals(offsets[2], diskOffsetIndex.getOffset(1));
+
+    // an invalid id or a null offset anywhere in the batch rejects the whole batch
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> diskOffsetIndex.upsertOffsets(new int[]{num + 1, 0}, new Offset[]{offsets[0], offsets[1]}));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> diskOffsetIndex.upsertOffsets(new int[]{num + 1, Offset.MAX_META_DATA_ID + 1}, new Offset[]{offsets[0], offsets[1]}));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> diskOffsetIndex.upsertOffsets(new int[]{3, num + 1}, new Offset[]{offsets[0], null}));
+    Assertions.assertEquals(2, diskOffsetIndex.getMetaDataVersion());
+    Assertions.assertEquals(num, diskOffsetIndex.getSize());
+    Assertions.assertEquals(num, diskOffsetIndex.getMaxMetaDataId());
+    Assertions.assertNull(diskOffsetIndex.getOffset(num + 1));
+    OffsetTest.assertEquals(offsets[2], diskOffsetIndex.getOffset(3));
+
+    diskOffsetIndex.removeOffsets(new int[]{num, num - 1, 10, num + 100});
+    Assertions.assertEquals(3, diskOffsetIndex.getMetaDataVersion());
+    Assertions.assertEquals(num - 3, diskOffsetIndex.getSize());
+    Assertions.assertEquals(num - 2, diskOffsetIndex.getMaxMetaDataId());
+    Assertions.assertNull(diskOffsetIndex.getOffset(10));
+    diskOffsetIndex.close();
+
+    DiskOffsetIndex reopened = new DiskOffsetIndex(new File(path.toFile().getAbsolutePath() + File.separator + "/test.db"));
+    Assertions.assertEquals(3, reopened.getMetaDataVersion());
+    Assertions.assertEquals(num - 3, reopened.getSize());
+    OffsetTest.assertEquals(offsets[num - 3], reopened.getOffset(num - 2));
+    reopened.close();
+  }
+
+  @Test
+  public void testChunks() throws IOException {
+    File file = new File(path.toFile().getAbsolutePath() + File.separator + "/test.db");
+    int chunkSize = 64 * 1024;
+    DiskOffsetIndex diskOffsetIndex = new DiskOffsetIndex(file, chunkSize);
+    int num = 20000;
+    Offset[] offsets = new Offset[num + 1];
+    for (int id = 1; id <= num; id++) {
+      offsets[id] = OffsetTest.create();
+      diskOffsetIndex.upsertOffset(id, offsets[id]);
+    }
+    // records crossing the end of a chunk are read from the chunk they start in
+    for (int id = 1; id <= num; id++) {
+      OffsetTest.assertEquals(offsets[id], diskOffsetIndex.getOffset(id));
+    }
+    diskOffsetIndex.close();
+
+    // the file format does not depend on the chunk size
+    DiskOffsetIndex reopened = new DiskOffsetIndex(file);
+    Assertions.assertEquals(num, reopened.getSize());
+    Assertions.assertEquals(num, reopened.getMaxMetaDataId());
+    for (int id = 1; id <= num; id++) {
+      OffsetTest.assertEquals(offsets[id], reopened.getOffset(id));
+    }
+    reopened.close();
+  }
+
+  @Test
+  public void testMappedLength() throws IOException {
+    File file = new File(path.toFile().getAbsolutePath() + File.separator + "/test.db");
+    // an empty index maps and extends the file to 64 KB, not to a whole chunk
+    DiskOffsetIndex diskOffsetIndex = new DiskOffsetIndex(file);
+    Assertions.assertEquals(64 * 1024, file.length());
+    // the header, the root directory, a directory page and a record page of 4096 records
+    diskOffsetIndex.upsertOffset(1, OffsetTest.create());
+    Assertions.assertEquals(256 * 1024, file.length());
+    int num = 20000;
+    Offset[] offsets = new Offset[num + 1];
+    for (int id = 1; id <= num; id++) {
+      offsets[id] = OffsetTest.create();
+      diskOffsetIndex.upsertOffset(id, offsets[id]);
+    }
+    // 5 record pages, the mapping doubles
+    Assertions.assertEquals(1024 * 1024, file.length());
+    for (int id = 1; id <= num; id++) {
+      OffsetTest.assertEquals(offsets[id], diskOffsetIndex.getOffset(id));
+    }
+    diskOffsetIndex.close();
+
+    DiskOffsetIndex reopened = new DiskOffsetIndex(file);
+    Assertions.assertEquals(1024 * 1024, file.length());
+    OffsetTest.assertEquals(offsets[num], reopened.getOffset(num));
+    reopened.close();
+  }
+
+  @Test
+  public void testHolder() throws IOException {
+    DiskOffsetIndex diskOffsetIndex = new DiskOffsetIndex(new File(path.toFile().getAbsolutePath() + File.separator + "/test.db"));
+    Offset offset1 = OffsetTest.create();
+    Offset offset2 = OffsetTest.create();
+    diskOffsetIndex.upsertOffset(1, offset1);
+    diskOffsetIndex.upsertOffset(2, offset2);
+
+    Offset holder = new Offset();
+    Assertions.assertTrue(diskOffsetIndex.getOffset(1, holder));
+    OffsetTest.assertEquals(offset1, holder);
+    Assertions.assertTrue(diskOffsetIndex.getOffset(2, holder));
+    OffsetTest.assertEquals(offset2, holder);
+
+    diskOffsetIndex.removeOffset(1);
+    Assertions.assertFalse(diskOffsetIndex.getOffset(1, holder));
+    Assertions.assertFalse(diskOffsetIndex.getOffset(3, holder));
+    OffsetTest.assertEquals(offset2, holder);
+    holder.recycle();
+    diskOffsetIndex.close();
+  }
+
+  @Test
+  public void testLiveIds() throws IOException {
+    File file = new File(path.toFile().getAbsolutePath() + File.separator + "/test.db");
+    DiskOffsetIndex diskOffsetIndex = new DiskOffsetIndex(file);
+    for (int id = 1; id <= 10; id++) {
+      diskOffsetIndex.upsertOffset(id, OffsetTest.create());
+    }
+    diskOffsetIndex.removeOffsets(new int[]{3, 5, 10});
+    Assertions.assertEquals(9, diskOffsetIndex.getMaxMetaDataId());
+    Assertions.assertEquals(7, diskOffsetIndex.getSize());
+    Assertions.assertArrayEquals(new int[]{1, 2, 4, 6, 7, 8, 9}, diskOffsetIndex.getLiveIds().toArray());
+
+    // deleted ids are reused first, an allocated id is not allocated again before it is written
+    Assertions.assertEquals(3, diskOffsetIndex.allocateId());
+    Assertions.assertEquals(5, diskOffsetIndex.allocateId());
+    diskOffsetIndex.upsertOffset(5, OffsetTest.create());
+    Assertions.assertEquals(10, diskOffsetIndex.allocateId());
+    Assertions.assertEquals(11, diskOffsetIndex.allocateId());
+    diskOffsetIndex.close();
+
+    // loaded from the checkpoint, the allocated ids which were not written are free again
+    Assertions.assertTrue(new File(file.getPath() + ".live").exists());
+    DiskOffsetIndex reopened = new DiskOffsetIndex(file);
+    Assertions.assertArrayEquals(new int[]{1, 2, 4, 5, 6, 7, 8, 9}, reopened.getLiveIds().toArray());
+    Assertions.assertEquals(3, reopened.allocateId());
+    reopened.removeOffset(9);
+    Assertions.assertEquals(8, reopened.getMaxMetaDataId());
+    // a missing checkpoint is rebuilt from the records
+    reopened.upsertOffset(12, OffsetTest.create());
+    reopened.close();
+    new File(file.getPath() + ".live").delete();
+    reopened = new DiskOffsetIndex(file);
+    Assertions.assertArrayEquals(new int[]{1, 2, 4, 5, 6, 7, 8, 12}, reopened.getLiveIds().toArray());
+    Assertions.assertEquals(8, reopened.getSize());
+    Assertions.assertEquals(12, reopened.getMaxMetaDataId());
+    reopened.close();
+  }
+
+  @Test
+  public void testCheckpoint() throws IOException {
+    File file = new File(path.toFile().getAbsolutePath() + File.separator + "/test.db");
+    File liveFile = new File(file.getPath() + ".live");
+    DiskOffsetIndex diskOffsetIndex = new DiskOffsetIndex(file, DiskOffsetIndex.DEFAULT_CHUNK_SIZE, 4);
+    for (int id = 1; id <= 3; id++) {
+      diskOffsetIndex.upsertOffset(id, OffsetTest.create());
+    }
+    Assertions.assertFalse(liveFile.exists());
+    diskOffsetIndex.upsertOffset(4, OffsetTest.create());
+    Assertions.assertEquals(4, readCheckpointVersion(liveFile));
+
+    // removing ids which are not live changes nothing
+    diskOffsetIndex.removeOffset(2);
+    Assertions.assertEquals(5, diskOffsetIndex.getMetaDataVersion());
+    diskOffsetIndex.removeOffset(2);
+    diskOffsetIndex.removeOffsets(new int[]{2, 100});
+    Assertions.assertEquals(5, diskOffsetIndex.getMetaDataVersion());
+    Assertions.assertEquals(3, diskOffsetIndex.getSize());
+    int allocated = diskOffsetIndex.allocateId();
+    Assertions.assertEquals(2, allocated);
+    diskOffsetIndex.removeOffset(allocated);
+    Assertions.assertEquals(5, diskOffsetIndex.getMetaDataVersion());
+    Assertions.assertEquals(2, diskOffsetIndex.allocateId());
+
+    diskOffsetIndex.removeOffsets(new int[]{3, 100});
+    diskOffsetIndex.upsertOffset(5, OffsetTest.create());
+    diskOffsetIndex.upsertOffset(6, OffsetTest.create());
+    Assertions.assertEquals(8, diskOffsetIndex.getMetaDataVersion());
+    Assertions.assertEquals(8, readCheckpointVersion(liveFile));
+    Assertions.assertFalse(new File(liveFile.getPath() + ".tmp").exists());
+
+    // opened without closing, as after a crash: the checkpoint is current and loaded
+    DiskOffsetIndex reopened = new DiskOffsetIndex(file);
+    Assertions.assertArrayEquals(new int[]{1, 4, 5, 6}, reopened.getLiveIds().toArray());
+    Assertions.assertEquals(8, reopened.getMetaDataVersion());
+    reopened.close();
+    diskOffsetIndex.close();
+  }
+
+  private static int readCheckpointVersion(File liveFile) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(liveFile, "r")) {
+      return raf.readInt();
+    }
+  }
+
+  @Test
+  public void testSparse() throws IOException {
+    File file = new File(path.toFile().getAbsolutePath() + File.separator + "/test.db");
+    DiskOffsetIndex diskOffsetIndex = new DiskOffsetIndex(file, 64 * 1024);
+    Offset offset1 = OffsetTest.create();
+    Offset offset2 = OffsetTest.create();
+    Offset offset3 = OffsetTest.create();
+    diskOffsetIndex.upsertOffset(Offset.MAX_META_DATA_ID, offset1);
+    diskOffsetIndex.upsertOffset(1, offset2);
+    diskOffsetIndex.upsertOffset(1 << 20, offset3);
+    Assertions.assertEquals(Offset.MAX_META_DATA_ID, diskOffsetIndex.getMaxMetaDataId());
+    Assertions.assertEquals(3, diskOffsetIndex.getSize());
+    // only the pages holding the ids are allocated
+    Assertions.assertTrue(file.length() < 1024 * 1024, "file length: " + file.length());
+    Assertions.assertNull(diskOffsetIndex.getOffset(2));
+    Assertions.assertNull(diskOffsetIndex.getOffset(Offset.MAX_META_DATA_ID - 1));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> diskOffsetIndex.upsertOffset(0, offset1));
+    diskOffsetIndex.close();
+
+    new File(file.getPath() + ".live").delete();
+    DiskOffsetIndex reopened = new DiskOffsetIndex(file);
+    Assertions.assertArrayEquals(new int[]{1, 1 << 20, Offset.MAX_META_DATA_ID}, reopened.getLiveIds().toArray());
+    OffsetTest.assertEquals(offset1, reopened.getOffset(Offset.MAX_META_DATA_ID));
+    OffsetTest.assertEquals(offset2, reopened.getOffset(1));
+    OffsetTest.assertEquals(offset3, reopened.getOffset(1 << 20));
+    reopened.close();
+  }
+
+  @Test
+  public void testMigration() throws IOException {
+    File file = new File(path.toFile().getAbsolutePath() + File.separator + "/test.db");
+    int num = 100;
+    Offset[] offsets = new Offset[num + 1];
+    // a file of the flat layout, record of id i at (i - 1) * Offset.TOTAL_SIZE + 16
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(64 * 1024);
+      raf.writeInt(0x19870712);
+      raf.writeInt(7);
+      raf.writeInt(num);
+      raf.writeInt(num - 1);
+      ByteBuf buf = Unpooled.buffer(Offset.TOTAL_SIZE);
+      for (int id = 1; id <= num; id++) {
+        offsets[id] = OffsetTest.create();
+        buf.clear();
+        OffsetSerializer.INSTANCE.serialize(buf, offsets[id]);
+        if (id == 50) {
+          buf.setByte(0, Offset.STATUS_DELETED);
+        }
+        raf.seek((long) (id - 1) * Offset.TOTAL_SIZE + 16);
+        raf.write(buf.array(), buf.arrayOffset(), Offset.TOTAL_SIZE);
+      }
+    }
+
+    DiskOffsetIndex migrated = new DiskOffsetIndex(file);
+    Assertions.assertFalse(new File(file.getPath() + ".v1").exists());
+    Assertions.assertEquals(7, migrated.getMetaDataVersion());
+    Assertions.assertEquals(num - 1, migrated.getSize());
+    Assertions.assertEquals(num, migrated.getMaxMetaDataId());
+    Assertions.assertNull(migrated.getOffset(50));
+    for (int id = 1; id <= num; id++) {
+      if (id != 50) {
+        OffsetTest.assertEquals(offsets[id], migrated.getOffset(id));
+      }
+    }
+    migrated.close();
+
+    DiskOffsetIndex reopened = new DiskOffsetIndex(file);
+    Assertions.assertEquals(num - 1, reopened.getSize());
+    OffsetTest.assertEquals(offsets[num], reopened.getOffset(num));
+    reopened.close();
+  }
+
+  @Test
+  public void testSpliterator() throws IOException {
+    File file = new File(path.toFile().getAbsolutePath() + File.separator + "/test.db");
+    DiskOffsetIndex diskOffsetIndex = new DiskOffsetIndex(file);
+    int num = 20000;
+    Offset[] offsets = new Offset[num + 1];
+    for (int id = 1; id <= num; id++) {
+      offsets[id] = OffsetTest.create();
+    }
+    int[] ids = new int[num];
+    for (int i = 0; i < num; i++) {
+      ids[i] = i + 1;
+    }
+    diskOffsetIndex.upsertOffsets(ids, Arrays.copyOfRange(offsets, 1, num + 1));
+    diskOffsetIndex.removeOffsets(new int[]{2, 4096, 4097, 10000});
+    Offset sparse = OffsetTest.create();
+    diskOffsetIndex.upsertOffset(1 << 24, sparse);
+
+    Spliterator<OffsetIndexEntry> spliterator = diskOffsetIndex.spliterator();
+    Assertions.assertNotNull(spliterator.trySplit());
+
+    // records are read into the entry of the spliterator, the consumer copies what it keeps
+    int[] scanned = StreamSupport.stream(diskOffsetIndex.spliterator(), true)
+        .filter(entry -> {
+          Offset expected = entry.getMetaDataId() == 1 << 24 ? sparse : offsets[entry.getMetaDataId()];
+          OffsetTest.assertEquals(expected, entry.getOffset());
+          return true;
+        })
+        .mapToInt(OffsetIndexEntry::getMetaDataId)
+        .toArray();
+    Assertions.assertArrayEquals(diskOffsetIndex.getLiveIds().toArray(), scanned);
+    Assertions.assertEquals(num - 3, scanned.length);
+    diskOffsetIndex.close();
+  }
+
+  @Test
+  public void testConcurrentReads() throws Exception {
+    DiskOffsetIndex diskOffsetIndex = new DiskOffsetIndex(new File(path.toFile().getAbsolutePath() + File.separator + "/test.db"));
+    Offset offset1 = OffsetTest.create();
+    Offset offset2 = OffsetTest.create();
+    diskOffsetIndex.upsertOffset(1, offset1);
+    AtomicBoolean running = new AtomicBoolean(true);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread reader = new Thread(() -> {
+      Offset holder = new Offset();
+      try {
+        while (running.get()) {
+          // a read racing a write sees the record before or after the write, never a mix of both
+          Assertions.assertTrue(diskOffsetIndex.getOffset(1, holder));
+          Offset expected = holder.getBlockId() == offset1.getBlockId() ? offset1 : offset2;
+          OffsetTest.assertEquals(expected, holder);
+        }
+      } catch (Throwable e) {
+        failure.set(e);
+      }
+    });
+    reader.start();
+    for (int i = 0; i < 2000; i++) {
+      diskOffsetIndex.upsertOffset(1, i % 2 == 0 ? offset2 : offset1);
+    }
+    running.set(false);
+    reader.join();
+    Assertions.assertNull(failure.get());
+    diskOffsetIndex.close();
+  }
+
+  @Test
+  public void testBrokenRecord() throws IOException {
+    File file = new File(path.toFile().getAbsolutePath() + File.separator + "/test.db");
+    DiskOffsetIndex diskOffsetIndex = new DiskOffsetIndex(file);
+    Offset offset1 = OffsetTest.create();
+    diskOffsetIndex.upsertOffset(1, offset1);
+    diskOffsetIndex.upsertOffset(2, OffsetTest.create());
+    diskOffsetIndex.close();
+
+    // the first record page follows the header, the root directory and the first directory page
+    long recordPage = 32 + 4096 + 4096;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.seek(recordPage + 32);
+      Assertions.assertEquals(Offset.STATUS_NORMAL, raf.readByte());
+      raf.seek(recordPage + 32 + 8);
+      raf.writeLong(-1);
+    }
+    new File(file.getPath() + ".live").delete();
+    DiskOffsetIndex reopened = new DiskOffsetIndex(file);
+    Assertions.assertArrayEquals(new int[]{1}, reopened.getLiveIds().toArray());
+    OffsetTest.assertEquals(offset1, reopened.getOffset(1));
+    Assertions.assertNull(reopened.getOffset(2));
+    reopened.close();
+  }
+}
@@ -0,0 +1,189 @@
+package org.apache.chronos.cluster.metastore;
+
+import io.vertx.core.Future;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.chronos.cluster.meta.IMetaData;
+import org.apache.chronos.cluster.meta.Offset;
+import org.apache.chronos.cluster.meta.OffsetTest;
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ * Read throughput of the metastore structures for 1, 2, 4 ... threads up to the number of cores. The reads do not
+ * take a lock, so the throughput should grow with the threads until the cores are used up.
+ * <p>
+ * Run the main method with the test classpath, the first argument is the duration of every run in seconds, 3 by
+ * default.
+ */
+public class MetaStoreReadBenchmark {
+
+  private static final int OFFSET_NUM = 1_000_000;
+  private static final int TAG_NUM = 10_000;
+  private static final int BITMAP_NUM = 1_000;
+
+  interface Reader {
+
+    void read(ThreadLocalRandom random, Offset holder) throws Exception;
+  }
+
+  public static void main(String[] args) throws Exception {
+    long seconds = args.length > 0 ? Long.parseLong(args[0]) : 3;
+    Path dir = Files.createTempDirectory("chronos-bench");
+
+    DiskOffsetIndex offsetIndex = new DiskOffsetIndex(new File(dir.toFile(), "offset.db"));
+    int[] ids = new int[OFFSET_NUM];
+    Offset[] offsets = new Offset[OFFSET_NUM];
+    for (int i = 0; i < OFFSET_NUM; i++) {
+      ids[i] = i + 1;
+      offsets[i] = OffsetTest.create();
+    }
+    offsetIndex.upsertOffsets(ids, offsets);
+
+    TagsIndexChannel tagsIndex = new TagsIndexChannel(dir.toString(), sizedEngine(TAG_NUM));
+    for (int i = 0; i < TAG_NUM; i++) {
+      tagsIndex.addIndex("tag_" + i, i, i);
+    }
+
+    BlockChannel blockChannel = new BlockChannel(new File(dir.toFile(), "block.db").getPath(), 64);
+    long[] addresses = new long[BITMAP_NUM];
+    for (int i = 0; i < BITMAP_NUM; i++) {
+      RoaringBitmap bitmap = new RoaringBitmap();
+      bitmap.add(0L, 100L + i);
+      addresses[i] = blockChannel.addRoaringBitmap(i, bitmap);
+    }
+
+    run("DiskOffsetIndex.getOffset", seconds,
+        (random, holder) -> offsetIndex.getOffset(random.nextInt(OFFSET_NUM) + 1, holder));
+    // every offset is cached, the reads hit the offset cache
+    MemoryOffsetIndexStoreWrapper cachedIndex = new MemoryOffsetIndexStoreWrapper(offsetIndex);
+    cachedIndex.upsertOffsets(ids, offsets);
+    run("MemoryOffsetIndexStoreWrapper.getOffset", seconds,
+        (random, holder) -> cachedIndex.getOffset(random.nextInt(OFFSET_NUM) + 1, holder));
+    run("TagsIndexChannel.getBlockOffset", seconds,
+        (random, holder) -> tagsIndex.getBlockOffset("tag_" + random.nextInt(TAG_NUM)));
+    run("TagsIndexChannel.getBlockOffsets(200)", seconds, (random, holder) -> {
+      List<String> tags = new ArrayList<>(200);
+      for (int i = 0; i < 200; i++) {
+        tags.add("tag_" + random.nextInt(TAG_NUM));
+      }
+      tagsIndex.getBlockOffsets(tags);
+    });
+    run("BlockChannel.getImmutableRoaringBitmap", seconds, (random, holder) -> {
+      try (BlockPin pin = blockChannel.pin()) {
+        blockChannel.getImmutableRoaringBitmap(addresses[random.nextInt(BITMAP_NUM)], pin).getCardinality();
+      }
+    });
+
+    offsetIndex.close();
+    tagsIndex.close();
+    blockChannel.close();
+  }
+
+  private static void run(String name, long seconds, Reader reader) throws Exception {
+    int cores = Runtime.getRuntime().availableProcessors();
+    double single = 0;
+    for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+      double opsPerSecond = measure(threads, seconds, reader);
+      if (threads == 1) {
+        single = opsPerSecond;
+      }
+      System.out.printf("%-40s threads: %3d, ops/s: %,15.0f, speedup: %5.2f%n", name, threads, opsPerSecond, opsPerSecond / single);
+      if (threads == cores) {
+        break;
+      }
+    }
+  }
+
+  private static double measure(int threads, long seconds, Reader reader) throws Exception {
+    LongAdder ops = new LongAdder();
+    AtomicBoolean running = new AtomicBoolean(true);
+    CountDownLatch started = new CountDownLatch(threads);
+    CountDownLatch stopped = new CountDownLatch(threads);
+    for (int i = 0; i < threads; i++) {
+      Thread thread = new Thread(() -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Offset holder = new Offset();
+        started.countDown();
+        long count = 0;
+        try {
+          while (running.get()) {
+            reader.read(random, holder);
+            count++;
+          }
+        } catch (Exception e) {
+          e.printStackTrace();
+        } finally {
+          ops.add(count);
+          stopped.countDown();
+        }
+      });
+      thread.setDaemon(true);
+      thread.start();
+    }
+    started.await();
+    long start = System.nanoTime();
+    Thread.sleep(seconds * 1000);
+    running.set(false);
+    stopped.await();
+    return ops.sum() * 1e9 / (System.nanoTime() - start);
+  }
+
+  private static IStorageEngine sizedEngine(int size) {
+    return new IStorageEngine() {
+      @Override
+      public Future<Void> init() {
+        return null;
+      }
+
+      @Override
+      public IMetaData getById(int id) {
+        return null;
+      }
+
+      @Override
+      public IMetaData getByCode(String code) {
+        return null;
+      }
+
+      @Override
+      public List<IMetaData> listByTags(int pageNo, int offset, String... tags) {
+        return null;
+      }
+
+      @Override
+      public int countByTags(String... tags) {
+        return 0;
+      }
+
+      @Override
+      public void save(IMetaData metaData) {
+      }
+
+      @Override
+      public void save(Collection<IMetaData> metaData) {
+      }
+
+      @Override
+      public void update(IMetaData metaData) {
+      }
+
+      @Override
+      public int getVersion() {
+        return 0;
+      }
+
+      @Override
+      public int getSize() {
+        return size;
+      }
+    };
+  }
+}
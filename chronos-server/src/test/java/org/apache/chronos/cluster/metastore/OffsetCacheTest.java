@@ -0,0 +1,152 @@
+package org.apache.chronos.cluster.metastore;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.chronos.cluster.meta.Offset;
+import org.apache.chronos.cluster.meta.OffsetTest;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class OffsetCacheTest {
+
+  @Test
+  public void test() {
+    OffsetCache cache = new OffsetCache(1024 * 1024);
+    Offset holder = new Offset();
+    Offset offset1 = OffsetTest.create();
+    Offset offset2 = OffsetTest.create();
+    Assertions.assertFalse(cache.get(1, holder));
+
+    cache.put(1, offset1);
+    Assertions.assertTrue(cache.get(1, holder));
+    OffsetTest.assertEquals(offset1, holder);
+    // write through replaces the record
+    cache.put(1, offset2);
+    Assertions.assertTrue(cache.get(1, holder));
+    OffsetTest.assertEquals(offset2, holder);
+
+    cache.remove(1);
+    Assertions.assertFalse(cache.get(1, holder));
+    Assertions.assertFalse(cache.get(0, holder));
+  }
+
+  @Test
+  public void testFill() {
+    OffsetCache cache = new OffsetCache(1024 * 1024);
+    Offset holder = new Offset();
+    Offset older = OffsetTest.create();
+    Offset newer = OffsetTest.create();
+
+    long stamp = cache.stamp(1);
+    cache.fill(1, older, stamp);
+    Assertions.assertTrue(cache.get(1, holder));
+    OffsetTest.assertEquals(older, holder);
+
+    // a fill read before a write through is dropped
+    stamp = cache.stamp(2);
+    cache.put(2, newer);
+    cache.fill(2, older, stamp);
+    OffsetTest.assertEquals(newer, get(cache, 2));
+
+    // a fill read before a remove is dropped
+    stamp = cache.stamp(1);
+    cache.remove(1);
+    cache.fill(1, older, stamp);
+    Assertions.assertFalse(cache.get(1, holder));
+  }
+
+  @Test
+  public void testEviction() {
+    // a single set
+    OffsetCache cache = new OffsetCache(OffsetCache.SLOT_BYTES * OffsetCache.WAYS);
+    Assertions.assertEquals(OffsetCache.WAYS, cache.getCapacity());
+    Offset[] offsets = new Offset[OffsetCache.WAYS + 2];
+    for (int id = 1; id <= OffsetCache.WAYS; id++) {
+      offsets[id] = OffsetTest.create();
+      cache.put(id, offsets[id]);
+    }
+    Offset holder = new Offset();
+    // referenced records get a second chance
+    for (int id = 2; id <= OffsetCache.WAYS; id++) {
+      Assertions.assertTrue(cache.get(id, holder));
+    }
+    offsets[OffsetCache.WAYS + 1] = OffsetTest.create();
+    cache.put(OffsetCache.WAYS + 1, offsets[OffsetCache.WAYS + 1]);
+    Assertions.assertFalse(cache.get(1, holder));
+    for (int id = 2; id <= OffsetCache.WAYS + 1; id++) {
+      OffsetTest.assertEquals(offsets[id], get(cache, id));
+    }
+  }
+
+  @Test
+  public void testSetCount() {
+    Assertions.assertEquals(1, OffsetCache.getSetCount(0));
+    Assertions.assertEquals(1, OffsetCache.getSetCount(OffsetCache.SLOT_BYTES * OffsetCache.WAYS * 2 - 1));
+    Assertions.assertEquals(2, OffsetCache.getSetCount(OffsetCache.SLOT_BYTES * OffsetCache.WAYS * 2));
+    // every array length fits in an int however large the configured capacity
+    Assertions.assertTrue((long) OffsetCache.MAX_SETS * OffsetCache.WAYS * 3 <= Integer.MAX_VALUE);
+    Assertions.assertEquals(OffsetCache.MAX_SETS, OffsetCache.getSetCount(64L * 1024 * 1024 * 1024));
+    Assertions.assertEquals(OffsetCache.MAX_SETS, OffsetCache.getSetCount(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testConcurrentRead() throws Exception {
+    // a single set, writers evict and replace the slots read
+    OffsetCache cache = new OffsetCache(OffsetCache.SLOT_BYTES * OffsetCache.WAYS);
+    int ids = OffsetCache.WAYS * 2;
+    AtomicBoolean stop = new AtomicBoolean();
+    AtomicReference<String> torn = new AtomicReference<>();
+    Thread writer = new Thread(() -> {
+      for (int value = 1; !stop.get(); value++) {
+        int id = value % ids + 1;
+        if (value % 7 == 0) {
+          cache.remove(id);
+        } else {
+          cache.put(id, offset(id, value));
+        }
+      }
+    });
+    Thread[] readers = new Thread[2];
+    for (int i = 0; i < readers.length; i++) {
+      readers[i] = new Thread(() -> {
+        Offset holder = new Offset();
+        while (!stop.get()) {
+          for (int id = 1; id <= ids; id++) {
+            // every field of a record is derived from the id and the same value
+            if (cache.get(id, holder) && (holder.getBlockId() != id || holder.getOffset() != holder.getLength()
+                || holder.getUpdated() != holder.getLength() * 2L)) {
+              torn.compareAndSet(null, id + " " + holder);
+            }
+          }
+        }
+      });
+    }
+    writer.start();
+    for (Thread reader : readers) {
+      reader.start();
+    }
+    Thread.sleep(500);
+    stop.set(true);
+    writer.join();
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    Assertions.assertNull(torn.get());
+  }
+
+  private static Offset offset(int id, int value) {
+    Offset offset = new Offset();
+    offset.setStatus((byte) Offset.STATUS_NORMAL);
+    offset.setBlockId(id);
+    offset.setLength(value);
+    offset.setOffset(value);
+    offset.setUpdated(value * 2L);
+    return offset;
+  }
+
+  private Offset get(OffsetCache cache, int id) {
+    Offset holder = new Offset();
+    Assertions.assertTrue(cache.get(id, holder));
+    return holder;
+  }
+}
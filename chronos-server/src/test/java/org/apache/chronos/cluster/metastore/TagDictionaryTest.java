@@ -0,0 +1,101 @@
+package org.apache.chronos.cluster.metastore;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TagDictionaryTest {
+
+  @TempDir
+  private Path path;
+
+  @Test
+  public void test() throws Exception {
+    TagDictionary dictionary = new TagDictionary(path.toString());
+    Assertions.assertEquals(0, dictionary.getOrCreateId("host=a"));
+    Assertions.assertEquals(1, dictionary.getOrCreateId("datacenter=eu-west-1a"));
+    Assertions.assertEquals(0, dictionary.getOrCreateId("host=a"));
+    Assertions.assertArrayEquals(new int[]{1, 2, 0}, dictionary.getOrCreateIds(List.of("datacenter=eu-west-1a", "标签", "host=a")));
+    // a new tag repeated in a batch gets a single id
+    Assertions.assertArrayEquals(new int[]{3, 0, 3}, dictionary.getOrCreateIds(List.of("rack=r1", "host=a", "rack=r1")));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> dictionary.getOrCreateIds(List.of("rack=r2", "")));
+    Assertions.assertEquals(-1, dictionary.getId("rack=r2"));
+    Assertions.assertEquals(-1, dictionary.getId("host=b"));
+    Assertions.assertNull(dictionary.getTag(4));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> dictionary.getOrCreateId(""));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> dictionary.getTags(new int[]{0, 4}));
+    dictionary.close();
+
+    TagDictionary reopened = new TagDictionary(path.toString());
+    Assertions.assertEquals(4, reopened.size());
+    Assertions.assertEquals(List.of("host=a", "datacenter=eu-west-1a", "标签", "rack=r1"), reopened.getTags(new int[]{0, 1, 2, 3}));
+    Assertions.assertEquals(2, reopened.getId("标签"));
+    Assertions.assertEquals(4, reopened.getOrCreateId("host=b"));
+    reopened.close();
+  }
+
+  @Test
+  public void testIncompleteRecord() throws Exception {
+    TagDictionary dictionary = new TagDictionary(path.toString());
+    for (int i = 0; i < 2000; i++) {
+      dictionary.getOrCreateId("tag_" + i);
+    }
+    dictionary.close();
+    // a record cut off by a crash: the length says 10 bytes, only 3 are written
+    try (FileChannel channel = FileChannel.open(path.resolve("TAGS.DICT"), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+      channel.write(ByteBuffer.wrap(new byte[]{10, 'a', 'b', 'c'}));
+    }
+
+    TagDictionary reopened = new TagDictionary(path.toString());
+    Assertions.assertEquals(2000, reopened.size());
+    Assertions.assertEquals("tag_1999", reopened.getTag(1999));
+    Assertions.assertEquals(2000, reopened.getOrCreateId("abc"));
+    reopened.close();
+
+    reopened = new TagDictionary(path.toString());
+    Assertions.assertEquals(2001, reopened.size());
+    Assertions.assertEquals("abc", reopened.getTag(2000));
+    reopened.close();
+  }
+
+  @Test
+  public void testConcurrentIds() throws Exception {
+    TagDictionary dictionary = new TagDictionary(path.toString());
+    int num = 5000;
+    List<Thread> threads = new ArrayList<>();
+    AtomicInteger failures = new AtomicInteger();
+    int[][] ids = new int[4][num];
+    for (int t = 0; t < 4; t++) {
+      int thread = t;
+      threads.add(new Thread(() -> {
+        try {
+          for (int i = 0; i < num; i++) {
+            ids[thread][i] = dictionary.getOrCreateId("tag_" + i);
+            if (!("tag_" + i).equals(dictionary.getTag(ids[thread][i]))) {
+              failures.incrementAndGet();
+            }
+          }
+        } catch (Exception e) {
+          failures.incrementAndGet();
+        }
+      }));
+    }
+    threads.forEach(Thread::start);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assertions.assertEquals(0, failures.get());
+    Assertions.assertEquals(num, dictionary.size());
+    for (int t = 1; t < 4; t++) {
+      Assertions.assertArrayEquals(ids[0], ids[t]);
+    }
+    dictionary.close();
+  }
+}
@@ -1,11 +1,18 @@
 package org.apache.chronos.cluster.metastore;
 
+import com.apache.chronos.protocol.codec.CodecUtil;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.vertx.core.Future;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 import org.apache.chronos.cluster.meta.IMetaData;
 import org.apache.commons.lang3.tuple.Pair;
 import org.junit.jupiter.api.Assertions;
@@ -128,6 +135,55 @@ public class TagsIndexChannelTest {
     channel.close();
   }
 
+  @Test
+  public void testRelocation() throws Exception {
+    TagsIndexChannel channel = new TagsIndexChannel(path.toFile().getAbsolutePath(), standardEngineMock);
+
+    channel.addIndex("moved", 1, 100);
+    channel.addIndex("other_block", 2, 100);
+    channel.addIndex("kept", 1, 300);
+
+    channel.addIndex("moved_segment", 2, 300);
+
+    channel.onRelocated(new long[]{BlockChannel.toAddress(1, 100), BlockChannel.toAddress(2, 300), 0},
+        new long[]{BlockChannel.toAddress(1, 200), BlockChannel.toAddress(0, 400), 0}, 2);
+
+    Assertions.assertEquals(Pair.of(1, 200), channel.getBlockOffset("moved"));
+    Assertions.assertEquals(Pair.of(0, 400), channel.getBlockOffset("moved_segment"));
+    Assertions.assertEquals(Pair.of(2, 100), channel.getBlockOffset("other_block"));
+    Assertions.assertEquals(Pair.of(1, 300), channel.getBlockOffset("kept"));
+
+    // tags sharing an address move together, a removed or repointed tag does not move
+    String longTag = "datacenter=eu-west-1a,rack=r1,host=h1";
+    channel.addIndex("shared", 1, 200);
+    channel.addIndex(longTag, 1, 200);
+    channel.addIndex("removed", 1, 200);
+    channel.removeIndex("removed");
+    channel.addIndex("repointed", 1, 200);
+    channel.addIndex("repointed", 3, 100);
+    channel.onRelocated(new long[]{BlockChannel.toAddress(1, 200)}, new long[]{BlockChannel.toAddress(0, 500)}, 1);
+    Assertions.assertEquals(Pair.of(0, 500), channel.getBlockOffset("moved"));
+    Assertions.assertEquals(Pair.of(0, 500), channel.getBlockOffset("shared"));
+    Assertions.assertEquals(Pair.of(0, 500), channel.getBlockOffset(longTag));
+    Assertions.assertNull(channel.getBlockOffset("removed"));
+    Assertions.assertEquals(Pair.of(3, 100), channel.getBlockOffset("repointed"));
+    channel.close();
+
+    // the addresses are found again after the index is reopened, with the writes before the first relocation
+    channel = new TagsIndexChannel(path.toFile().getAbsolutePath(), standardEngineMock);
+    channel.addIndex("late", 0, 500);
+    channel.removeIndex("shared");
+    channel.onRelocated(new long[]{BlockChannel.toAddress(0, 500), BlockChannel.toAddress(3, 100)},
+        new long[]{BlockChannel.toAddress(0, 600), BlockChannel.toAddress(0, 700)}, 2);
+    Assertions.assertEquals(Pair.of(0, 600), channel.getBlockOffset("moved"));
+    Assertions.assertEquals(Pair.of(0, 600), channel.getBlockOffset(longTag));
+    Assertions.assertEquals(Pair.of(0, 700), channel.getBlockOffset("repointed"));
+    Assertions.assertEquals(Pair.of(0, 600), channel.getBlockOffset("late"));
+    Assertions.assertNull(channel.getBlockOffset("shared"));
+    Assertions.assertEquals(Pair.of(0, 400), channel.getBlockOffset("moved_segment"));
+    channel.close();
+  }
+
   @Test
   public void testEdgeCasesAndInvalidInputs() throws Exception {
     System.out.println("--- Running testEdgeCasesAndInvalidInputs ---");
@@ -142,11 +198,12 @@ public class TagsIndexChannelTest {
     channel.addIndex("", 2, 2);
     Assertions.assertNull(channel.getBlockOffset(""));
 
-    // Test too long tag (length > 19)
-    String longTag = "a_very_long_tag_that_exceeds_the_maximum_length_limit";
+    // Test too long tag (length > 1024)
+    String longTag = "a_very_long_tag_that_exceeds_the_maximum_length_limit".repeat(20);
     Assertions.assertThrows(IllegalArgumentException.class, () -> {
       channel.addIndex(longTag, 1, 1);
-    }, "Should throw exception for tags longer than 19 chars.");
+    }, "Should throw exception for tags longer than 1024 bytes.");
+    Assertions.assertNull(channel.getBlockOffset(longTag));
 
     channel.close();
   }
@@ -232,4 +289,282 @@ public class TagsIndexChannelTest {
 
     channel.close();
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testIncrementalExpansion() throws Exception {
+    TagsIndexChannel channel = new TagsIndexChannel(path.toFile().getAbsolutePath(), standardEngineMock);
+    // 2500 tags fill a quarter of the initial 10000 slots
+    int num = 2500;
+    for (int i = 0; i < num; i++) {
+      channel.addIndex("tag_" + i, i, i);
+    }
+    long size = path.resolve("TAGS.IDX").toFile().length();
+
+    // the expansion only maps the new table, the entries are migrated by later writes and in the background
+    channel.addIndex("tag_" + num, num, num);
+    channel.removeIndex("tag_0");
+    channel.addIndex("tag_1", -1, -1);
+    for (int i = 1; i <= num; i++) {
+      Assertions.assertEquals(i == 1 ? Pair.of(-1, -1) : Pair.of(i, i), channel.getBlockOffset("tag_" + i));
+    }
+    Assertions.assertNull(channel.getBlockOffset("tag_0"));
+
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (channel.isExpanding() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assertions.assertFalse(channel.isExpanding());
+    Assertions.assertTrue(path.resolve("TAGS.IDX").toFile().length() > size);
+    Assertions.assertFalse(path.resolve("TAGS.IDX.TMP").toFile().exists());
+    for (int i = 1; i <= num; i++) {
+      Assertions.assertEquals(i == 1 ? Pair.of(-1, -1) : Pair.of(i, i), channel.getBlockOffset("tag_" + i));
+    }
+    Assertions.assertNull(channel.getBlockOffset("tag_0"));
+    channel.close();
+  }
+
+  @Test
+  public void testTombstonesAndReopen() throws Exception {
+    TagsIndexChannel channel = new TagsIndexChannel(path.toFile().getAbsolutePath(), standardEngineMock);
+    // more removed entries than half of the slots, the table is rebuilt to drop the tombstones
+    int rounds = 20;
+    for (int round = 0; round < rounds; round++) {
+      for (int i = 0; i < 1000; i++) {
+        channel.addIndex("round_" + round + "_" + i, round, i);
+      }
+      for (int i = 0; i < 1000; i++) {
+        if (round < rounds - 1 || i % 2 == 0) {
+          channel.removeIndex("round_" + round + "_" + i);
+        }
+      }
+    }
+    // multi-byte UTF-8 tags are compared by their bytes
+    channel.addIndex("标签_ä_\uD83D\uDE00", 7, 8);
+
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (channel.isExpanding() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    channel.close();
+
+    TagsIndexChannel reopened = new TagsIndexChannel(path.toFile().getAbsolutePath(), standardEngineMock);
+    for (int round = 0; round < rounds; round++) {
+      for (int i = 0; i < 1000; i++) {
+        boolean kept = round == rounds - 1 && i % 2 == 1;
+        Assertions.assertEquals(kept ? Pair.of(round, i) : null, reopened.getBlockOffset("round_" + round + "_" + i));
+      }
+    }
+    Assertions.assertEquals(Pair.of(7, 8), reopened.getBlockOffset("标签_ä_\uD83D\uDE00"));
+    Assertions.assertNull(reopened.getBlockOffset("标签_ä_"));
+    reopened.close();
+  }
+
+  @Test
+  public void testLegacyLayout() throws Exception {
+    // the layout before the control bytes: no header, 10 slots of 32 bytes per bucket, status, block id, offset, tag
+    int slots = 10000 * 10;
+    ByteBuf legacy = Unpooled.buffer(slots * 32);
+    legacy.writerIndex(slots * 32);
+    for (int i = 0; i < 100; i++) {
+      int pos = i * 7 * 32;
+      legacy.setByte(pos, 1);
+      legacy.setInt(pos + 4, i);
+      legacy.setInt(pos + 8, i * 2);
+      CodecUtil.setString(legacy, pos + 12, "legacy_" + i);
+    }
+    Files.write(path.resolve("TAGS.IDX"), Arrays.copyOf(legacy.array(), slots * 32));
+
+    TagsIndexChannel channel = new TagsIndexChannel(path.toFile().getAbsolutePath(), standardEngineMock);
+    for (int i = 0; i < 100; i++) {
+      Assertions.assertEquals(Pair.of(i, i * 2), channel.getBlockOffset("legacy_" + i));
+    }
+    Assertions.assertNull(channel.getBlockOffset("legacy_100"));
+    Assertions.assertFalse(path.resolve("TAGS.IDX.TMP").toFile().exists());
+    channel.close();
+
+    channel = new TagsIndexChannel(path.toFile().getAbsolutePath(), standardEngineMock);
+    Assertions.assertEquals(Pair.of(99, 198), channel.getBlockOffset("legacy_99"));
+    channel.close();
+  }
+
+  @Test
+  public void testLongTags() throws Exception {
+    TagsIndexChannel channel = new TagsIndexChannel(path.toFile().getAbsolutePath(), standardEngineMock);
+    // tags longer than 19 bytes are kept in the arena, the arena grows past its initial 64KB
+    int num = 3000;
+    for (int i = 0; i < num; i++) {
+      channel.addIndex("datacenter=eu-west-1a,host=" + i, i, i);
+    }
+    channel.addIndex("标签标签标签标签", 1, 2);
+    channel.addIndex("datacenter=eu-west-1a,host=1", -1, -1);
+    channel.removeIndex("datacenter=eu-west-1a,host=0");
+    Assertions.assertEquals(Pair.of(1, 2), channel.getBlockOffset("标签标签标签标签"));
+    Assertions.assertNull(channel.getBlockOffset("datacenter=eu-west-1a,host=" + num));
+    Assertions.assertNull(channel.getBlockOffset("datacenter=eu-west-1a,host="));
+
+    // the migrated slots point to the same arena entries
+    channel.addIndex("datacenter=eu-west-1b,host=0", num, num);
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (channel.isExpanding() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assertions.assertFalse(channel.isExpanding());
+    channel.close();
+
+    channel = new TagsIndexChannel(path.toFile().getAbsolutePath(), standardEngineMock);
+    for (int i = 1; i < num; i++) {
+      Assertions.assertEquals(i == 1 ? Pair.of(-1, -1) : Pair.of(i, i), channel.getBlockOffset("datacenter=eu-west-1a,host=" + i));
+    }
+    Assertions.assertNull(channel.getBlockOffset("datacenter=eu-west-1a,host=0"));
+    Assertions.assertEquals(Pair.of(num, num), channel.getBlockOffset("datacenter=eu-west-1b,host=0"));
+    Assertions.assertEquals(Pair.of(1, 2), channel.getBlockOffset("标签标签标签标签"));
+    channel.close();
+  }
+
+  @Test
+  public void testBlockOffsets() throws Exception {
+    TagsIndexChannel channel = new TagsIndexChannel(path.toFile().getAbsolutePath(), standardEngineMock);
+    List<String> tags = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      tags.add("tag_" + i);
+      if (i % 3 != 0) {
+        channel.addIndex("tag_" + i, i, -i);
+      }
+    }
+    channel.addIndex("datacenter=eu-west-1a,host=1", 7, 8);
+    tags.add("datacenter=eu-west-1a,host=1");
+    tags.add(null);
+    tags.add("");
+
+    BlockOffsets blockOffsets = channel.getBlockOffsets(tags);
+    Assertions.assertEquals(tags.size(), blockOffsets.size());
+    for (int i = 0; i < 200; i++) {
+      Assertions.assertEquals(i % 3 != 0, blockOffsets.isFound(i));
+      Assertions.assertEquals(i % 3 != 0 ? i : 0, blockOffsets.getBlockId(i));
+      Assertions.assertEquals(i % 3 != 0 ? -i : 0, blockOffsets.getBlockOffset(i));
+    }
+    Assertions.assertTrue(blockOffsets.isFound(200));
+    Assertions.assertEquals(7, blockOffsets.getBlockIds()[200]);
+    Assertions.assertEquals(8, blockOffsets.getBlockOffsets()[200]);
+    Assertions.assertFalse(blockOffsets.isFound(201));
+    Assertions.assertFalse(blockOffsets.isFound(202));
+    Assertions.assertEquals(0, channel.getBlockOffsets(List.of()).size());
+    channel.close();
+  }
+
+  @Test
+  public void testShards() throws Exception {
+    TagsIndexChannel channel = new TagsIndexChannel(path.toFile().getAbsolutePath(), standardEngineMock, 6, 0);
+    Assertions.assertEquals(8, channel.getShardCount());
+    int threads = 4;
+    int num = 5000;
+    List<Thread> writers = new ArrayList<>();
+    AtomicInteger failures = new AtomicInteger();
+    for (int t = 0; t < threads; t++) {
+      int thread = t;
+      writers.add(new Thread(() -> {
+        try {
+          for (int i = 0; i < num; i++) {
+            channel.addIndex("host=" + thread + "_" + i, thread, i);
+          }
+        } catch (IOException | RuntimeException e) {
+          failures.incrementAndGet();
+        }
+      }));
+    }
+    writers.forEach(Thread::start);
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    Assertions.assertEquals(0, failures.get());
+    channel.removeIndex("host=0_0");
+    channel.onRelocated(new long[]{BlockChannel.toAddress(1, 1)}, new long[]{BlockChannel.toAddress(9, 9)}, 1);
+
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (channel.isExpanding() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    channel.close();
+    for (int i = 0; i < 8; i++) {
+      Assertions.assertTrue(path.resolve("TAGS." + i + ".IDX").toFile().exists());
+    }
+    Assertions.assertFalse(path.resolve("TAGS.IDX").toFile().exists());
+
+    // the shard count of an existing index is kept
+    TagsIndexChannel reopened = new TagsIndexChannel(path.toFile().getAbsolutePath(), standardEngineMock, 2, 0);
+    Assertions.assertEquals(8, reopened.getShardCount());
+    List<String> tags = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      for (int i = 0; i < num; i++) {
+        Pair<Integer, Integer> expected = t == 0 && i == 0 ? null : t == 1 && i == 1 ? Pair.of(9, 9) : Pair.of(t, i);
+        Assertions.assertEquals(expected, reopened.getBlockOffset("host=" + t + "_" + i));
+        tags.add("host=" + t + "_" + i);
+      }
+    }
+    BlockOffsets blockOffsets = reopened.getBlockOffsets(tags);
+    for (int i = 0; i < tags.size(); i++) {
+      Pair<Integer, Integer> expected = reopened.getBlockOffset(tags.get(i));
+      Assertions.assertEquals(expected != null, blockOffsets.isFound(i));
+      if (expected != null) {
+        Assertions.assertEquals(expected, Pair.of(blockOffsets.getBlockId(i), blockOffsets.getBlockOffset(i)));
+      }
+    }
+    reopened.close();
+  }
+
+  @Test
+  public void testFootprint() throws Exception {
+    // a fresh store is sized for the data it has, the configured capacity is not reserved on disk
+    TagsIndexChannel channel = new TagsIndexChannel(path.toFile().getAbsolutePath(), standardEngineMock, 16, 1_000_000);
+    Assertions.assertEquals(16, channel.getShardCount());
+    try (Stream<Path> files = Files.list(path)) {
+      List<Path> list = files.toList();
+      Assertions.assertEquals(16, list.size());
+      for (Path file : list) {
+        Assertions.assertTrue(file.getFileName().toString().endsWith(".IDX"));
+        Assertions.assertTrue(Files.size(file) < 1024 * 1024);
+      }
+    }
+    // the arena of a shard is created by its first long tag
+    channel.addIndex("a_long_tag_which_does_not_fit_in_a_slot", 1, 1);
+    try (Stream<Path> files = Files.list(path)) {
+      Assertions.assertEquals(1, files.filter(file -> file.getFileName().toString().endsWith(".ARENA")).count());
+    }
+    channel.close();
+
+    TagsIndexChannel reopened = new TagsIndexChannel(path.toFile().getAbsolutePath(), standardEngineMock, 16, 1_000_000);
+    Assertions.assertEquals(Pair.of(1, 1), reopened.getBlockOffset("a_long_tag_which_does_not_fit_in_a_slot"));
+    reopened.close();
+  }
+
+  @Test
+  public void testReservedCapacity() throws Exception {
+    TagsIndexChannel channel = new TagsIndexChannel(path.toFile().getAbsolutePath(), standardEngineMock, 1, 100_000);
+    long size = Files.size(path.resolve("TAGS.IDX"));
+    // the first expansion grows to the configured capacity at once: 400000 slots of 33 bytes
+    for (int i = 0; i <= 2500; i++) {
+      channel.addIndex("tag_" + i, i, i);
+    }
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (channel.isExpanding() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assertions.assertFalse(channel.isExpanding());
+    Assertions.assertTrue(size < 1024 * 1024);
+    Assertions.assertTrue(Files.size(path.resolve("TAGS.IDX")) >= 400_000L * 33);
+    for (int i = 0; i <= 2500; i++) {
+      Assertions.assertEquals(Pair.of(i, i), channel.getBlockOffset("tag_" + i));
+    }
+    channel.close();
+  }
+
+  @Test
+  public void testMixedLayouts() throws Exception {
+    new TagsIndexChannel(path.toFile().getAbsolutePath(), standardEngineMock, 2, 0).close();
+    // a single shard file next to the shard files, e.g. left by a copy of another store
+    Files.createFile(path.resolve("TAGS.IDX"));
+    IOException e = Assertions.assertThrows(IOException.class,
+        () -> new TagsIndexChannel(path.toFile().getAbsolutePath(), standardEngineMock, 2, 0));
+    Assertions.assertTrue(e.getMessage().contains("both"));
+  }
+}